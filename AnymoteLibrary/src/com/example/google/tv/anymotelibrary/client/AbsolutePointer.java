@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import android.content.res.Resources;
+
+import com.example.google.tv.anymotelibrary.R;
+
+/**
+ * Maps the touch surface onto the TV screen, for the absolute pointer mode.
+ * <p>
+ * Anymote only moves the pointer relatively, so this class keeps an estimate
+ * of the pointer position on the TV and sends the difference between the
+ * touched location and that estimate. Like the TV, the estimate is clamped to
+ * the screen edges.
+ * <p>
+ * The estimate drifts when the TV does not move the pointer exactly as asked,
+ * or when something else moves it. To bound the drift, the pointer is
+ * regularly pushed into the screen corner closest to the target, where the
+ * TV clamps it to a known position, before it is moved to the target. A
+ * target on a screen edge re-anchors that axis for free, by overshooting it.
+ */
+final class AbsolutePointer {
+
+    /**
+     * Size of the TV screen, in pointer pixels.
+     */
+    private final int screenWidth;
+    private final int screenHeight;
+
+    /**
+     * Minimal duration between two corner snaps, in milliseconds.
+     */
+    private final long recalibrationInterval;
+
+    /**
+     * Estimated location of the pointer on the TV.
+     */
+    private int cursorX, cursorY;
+
+    /**
+     * Location the pointer should be moved to.
+     */
+    private int targetX, targetY;
+
+    /**
+     * Time of the last corner snap, or -1 if the estimate is unknown.
+     */
+    private long calibrationTime = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param screenWidth width of the TV screen, in pointer pixels.
+     * @param screenHeight height of the TV screen, in pointer pixels.
+     * @param recalibrationInterval minimal duration between two corner snaps,
+     *            in milliseconds.
+     */
+    AbsolutePointer(int screenWidth, int screenHeight, long recalibrationInterval) {
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.recalibrationInterval = recalibrationInterval;
+    }
+
+    /**
+     * Creates an absolute pointer configured from the library resources.
+     */
+    static AbsolutePointer fromResources(Resources resources) {
+        return new AbsolutePointer(resources.getInteger(R.integer.tv_screen_width),
+                resources.getInteger(R.integer.tv_screen_height),
+                resources.getInteger(R.integer.absolute_pointer_recalibration_interval));
+    }
+
+    /**
+     * Forgets the pointer position, so that the next touch snaps the pointer
+     * to a corner first. Called when the pointer may have been moved by
+     * something else, e.g. after a reconnection.
+     */
+    void invalidate() {
+        calibrationTime = -1;
+    }
+
+    /**
+     * Sets the location the pointer should be moved to.
+     *
+     * @param x location on the touch surface.
+     * @param y location on the touch surface.
+     * @param width width of the touch surface.
+     * @param height height of the touch surface.
+     */
+    void setTarget(int x, int y, int width, int height) {
+        targetX = scale(x, width, screenWidth);
+        targetY = scale(y, height, screenHeight);
+    }
+
+    /**
+     * Snaps the pointer to the corner closest to the target if the estimate
+     * is unknown or was last calibrated too long ago. Called when a touch
+     * starts, so that the snap is hidden by the jump to the touched location.
+     *
+     * @param sender sends the corner snap.
+     * @param timestamp time of the touch.
+     */
+    void recalibrateIfNeeded(AnymoteSender sender, long timestamp) {
+        if (calibrationTime >= 0 && timestamp - calibrationTime < recalibrationInterval) {
+            return;
+        }
+        int cornerX = targetX < screenWidth / 2 ? 0 : screenWidth - 1;
+        int cornerY = targetY < screenHeight / 2 ? 0 : screenHeight - 1;
+        // Twice the screen size reaches the corner from anywhere, whatever
+        // the error of the estimate.
+        sender.sendMoveRelative(cornerX == 0 ? -2 * screenWidth : 2 * screenWidth,
+                cornerY == 0 ? -2 * screenHeight : 2 * screenHeight);
+        cursorX = cornerX;
+        cursorY = cornerY;
+        calibrationTime = timestamp;
+    }
+
+    /**
+     * Moves the pointer to the target with a single relative movement, if it
+     * is not already there.
+     *
+     * @param sender sends the movement.
+     */
+    void flush(AnymoteSender sender) {
+        int deltaX = overshoot(targetX - cursorX, targetX, screenWidth);
+        int deltaY = overshoot(targetY - cursorY, targetY, screenHeight);
+        if (deltaX == 0 && deltaY == 0) {
+            return;
+        }
+        sender.sendMoveRelative(deltaX, deltaY);
+        cursorX = targetX;
+        cursorY = targetY;
+    }
+
+    /**
+     * Scales a location on the touch surface to the TV screen.
+     */
+    private static int scale(int position, int size, int screenSize) {
+        if (size <= 1) {
+            return 0;
+        }
+        int scaled = Math.round((float) position * (screenSize - 1) / (size - 1));
+        return Math.max(0, Math.min(screenSize - 1, scaled));
+    }
+
+    /**
+     * Extends a movement toward a screen edge past it, so that the TV clamps
+     * the pointer on the edge whatever the error of the estimate. The
+     * movement is left unchanged if it is not along an edge or if the
+     * pointer is already there, which keeps a still finger silent.
+     */
+    private static int overshoot(int delta, int target, int screenSize) {
+        if (delta < 0 && target == 0) {
+            return delta - screenSize;
+        }
+        if (delta > 0 && target == screenSize - 1) {
+            return delta + screenSize;
+        }
+        return delta;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.SystemClock;
+
+import com.example.google.tv.anymotelibrary.R;
+
+/**
+ * Moves the pointer on the TV by turning the phone, as an air mouse.
+ * <p>
+ * The phone is held like a remote control, its top pointing at the TV.
+ * Turning it left or right (around the screen normal) moves the pointer
+ * horizontally, tilting it up or down moves the pointer vertically.
+ * <p>
+ * Gyroscope rates are smoothed by a low-pass filter, and rates inside a
+ * dead zone are ignored so that a hand at rest does not drift the pointer.
+ * The rotation is then integrated into pointer pixels, which are accumulated
+ * and sent as one relative movement at most every send interval, and never
+ * while the sender is backpressured: like touch moves, the sum is sent once
+ * the link catches up. The send interval adapts to the link: it grows each
+ * time the sender is found backpressured, and shrinks back as moves go
+ * through. The sensor callback allocates nothing.
+ */
+public final class AirMouseHandler implements SensorEventListener {
+
+    /**
+     * Increase of the send interval when the sender is backpressured, and
+     * decrease when a move goes through, in milliseconds.
+     */
+    private static final long INTERVAL_STEP_MS = 4;
+
+    /**
+     * Ignores sensor time gaps longer than this, e.g. after a pause, in
+     * nanoseconds.
+     */
+    private static final long MAX_SAMPLE_GAP_NS = 100 * 1000 * 1000;
+
+    private final SensorManager sensorManager;
+    private final Sensor gyroscope;
+    private final AnymoteSender anymoteSender;
+
+    /**
+     * Weight of a new sample in the low-pass filter.
+     */
+    private final float smoothing;
+
+    /**
+     * Rate under which the rotation is ignored, in radians per second.
+     */
+    private final float deadZone;
+
+    /**
+     * Pointer pixels per radian.
+     */
+    private final float gain;
+
+    /**
+     * Bounds of the send interval, in milliseconds.
+     */
+    private final long minInterval;
+    private final long maxInterval;
+
+    /**
+     * Filtered rotation rates, in radians per second.
+     */
+    private float rateX, rateZ;
+
+    /**
+     * Time of the previous sensor sample, in nanoseconds, or 0.
+     */
+    private long lastSampleTime;
+
+    /**
+     * Pointer movement not sent yet, including the fractional part.
+     */
+    private float pendingX, pendingY;
+
+    /**
+     * Current send interval, and time of the last move sent.
+     */
+    private long sendInterval;
+    private long lastSendTime;
+
+    private boolean started;
+
+    /**
+     * Constructor.
+     *
+     * @param context Context used to reach the sensors and the resources.
+     * @param anymoteSender Sends Anymote messages to Google TV.
+     */
+    public AirMouseHandler(Context context, AnymoteSender anymoteSender) {
+        this.anymoteSender = anymoteSender;
+        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        gyroscope = sensorManager == null
+                ? null : sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        Resources resources = context.getResources();
+        smoothing = resources.getInteger(R.integer.air_mouse_smoothing) / 100f;
+        deadZone = resources.getInteger(R.integer.air_mouse_dead_zone) / 1000f;
+        gain = resources.getInteger(R.integer.air_mouse_gain);
+        minInterval = resources.getInteger(R.integer.air_mouse_min_send_interval);
+        maxInterval = resources.getInteger(R.integer.air_mouse_max_send_interval);
+    }
+
+    /**
+     * @return {@code true} if the phone has a gyroscope.
+     */
+    public boolean isAvailable() {
+        return gyroscope != null;
+    }
+
+    /**
+     * Starts moving the pointer with the phone.
+     *
+     * @return {@code false} if the phone has no gyroscope.
+     */
+    public boolean start() {
+        if (gyroscope == null) {
+            return false;
+        }
+        if (!started) {
+            rateX = 0;
+            rateZ = 0;
+            lastSampleTime = 0;
+            pendingX = 0;
+            pendingY = 0;
+            sendInterval = minInterval;
+            lastSendTime = 0;
+            started = sensorManager.registerListener(this, gyroscope,
+                    SensorManager.SENSOR_DELAY_GAME);
+        }
+        return started;
+    }
+
+    /**
+     * Stops moving the pointer with the phone, and sends the movement held
+     * back.
+     */
+    public void stop() {
+        if (started) {
+            sensorManager.unregisterListener(this);
+            started = false;
+            flush(SystemClock.uptimeMillis());
+        }
+    }
+
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    public void onSensorChanged(SensorEvent event) {
+        if (!started) {
+            return;
+        }
+        long previous = lastSampleTime;
+        lastSampleTime = event.timestamp;
+        // Angular rates around the short axis of the screen and its normal.
+        rateX += smoothing * (event.values[0] - rateX);
+        rateZ += smoothing * (event.values[2] - rateZ);
+        long gap = event.timestamp - previous;
+        if (previous == 0 || gap <= 0 || gap > MAX_SAMPLE_GAP_NS) {
+            return;
+        }
+        float seconds = gap / 1e9f;
+        // Turning left, counterclockwise seen from above, moves left;
+        // tilting up moves up.
+        pendingX -= applyDeadZone(rateZ) * seconds * gain;
+        pendingY -= applyDeadZone(rateX) * seconds * gain;
+
+        long now = SystemClock.uptimeMillis();
+        if (now - lastSendTime < sendInterval) {
+            return;
+        }
+        if (anymoteSender.isBackpressured()) {
+            sendInterval = Math.min(maxInterval, sendInterval + INTERVAL_STEP_MS);
+            return;
+        }
+        if (flush(now)) {
+            sendInterval = Math.max(minInterval, sendInterval - INTERVAL_STEP_MS);
+        }
+    }
+
+    /**
+     * Sends the whole pixels of the pending movement, and keeps the fraction.
+     *
+     * @return {@code true} if a move was sent.
+     */
+    private boolean flush(long now) {
+        int deltaX = (int) pendingX;
+        int deltaY = (int) pendingY;
+        if (deltaX == 0 && deltaY == 0) {
+            return false;
+        }
+        anymoteSender.sendMoveRelative(deltaX, deltaY);
+        pendingX -= deltaX;
+        pendingY -= deltaY;
+        lastSendTime = now;
+        return true;
+    }
+
+    /**
+     * Returns the rate, or 0 if it is inside the dead zone. The dead zone is
+     * subtracted so that the movement starts smoothly past it.
+     */
+    private float applyDeadZone(float rate) {
+        if (rate > deadZone) {
+            return rate - deadZone;
+        }
+        if (rate < -deadZone) {
+            return rate + deadZone;
+        }
+        return 0;
+    }
+}
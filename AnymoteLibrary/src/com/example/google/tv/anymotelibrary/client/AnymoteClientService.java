@@ -19,21 +19,29 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.example.google.tv.anymotelibrary.R;
+import com.example.google.tv.anymotelibrary.connection.AnymoteExecutors;
 import com.example.google.tv.anymotelibrary.connection.ConnectingTask;
+import com.example.google.tv.anymotelibrary.connection.ConnectionState;
+import com.example.google.tv.anymotelibrary.connection.ConnectionStateMachine;
+import com.example.google.tv.anymotelibrary.connection.DeviceLivenessProbe;
 import com.example.google.tv.anymotelibrary.connection.KeyStoreManager;
+import com.example.google.tv.anymotelibrary.connection.NioTransport;
 import com.example.google.tv.anymotelibrary.connection.PairingActivity;
 import com.example.google.tv.anymotelibrary.connection.PairingPINDialogBuilder;
 import com.example.google.tv.anymotelibrary.connection.TvDevice;
+import com.example.google.tv.anymotelibrary.connection.TvDeviceCache;
 import com.example.google.tv.anymotelibrary.connection.TvDiscoveryService;
 import com.example.google.tv.anymotelibrary.connection.ConnectingTask.ConnectionListener;
 import com.example.google.tv.anymotelibrary.connection.PairingPINDialogBuilder.PinListener;
 
-import java.security.GeneralSecurityException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The central point to connect to Anymote serivce running on a Google TV device
@@ -51,7 +59,33 @@ public class AnymoteClientService extends Service implements ConnectionListener
     private TvDiscoveryService tvDiscovery;
     private TvDevice target;
     private KeyStoreManager mKeyStoreManager;
-    private static AnymoteSender anymoteSender;
+    private static volatile AnymoteSender anymoteSender;
+    private AnymoteSessionManager sessionManager;
+    private TvDeviceCache mDeviceCache;
+    private final ConnectionStateMachine stateMachine = new ConnectionStateMachine();
+
+    /**
+     * Threads of the connections, created with the service and stopped when
+     * it is destroyed.
+     */
+    private AnymoteExecutors executors;
+
+    /**
+     * Non-blocking transport multiplexing the sessions on a single thread, or
+     * {@code null} to use a blocking socket per session.
+     */
+    private NioTransport nioTransport;
+
+    /**
+     * {@code true} while connecting to a cached device on launch, without
+     * the user having selected it.
+     */
+    private boolean autoConnecting;
+
+    /**
+     * Time the current connection attempt started at.
+     */
+    private long connectStartTime;
 
     /**
      * All client applications should implement this listener. It provides
@@ -116,7 +150,19 @@ public class AnymoteClientService extends Service implements ConnectionListener
         if (connectingTask != null) {
             connectingTask.disconnect();
         }
+        stateMachine.moveTo(ConnectionState.IDLE, null);
+        if (sessionManager != null) {
+            sessionManager.closeAll();
+        }
         tvDiscovery = null;
+        if (mKeyStoreManager != null) {
+            mKeyStoreManager.shutdown();
+        }
+        if (nioTransport != null) {
+            nioTransport.shutdown();
+        }
+        // The disconnections posted above still run.
+        executors.shutdown();
         super.onDestroy();
     }
 
@@ -137,21 +183,118 @@ public class AnymoteClientService extends Service implements ConnectionListener
         public AnymoteClientService getService() {
             return AnymoteClientService.this;
         }
+
+        /**
+         * @return the state of the connection.
+         */
+        public ConnectionState getConnectionState() {
+            return stateMachine.getState();
+        }
+
+        /**
+         * @return a snapshot of the connection metrics: time spent in each
+         *         state, handshake timings and reconnection count.
+         */
+        public ConnectionStateMachine.Metrics getConnectionMetrics() {
+            return stateMachine.getMetrics();
+        }
+
+        /**
+         * Adds a listener of the connection state.
+         *
+         * @param listener the listener.
+         */
+        public void attachStateListener(ConnectionStateMachine.StateListener listener) {
+            stateMachine.addListener(listener);
+        }
+
+        /**
+         * Removes a listener of the connection state.
+         *
+         * @param listener the listener.
+         */
+        public void detachStateListener(ConnectionStateMachine.StateListener listener) {
+            stateMachine.removeListener(listener);
+        }
     }
 
     private void initialize() {
-        clientListeners = new ArrayList<ClientListener>();
-        pairingListeners = new ArrayList<PairingListener>();
-
-        try {
-            mKeyStoreManager = new KeyStoreManager();
-            mKeyStoreManager.initialize(this);
-        } catch (GeneralSecurityException e) {
-            Log.e(LOG_TAG, "Security exception during initialization! Aborting", e);
-            stopSelf();
+        // Listeners are called from the connecting and ping threads while
+        // clients attach and detach on the main thread.
+        clientListeners = new CopyOnWriteArrayList<ClientListener>();
+        pairingListeners = new CopyOnWriteArrayList<PairingListener>();
+        executors = new AnymoteExecutors();
+        if (getResources().getBoolean(R.bool.anymote_nio_transport)) {
+            nioTransport = new NioTransport(executors);
+        }
+
+        // Loads or generates the keys in the background; connections wait for
+        // them.
+        mKeyStoreManager = new KeyStoreManager();
+        mKeyStoreManager.initializeAsync(this);
+
+        mDeviceCache = new TvDeviceCache(this);
+        autoConnect();
+    }
+
+    /**
+     * Reconnects to the most recently used TV device if it is reachable, and
+     * falls back to the pairing activity otherwise. Broadcast discovery runs
+     * in parallel, so that the device list is ready if the pairing activity
+     * has to be shown.
+     */
+    private void autoConnect() {
+        stateMachine.moveTo(ConnectionState.DISCOVERING, null);
+        getTvDiscovery().startDiscovery(new TvDiscoveryService.DiscoveryListener() {
+            public void onTvFound(TvDevice device) {
+            }
+
+            public void onTvLost(TvDevice device) {
+            }
+
+            public void onDiscoveryTimeout() {
+                getTvDiscovery().stopDiscovery(this);
+            }
+
+            public void onNetworkUnavailable() {
+                getTvDiscovery().stopDiscovery(this);
+            }
+        }, false);
+
+        final List<TvDevice> recentDevices = mDeviceCache.getRecentDevices();
+        if (recentDevices.isEmpty()) {
+            startPairingActivity();
             return;
         }
+        final Handler handler = new Handler();
+        final int probeTimeout = getResources().getInteger(R.integer.cached_device_probe_timeout);
+        executors.getBlockingExecutor().execute(new Runnable() {
+            public void run() {
+                final TvDevice device =
+                        new DeviceLivenessProbe(probeTimeout).findFirstReachable(recentDevices);
+                handler.post(new Runnable() {
+                    public void run() {
+                        if (target != null || connectingTask != null) {
+                            // The user already picked a device.
+                            return;
+                        }
+                        if (device != null) {
+                            Log.i(LOG_TAG, "Reconnecting to cached device " + device);
+                            autoConnecting = true;
+                            connect(device, AnymoteClientService.this);
+                        } else {
+                            startPairingActivity();
+                        }
+                    }
+                });
+            }
+        });
+    }
 
+    /**
+     * Shows the activity letting the user pick and pair a TV device.
+     */
+    private void startPairingActivity() {
         Intent intent2 = new Intent();
         intent2.setComponent(new ComponentName(
                 getApplicationContext(),
@@ -167,6 +310,7 @@ public class AnymoteClientService extends Service implements ConnectionListener
     @Override
     public void onConnectionDisconnected() {
         this.anymoteSender = null;
+        stateMachine.moveTo(ConnectionState.DISCONNECTED, null);
         if (target != null) {
             for (ClientListener listener : clientListeners) {
                 listener.onDisconnected();
@@ -186,6 +330,18 @@ public class AnymoteClientService extends Service implements ConnectionListener
         if (target != null && target.equals(device)) {
             return true;
         }
+        startConnection(device, activity, ConnectionState.CONNECTING);
+        return false;
+    }
+
+    /**
+     * Starts a connecting task to the specified TV device.
+     *
+     * @param device the device to connect to.
+     * @param activity which uses the connection.
+     * @param state the state to enter, connecting or reconnecting.
+     */
+    private void startConnection(TvDevice device, Context activity, ConnectionState state) {
         this.context = activity;
 
         if (connectingTask != null) {
@@ -194,23 +350,44 @@ public class AnymoteClientService extends Service implements ConnectionListener
         }
 
         target = null;
-        connectingTask = new ConnectingTask(device, mKeyStoreManager, activity);
+        connectStartTime = SystemClock.elapsedRealtime();
+        mDeviceCache.recordConnectionAttempt(device);
+        stateMachine.moveTo(state, device);
+        connectingTask = new ConnectingTask(device, mKeyStoreManager, activity, executors);
         connectingTask.setConnectionListener(this);
+        connectingTask.setTransport(nioTransport);
         connectingTask.start();
-        return false;
     }
 
     /**
-     * Re-establish connection to current target.
+     * Re-establish connection to the current target, or to the device of the
+     * last connection if it was lost.
      */
     public void reconnect() {
-        TvDevice device = target;
+        TvDevice device = target != null ? target : stateMachine.getDevice();
 
         if (device != null) {
-            connect(device, context);
+            startConnection(device, context, ConnectionState.RECONNECTING);
         }
     }
 
+    /**
+     * @return the state of the connection.
+     */
+    public ConnectionState getConnectionState() {
+        return stateMachine.getState();
+    }
+
+    /**
+     * Returns the connection state machine, to observe the state changes and
+     * read the connection metrics.
+     *
+     * @return the connection state machine.
+     */
+    public ConnectionStateMachine getConnectionStateMachine() {
+        return stateMachine;
+    }
+
     /**
      * The TV device that is connected.
      * 
@@ -263,6 +440,7 @@ public class AnymoteClientService extends Service implements ConnectionListener
         if (connectingTask != null) {
             connectingTask.cancel();
             connectingTask = null;
+            stateMachine.moveTo(ConnectionState.IDLE, null);
         }
     }
 
@@ -280,9 +458,28 @@ public class AnymoteClientService extends Service implements ConnectionListener
     /**
      * Called when connecting task successfully established connection.
      */
-    public void onConnected(TvDevice device, AnymoteSender anymoteSender) {
+    public void onConnected(TvDevice device, final AnymoteSender anymoteSender) {
+        autoConnecting = false;
+        mDeviceCache.recordConnectionSuccess(
+                device, SystemClock.elapsedRealtime() - connectStartTime);
         target = device;
         this.anymoteSender = anymoteSender;
+        recordTimings();
+        anymoteSender.setHealthListener(new AnymoteSender.HealthListener() {
+            public void onConnectionDegraded() {
+                if (AnymoteClientService.anymoteSender == anymoteSender) {
+                    stateMachine.moveTo(ConnectionState.DEGRADED, null);
+                }
+            }
+
+            public void onConnectionRecovered() {
+                if (AnymoteClientService.anymoteSender == anymoteSender
+                        && stateMachine.getState() == ConnectionState.DEGRADED) {
+                    stateMachine.moveTo(ConnectionState.CONNECTED, null);
+                }
+            }
+        });
+        stateMachine.moveTo(ConnectionState.CONNECTED, device);
         // Broadcast new connection.
         for (ClientListener listener : clientListeners) {
             listener.onConnected(anymoteSender);
@@ -293,6 +490,36 @@ public class AnymoteClientService extends Service implements ConnectionListener
         return anymoteSender;
     }
 
+    /**
+     * Records the timings of the connecting task in the connection metrics.
+     */
+    private void recordTimings() {
+        ConnectingTask task = connectingTask;
+        if (task != null) {
+            stateMachine.recordTimings(task.getSocketConnectTime(), task.getHandshakeTime(),
+                    task.getPairingTime());
+        }
+    }
+
+    /**
+     * Returns the executors running the connections and the discovery. They
+     * are stopped when the service is destroyed.
+     *
+     * @return the executors of the service.
+     */
+    public AnymoteExecutors getExecutors() {
+        return executors;
+    }
+
+    /**
+     * Returns the cache of known TV devices and their connection statistics.
+     *
+     * @return the persistent device cache.
+     */
+    public TvDeviceCache getDeviceCache() {
+        return mDeviceCache;
+    }
+
     /**
      * Returns instance of TV discovery service, creates new instance if one
      * does not already exist.
@@ -306,6 +533,35 @@ public class AnymoteClientService extends Service implements ConnectionListener
         return tvDiscovery;
     }
 
+    /**
+     * Returns the manager of concurrent sessions to several TV devices,
+     * creates it if it does not already exist. Pairing secrets required by
+     * these sessions are requested through the pairing listeners.
+     *
+     * @return the multi-device session manager.
+     */
+    public synchronized AnymoteSessionManager getSessionManager() {
+        if (sessionManager == null) {
+            sessionManager = new AnymoteSessionManager(this, mKeyStoreManager, executors);
+            sessionManager.setTransport(nioTransport);
+            sessionManager.attachSessionListener(new AnymoteSessionManager.SessionListener() {
+                public void onSessionConnected(TvDevice device, AnymoteSender sender) {
+                }
+
+                public void onSessionDisconnected(TvDevice device) {
+                }
+
+                public void onSessionFailed(TvDevice device) {
+                }
+
+                public void onSecretRequired(TvDevice device, PinListener pinListener) {
+                    AnymoteClientService.this.onSecretRequired(pinListener);
+                }
+            });
+        }
+        return sessionManager;
+    }
+
     @Override
     public void onSecretRequired(PinListener pinListener) {
         for (PairingListener listener : pairingListeners) {
@@ -316,6 +572,16 @@ public class AnymoteClientService extends Service implements ConnectionListener
     @Override
     public void onConnectionFailed() {
         this.anymoteSender = null;
+        recordTimings();
+        if (autoConnecting) {
+            // The cached device answered but refused the connection: let the
+            // user pick a device instead.
+            autoConnecting = false;
+            stateMachine.moveTo(ConnectionState.DISCOVERING, null);
+            startPairingActivity();
+            return;
+        }
+        stateMachine.moveTo(ConnectionState.DISCONNECTED, null);
         for (ClientListener listener : clientListeners) {
             listener.onConnectionFailed();
         }
@@ -323,6 +589,7 @@ public class AnymoteClientService extends Service implements ConnectionListener
 
     @Override
     public void onConnectionPairing() {
+        stateMachine.moveTo(ConnectionState.PAIRING, null);
     }
 
 }
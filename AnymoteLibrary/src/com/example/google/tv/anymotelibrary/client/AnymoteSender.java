@@ -16,27 +16,38 @@ package com.example.google.tv.anymotelibrary.client;
 
 import com.google.anymote.Key.Action;
 import com.google.anymote.Key.Code;
-import com.google.anymote.Messages.DataItem;
 import com.google.anymote.Messages.DataList;
 import com.google.anymote.Messages.FlingResult;
 import com.google.anymote.common.AnymoteFactory;
 import com.google.anymote.common.ConnectInfo;
 import com.google.anymote.common.ErrorListener;
 import com.google.anymote.device.DeviceAdapter;
+import com.google.anymote.device.DeviceMessageAdapter;
 import com.google.anymote.device.MessageReceiver;
 
 import android.content.Intent;
-import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.example.google.tv.anymotelibrary.connection.AckManager;
 import com.example.google.tv.anymotelibrary.connection.AckManager.Listener;
+import com.example.google.tv.anymotelibrary.connection.AnymoteExecutors;
 import com.example.google.tv.anymotelibrary.connection.ConnectingTask;
+import com.example.google.tv.anymotelibrary.connection.NioSession;
 import com.example.google.tv.anymotelibrary.util.KeyEventTranslator;
 
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLSocket;
 
@@ -69,19 +80,140 @@ public final class AnymoteSender implements MessageReceiver {
     /** Remote device protocol version number */
     private int deviceVersion;
 
-    private MessageSenderThread mMessageSenderThread;
-
-    private static final int KEY = 1;
-    private static final int KEYPRESS = 2;
-    private static final int SCROLL = 3;
-    private static final int DATA = 4;
-    private static final int URL = 5;
-    private static final int CLICK = 6;
-    private static final int MOUSEMOVE = 7;
-    private static final int CONNECT = 8;
-    private static final int PING = 9;
-    
-    private class AnymoteKeyEvent {
+    /** Runs the connection threads. */
+    private final AnymoteExecutors executors;
+
+    /** Writes the events in order on the shared executors. */
+    private final MessageSender messageSender;
+
+    /**
+     * Maximum number of events kept while disconnected.
+     */
+    private static final int MAX_QUEUED_EVENTS = 64;
+
+    /**
+     * Age after which an event queued while disconnected is dropped.
+     */
+    private static final int MAX_QUEUED_EVENT_AGE_MS = 5 * 1000;
+
+    /**
+     * Number of messages waiting for the sender above which producers
+     * are asked to hold back their events.
+     */
+    private static final int BACKPRESSURE_THRESHOLD = 8;
+
+    /** Dispatches the data and fling results received from the TV. */
+    private final DataReceiver dataReceiver;
+
+    /** Events sent while there is no session to the Anymote service. */
+    private final OutboundEventQueue outboundQueue;
+
+    /** Number of messages posted to the sender, not yet handled. */
+    private final AtomicInteger pendingMessages;
+
+    /** {@code true} once the connect message has been sent on the session. */
+    private volatile boolean sessionStarted;
+
+    /**
+     * Number of bytes waiting to be written on a non-blocking session above
+     * which producers are asked to hold back their events.
+     */
+    private static final int BACKPRESSURE_BYTES = 4 * 1024;
+
+    /** Session of the non-blocking transport, or {@code null}. */
+    private volatile NioSession nioSession;
+
+    /** Told when the TV is late answering the pings, or {@code null}. */
+    private volatile HealthListener healthListener;
+
+    /** Records the latency of the events, or {@code null}. */
+    private volatile LatencyRecorder latencyRecorder;
+
+    /** Measures the time spent writing to the socket. */
+    private volatile TimingOutputStream timingStream;
+
+    /**
+     * Time after which a macro waiting for an acknowledgment is aborted.
+     */
+    private static final int MACRO_ACK_TIMEOUT_MS = 3 * 1000;
+
+    /** Callbacks of the pings written on the session, oldest first. */
+    private final ConcurrentLinkedQueue<PingCallback> outstandingPings =
+            new ConcurrentLinkedQueue<PingCallback>();
+
+    /** Drops the pings of the ended session, on the sender. */
+    private final Runnable dropPingsTask = new Runnable() {
+        public void run() {
+            dropOutstandingPings();
+        }
+    };
+
+    /** Macros waiting for the running one, accessed by the sender. */
+    private final LinkedList<MacroRunner> pendingMacros = new LinkedList<MacroRunner>();
+
+    /** Macro being executed, or {@code null}. */
+    private volatile MacroRunner activeMacro;
+
+    static final int KEY = 1;
+    static final int KEYPRESS = 2;
+    static final int SCROLL = 3;
+    static final int DATA = 4;
+    static final int URL = 5;
+    static final int CLICK = 6;
+    static final int MOUSEMOVE = 7;
+    static final int CONNECT = 8;
+    static final int PING = 9;
+
+    /**
+     * Flag set on the type of messages whose object is a {@link TimedEvent}.
+     */
+    private static final int TIMED = 0x100;
+
+    /**
+     * Receives the changes of the connection health, as measured by the pings.
+     * Methods are called on the ping thread.
+     */
+    public interface HealthListener {
+        /**
+         * Called when the TV is late answering the pings.
+         */
+        void onConnectionDegraded();
+
+        /**
+         * Called when the TV answers the pings again.
+         */
+        void onConnectionRecovered();
+    }
+
+    /**
+     * Told what became of a ping sent with {@link AnymoteSender#sendPing(PingCallback)}.
+     * The TV acknowledges the pings in order, so each ack is matched with the
+     * oldest ping written on the session.
+     */
+    public interface PingCallback {
+        /**
+         * Called on the receiving thread when the ping is acknowledged. Must
+         * not block.
+         */
+        void onAck();
+
+        /**
+         * Called on the sender when the ping was not sent as there is no
+         * session, or when the session ended before the ack.
+         */
+        void onDropped();
+    }
+
+    /** Stands for the pings sent without a callback. */
+    private static final PingCallback NO_CALLBACK = new PingCallback() {
+        public void onAck() {
+        }
+
+        public void onDropped() {
+        }
+    };
+
+    static class AnymoteKeyEvent {
         Code code;
         Action action;
  
@@ -91,13 +223,29 @@ public final class AnymoteSender implements MessageReceiver {
         }
     }
 
+    /**
+     * Event posted while latency is recorded, with its posting time.
+     */
+    private static final class TimedEvent {
+        final Object obj;
+        final long postTime;
+
+        TimedEvent(Object obj, long postTime) {
+            this.obj = obj;
+            this.postTime = postTime;
+        }
+    }
+
     /**
      * Constructor
      * 
-     * @param task The Thread that handles connectivity to the TV device.
+     * @param task The task that handles connectivity to the TV device.
+     * @param executors The executors writing the events and sending the
+     *            pings.
      */
-    public AnymoteSender(ConnectingTask task) {
+    public AnymoteSender(ConnectingTask task, AnymoteExecutors executors) {
         connectingTask = task;
+        this.executors = executors;
         errorListener = new ErrorListener() {
             public void onIoError(String message, Throwable exception) {
                 Log.d(LOG_TAG, "IoError: " + message, exception);
@@ -107,11 +255,32 @@ public final class AnymoteSender implements MessageReceiver {
         ackManager = new AckManager(new Listener() {
             public void onTimeout() {
                 ackManager.stop();
-                onConnectionError();
+                // Closing the session may block: keep it off the timer thread.
+                executors.getBlockingExecutor().execute(new Runnable() {
+                    public void run() {
+                        onConnectionError();
+                    }
+                });
             }
-        }, this);
-        mMessageSenderThread = new MessageSenderThread();
-        mMessageSenderThread.start();
+
+            public void onDegraded() {
+                HealthListener listener = healthListener;
+                if (listener != null) {
+                    listener.onConnectionDegraded();
+                }
+            }
+
+            public void onRecovered() {
+                HealthListener listener = healthListener;
+                if (listener != null) {
+                    listener.onConnectionRecovered();
+                }
+            }
+        }, this, executors.getScheduler());
+        outboundQueue = new OutboundEventQueue(MAX_QUEUED_EVENTS, MAX_QUEUED_EVENT_AGE_MS);
+        dataReceiver = new DataReceiver();
+        pendingMessages = new AtomicInteger();
+        messageSender = new MessageSender();
     }
 
     /**
@@ -127,12 +296,42 @@ public final class AnymoteSender implements MessageReceiver {
         return instantiateProtocol(sslSocket);
     }
 
+    /**
+     * Attempts to establish connection with the Anymote service on a session
+     * of the non-blocking transport, whose handshake is complete.
+     * 
+     * @param session TV device session.
+     * @return boolean indicating if connection to the session was successful.
+     */
+    public boolean attemptToConnect(final NioSession session) {
+        if (session == null) {
+            throw new NullPointerException("null session");
+        }
+        disconnect();
+
+        // Writes never block on this transport; the time spent writing is
+        // not measured.
+        timingStream = null;
+        DeviceMessageAdapter adapter = new DeviceMessageAdapter(this, session);
+        session.setMessageListener(adapter);
+        session.setErrorListener(errorListener);
+        nioSession = session;
+        deviceAdapter = adapter;
+
+        sendConnect();
+        ackManager.start();
+        return true;
+    }
+
     private boolean instantiateProtocol(SSLSocket sslSocket) {
         disconnect();
+        nioSession = null;
 
         try {
+            timingStream = new TimingOutputStream(sslSocket.getOutputStream());
+            timingStream.setEnabled(latencyRecorder != null);
             deviceAdapter = AnymoteFactory.getDeviceAdapter(
-                    this, sslSocket.getInputStream(), sslSocket.getOutputStream(), errorListener);
+                    this, sslSocket.getInputStream(), timingStream, errorListener);
         } catch (IOException e) {
             Log.d(LOG_TAG, "Unable to create sender", e);
             deviceAdapter = null;
@@ -151,7 +350,10 @@ public final class AnymoteSender implements MessageReceiver {
      */
     public synchronized boolean disconnect() {
 
+        sessionStarted = false;
         ackManager.stop();
+        messageSender.post(dropPingsTask);
+        dataReceiver.failPendingFlings();
         if (deviceAdapter != null) {
             deviceAdapter.stop();
             deviceAdapter = null;
@@ -165,7 +367,93 @@ public final class AnymoteSender implements MessageReceiver {
      */
     public void destroy() {
         disconnect();
-        ackManager.quit();
+        outboundQueue.clear();
+    }
+
+    /**
+     * Returns {@code true} if producers should hold back their events, either
+     * because the sender or the network lags behind or because there is no
+     * session to the Anymote service. Producers of relative events, such as pointer moves,
+     * should accumulate them locally and send the sum once this returns
+     * {@code false}.
+     *
+     * @return {@code true} if events should be held back.
+     */
+    public boolean isBackpressured() {
+        if (!sessionStarted || pendingMessages.get() >= BACKPRESSURE_THRESHOLD) {
+            return true;
+        }
+        // Writes on the non-blocking transport only queue up in the session.
+        NioSession session = nioSession;
+        return session != null && session.getPendingOutputBytes() >= BACKPRESSURE_BYTES;
+    }
+
+    /**
+     * @return number of events waiting for the connection to be re-established.
+     */
+    public int getQueuedEventCount() {
+        return outboundQueue.getDepth();
+    }
+
+    /**
+     * @return number of events dropped while disconnected, either because too
+     *         many events were queued or because they became too old.
+     */
+    public int getDroppedEventCount() {
+        return outboundQueue.getOverflowCount() + outboundQueue.getStaleCount();
+    }
+
+    /**
+     * @return number of pointer moves and scrolls merged while disconnected.
+     */
+    public int getCollapsedEventCount() {
+        return outboundQueue.getCollapsedCount();
+    }
+
+    /**
+     * Returns the round trip time to the Anymote service, measured by the
+     * connection pings.
+     *
+     * @return the round trip time in milliseconds, or -1 if unknown.
+     */
+    public long getRoundTripTime() {
+        return ackManager.getRoundTripTime();
+    }
+
+    /**
+     * Sets the listener told when the TV is late answering the pings.
+     *
+     * @param listener the listener, or {@code null}.
+     */
+    public void setHealthListener(HealthListener listener) {
+        healthListener = listener;
+    }
+
+    /**
+     * Starts or stops recording the latency of the events sent.
+     *
+     * @param recorder records the latencies, or {@code null} to stop.
+     */
+    public void setLatencyRecorder(LatencyRecorder recorder) {
+        latencyRecorder = recorder;
+        TimingOutputStream stream = timingStream;
+        if (stream != null) {
+            stream.setEnabled(recorder != null);
+        }
+    }
+
+    /**
+     * Posts a message to the sender.
+     *
+     * @param msg the message to send.
+     */
+    private void sendMessage(Message msg) {
+        if (latencyRecorder != null) {
+            msg.obj = new TimedEvent(msg.obj, System.nanoTime());
+            msg.what |= TIMED;
+        }
+        pendingMessages.incrementAndGet();
+        messageSender.post(msg);
     }
 
     private void onConnectionError() {
@@ -183,7 +471,7 @@ public final class AnymoteSender implements MessageReceiver {
         final Message msg = Message.obtain();
         msg.obj = action;
         msg.what = CLICK;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        sendMessage(msg);
     }
 
     /**
@@ -196,20 +484,51 @@ public final class AnymoteSender implements MessageReceiver {
         final Message msg = Message.obtain();
         msg.obj = url;
         msg.what = URL;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        sendMessage(msg);
     }
 
     /**
-     * Sends a sequence of keystrokes in String format to Anymote service.
-     * Example input: "AHDFSDF".
+     * Sends Url to Anymote service, and reports whether the TV could handle
+     * it.
      * 
-     * @param url
+     * @param url the URL.
+     * @param callback receives the result of the fling.
+     * @param executor executor calling the callback.
+     * @return the sequence number of the fling, passed to the callback.
+     */
+    public int sendUrl(final String url, DataReceiver.FlingCallback callback,
+            Executor executor) {
+        final Message msg = Message.obtain();
+        msg.obj = url;
+        msg.what = URL;
+        int sequenceNumber = dataReceiver.registerFling(callback, executor);
+        msg.arg1 = sequenceNumber;
+        // The message is recycled once sent.
+        sendMessage(msg);
+        return sequenceNumber;
+    }
+
+    /**
+     * Returns the dispatcher of the data pushed by the TV. Register a handler
+     * on it to receive a type of data.
+     * 
+     * @return the data receiver.
+     */
+    public DataReceiver getDataReceiver() {
+        return dataReceiver;
+    }
+
+    /**
+     * Sends a sequence of keystrokes in String format to Anymote service, in
+     * a single message. Example input: "AHDFSDF".
+     * 
+     * @param data the text to type.
      */
     public void sendData(final String data) {
         final Message msg = Message.obtain();
         msg.obj = data;
-        msg.what = URL;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        msg.what = DATA;
+        sendMessage(msg);
     }
 
     /**
@@ -241,7 +560,7 @@ public final class AnymoteSender implements MessageReceiver {
         final Message msg = Message.obtain();
         msg.obj = new AnymoteKeyEvent(keycode, action);
         msg.what = KEY;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        sendMessage(msg);
     }
 
     /**
@@ -253,7 +572,7 @@ public final class AnymoteSender implements MessageReceiver {
         final Message msg = Message.obtain();
         msg.obj = key;
         msg.what = KEYPRESS;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        sendMessage(msg);
     }
 
     /**
@@ -269,7 +588,7 @@ public final class AnymoteSender implements MessageReceiver {
         msg.arg1 = deltaX;
         msg.arg2 = deltaY;
         msg.what = MOUSEMOVE;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        sendMessage(msg);
     }
 
     /**
@@ -285,90 +604,426 @@ public final class AnymoteSender implements MessageReceiver {
         msg.arg1 = deltaX;
         msg.arg2 = deltaY;
         msg.what = SCROLL;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        sendMessage(msg);
     }
 
     /**
      * Sends ping to Anymote service to monitor connection state.
      */
     public void sendPing() {
+        sendPing(null);
+    }
+
+    /**
+     * Sends ping to Anymote service, and tells the callback about its ack.
+     * 
+     * @param callback told when the ping is acknowledged or dropped, or
+     *            {@code null}.
+     */
+    public void sendPing(PingCallback callback) {
         final Message msg = Message.obtain();
         msg.what = PING;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        msg.obj = callback;
+        sendMessage(msg);
+    }
+
+    /**
+     * Tells the callbacks of the pings not acknowledged yet that they are
+     * dropped. Called on the sender when the session ends or restarts.
+     */
+    private void dropOutstandingPings() {
+        PingCallback callback;
+        while ((callback = outstandingPings.poll()) != null) {
+            callback.onDropped();
+        }
+    }
+
+    /**
+     * Sends a macro. Its steps are sent at protocol speed, only paused by its
+     * delays and acknowledgment waits. Macros sent while another one runs are
+     * executed after it.
+     * 
+     * @param macro the macro to execute.
+     */
+    public void sendMacro(final Macro macro) {
+        messageSender.post(new Runnable() {
+            public void run() {
+                pendingMacros.addLast(new MacroRunner(macro));
+                if (activeMacro == null) {
+                    startNextMacro();
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the running macro and the macros waiting for it. Steps already
+     * sent are not undone.
+     */
+    public void cancelMacros() {
+        messageSender.postAtFrontOfQueue(new Runnable() {
+            public void run() {
+                pendingMacros.clear();
+                MacroRunner runner = activeMacro;
+                if (runner != null) {
+                    runner.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the next pending macro, on the sender.
+     */
+    private void startNextMacro() {
+        activeMacro = pendingMacros.poll();
+        if (activeMacro != null) {
+            activeMacro.run();
+        }
+    }
+
+    /**
+     * Executes the steps of a macro on the sender. The steps are posted as
+     * regular messages, so they are sent in order with the other events.
+     */
+    private final class MacroRunner implements Runnable {
+        private final Macro macro;
+        private final List<Macro.Step> steps;
+        private int index;
+
+        /** {@code true} once stopped; runnables still queued then do nothing. */
+        private boolean finished;
+
+        /** The end of the running delay step, or {@code null}. */
+        private ScheduledFuture<?> delay;
+
+        /** The timeout of the ack wait, or {@code null}. */
+        private ScheduledFuture<?> timeout;
+
+        /** The ack wait in progress, or {@code null}. */
+        private AckGate gate;
+
+        private final Runnable ackTimeout = new Runnable() {
+            public void run() {
+                if (gate != null) {
+                    Log.w(LOG_TAG, "Macro " + macro.getName() + " aborted: no ack");
+                    finish();
+                }
+            }
+        };
+
+        /**
+         * Waits for the ack of a single ping. The steps after it only run
+         * once that ping is acknowledged on a live session.
+         */
+        private final class AckGate implements PingCallback {
+            private final Runnable opened = new Runnable() {
+                public void run() {
+                    if (gate == AckGate.this && !finished) {
+                        gate = null;
+                        cancelTimers();
+                        MacroRunner.this.run();
+                    }
+                }
+            };
+
+            public void onAck() {
+                messageSender.post(opened);
+            }
+
+            public void onDropped() {
+                // Already on the sender.
+                if (gate == this && !finished) {
+                    Log.w(LOG_TAG, "Macro " + macro.getName() + " aborted: no session");
+                    finish();
+                }
+            }
+        }
+
+        MacroRunner(Macro macro) {
+            this.macro = macro;
+            this.steps = macro.getSteps();
+        }
+
+        public void run() {
+            if (finished) {
+                return;
+            }
+            delay = null;
+            while (index < steps.size()) {
+                Macro.Step step = steps.get(index++);
+                switch (step.type) {
+                    case ACTION:
+                        step.action.execute(AnymoteSender.this);
+                        break;
+                    case KEY:
+                        sendKeyPress(step.code);
+                        break;
+                    case URL:
+                        sendUrl(step.url);
+                        break;
+                    case DELAY:
+                        delay = messageSender.postDelayed(this, step.delayMs);
+                        return;
+                    case ACK:
+                        gate = new AckGate();
+                        timeout = messageSender.postDelayed(ackTimeout, MACRO_ACK_TIMEOUT_MS);
+                        sendPing(gate);
+                        return;
+                }
+            }
+            finish();
+        }
+
+        /**
+         * Stops the macro and starts the next one.
+         */
+        void finish() {
+            finished = true;
+            gate = null;
+            cancelTimers();
+            if (activeMacro == this) {
+                startNextMacro();
+            }
+        }
+
+        private void cancelTimers() {
+            if (delay != null) {
+                delay.cancel(false);
+                delay = null;
+            }
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+        }
     }
 
     private void sendConnect() {
         final Message msg = Message.obtain();
         msg.what = CONNECT;
         msg.obj = new ConnectInfo(DEVICE_NAME, connectingTask.getVersionCode());
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        sendMessage(msg);
     }
 
-    private class MessageSenderThread extends Thread {
-        public Handler mHandler;
+    /**
+     * Serial executor of the messages of this sender. The messages are handled
+     * one at a time, in order, on a shared executor, so a sender holds no
+     * thread while idle: the task executor while the sender writes to a
+     * non-blocking session, the blocking executor otherwise, since a write to
+     * a blocking socket stalls as long as the TV does not read. Runnables are
+     * posted as message callbacks.
+     */
+    private final class MessageSender implements Runnable, OutboundEventQueue.EventSink {
+        /**
+         * Number of messages handled before the thread is handed over to
+         * the other tasks.
+         */
+        private static final int BATCH_SIZE = 64;
 
-        public void run() {
-            Looper.prepare();
+        /**
+         * Delay before trying again to run a sender its executor rejected, in
+         * milliseconds.
+         */
+        private static final int RESUME_RETRY_DELAY_MS = 50;
+
+        private final LinkedBlockingDeque<Message> messages = new LinkedBlockingDeque<Message>();
+
+        private final Runnable resumeTask = new Runnable() {
+            public void run() {
+                resume();
+            }
+        };
+
+        /** {@code true} while this sender is queued or running on the executor. */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void post(Message msg) {
+            messages.offer(msg);
+            schedule();
+        }
+
+        void post(Runnable runnable) {
+            post(Message.obtain(null, runnable));
+        }
+
+        void postAtFrontOfQueue(Runnable runnable) {
+            messages.offerFirst(Message.obtain(null, runnable));
+            schedule();
+        }
+
+        ScheduledFuture<?> postDelayed(final Runnable runnable, long delayMs) {
+            return executors.getScheduler().schedule(new Runnable() {
+                public void run() {
+                    post(runnable);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                resume();
+            }
+        }
+
+        /**
+         * Runs this sender on the executor matching the current transport. If
+         * the executor is saturated, the messages stay queued and the sender
+         * tries again later: producers never see the rejection.
+         */
+        private void resume() {
+            Executor executor = nioSession != null
+                    ? executors.getTaskExecutor() : executors.getBlockingExecutor();
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                Log.w(LOG_TAG, "Executor saturated, sending later");
+                // Still scheduled, so posts do not retry on their own.
+                executors.getScheduler().schedule(resumeTask, RESUME_RETRY_DELAY_MS,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
 
-            mHandler = new Handler() {
-                public void handleMessage(Message msg) {
-                    if (deviceAdapter == null)
+        public void run() {
+            for (int i = 0; i < BATCH_SIZE; ++i) {
+                Message msg = messages.poll();
+                if (msg == null) {
+                    scheduled.set(false);
+                    // A message may have been posted before the flag was
+                    // cleared, without scheduling this sender.
+                    if (messages.isEmpty() || !scheduled.compareAndSet(false, true)) {
                         return;
-                    switch (msg.what) {
-                        case KEYPRESS:
-                            deviceAdapter.sendKeyEvent((Code) msg.obj, Action.DOWN);
-                            deviceAdapter.sendKeyEvent((Code) msg.obj, Action.UP);
-                            break;
-                        case MOUSEMOVE:
-                            deviceAdapter.sendMouseMove(msg.arg1, msg.arg2);
-                            break;
-                        case CLICK:
-                            deviceAdapter.sendKeyEvent(Code.BTN_MOUSE, (Action) msg.obj);
-                            break;
-                        case URL:
-                            deviceAdapter.sendFling((String)msg.obj, 0);
-                            break;
-                        case DATA:
-                            deviceAdapter.sendData(DATA_TYPE_STRING, (String)msg.obj);
-                            break;
-                        case KEY:
-                            final AnymoteKeyEvent keyEvent = (AnymoteKeyEvent)msg.obj;
-                            deviceAdapter.sendKeyEvent(keyEvent.code, keyEvent.action);
-                            break;
-                        case SCROLL:
-                            deviceAdapter.sendMouseWheel(msg.arg1, msg.arg2);
-                            break;
-                        case PING:
-                            deviceAdapter.sendPing();
-                            break;
-                        case CONNECT:
-                            deviceAdapter.sendConnect((ConnectInfo)msg.obj);
                     }
+                    continue;
                 }
-            };
+                try {
+                    Runnable callback = msg.getCallback();
+                    if (callback != null) {
+                        callback.run();
+                    } else {
+                        handleMessage(msg);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to handle message " + msg.what, e);
+                }
+                msg.recycle();
+            }
+            resume();
+        }
+
+        private void handleMessage(Message msg) {
+            pendingMessages.decrementAndGet();
+            long postTime = 0;
+            if ((msg.what & TIMED) != 0) {
+                TimedEvent timedEvent = (TimedEvent) msg.obj;
+                msg.what &= ~TIMED;
+                msg.obj = timedEvent.obj;
+                postTime = timedEvent.postTime;
+            }
+            if (msg.what == CONNECT) {
+                if (deviceAdapter != null) {
+                    deviceAdapter.sendConnect((ConnectInfo) msg.obj);
+                    dropOutstandingPings();
+                    sessionStarted = true;
+                    flushQueue();
+                }
+                return;
+            }
+            if (deviceAdapter == null || !sessionStarted) {
+                // Pings only make sense on a live session.
+                if (msg.what != PING) {
+                    outboundQueue.offer(msg.what, msg.arg1, msg.arg2, msg.obj,
+                            SystemClock.uptimeMillis());
+                } else if (msg.obj != null) {
+                    ((PingCallback) msg.obj).onDropped();
+                }
+                return;
+            }
+            LatencyRecorder recorder = latencyRecorder;
+            if (recorder == null || postTime == 0) {
+                onEvent(msg.what, msg.arg1, msg.arg2, msg.obj);
+                return;
+            }
+            TimingOutputStream stream = timingStream;
+            long startTime = System.nanoTime();
+            long writeNanos = stream != null ? stream.getWriteNanos() : 0;
+            onEvent(msg.what, msg.arg1, msg.arg2, msg.obj);
+            recorder.onEventSent(postTime, startTime, System.nanoTime(),
+                    stream != null ? stream.getWriteNanos() - writeNanos : 0);
+        }
 
-            Looper.loop();
+        /**
+         * Sends the events queued while disconnected.
+         */
+        private void flushQueue() {
+            int queued = outboundQueue.getDepth();
+            if (queued > 0) {
+                int sent = outboundQueue.drainTo(this, SystemClock.uptimeMillis());
+                Log.d(LOG_TAG, "Flushed " + sent + " of " + queued + " queued events");
+            }
+        }
+
+        public void onEvent(int what, int arg1, int arg2, Object obj) {
+            final DeviceAdapter adapter = deviceAdapter;
+            if (adapter == null) {
+                return;
+            }
+            switch (what) {
+                case KEYPRESS:
+                    adapter.sendKeyEvent((Code) obj, Action.DOWN);
+                    adapter.sendKeyEvent((Code) obj, Action.UP);
+                    break;
+                case MOUSEMOVE:
+                    adapter.sendMouseMove(arg1, arg2);
+                    break;
+                case CLICK:
+                    adapter.sendKeyEvent(Code.BTN_MOUSE, (Action) obj);
+                    break;
+                case URL:
+                    adapter.sendFling((String) obj, arg1);
+                    break;
+                case DATA:
+                    adapter.sendData(DATA_TYPE_STRING, (String) obj);
+                    break;
+                case KEY:
+                    final AnymoteKeyEvent keyEvent = (AnymoteKeyEvent) obj;
+                    adapter.sendKeyEvent(keyEvent.code, keyEvent.action);
+                    break;
+                case SCROLL:
+                    adapter.sendMouseWheel(arg1, arg2);
+                    break;
+                case PING:
+                    // Recorded first, as the ack may come back before the
+                    // write returns.
+                    outstandingPings.offer(obj != null ? (PingCallback) obj : NO_CALLBACK);
+                    adapter.sendPing();
+                    LatencyRecorder recorder = latencyRecorder;
+                    if (recorder != null) {
+                        recorder.onPingSent(System.nanoTime());
+                    }
+                    break;
+            }
         }
     }
 
     public void onAck() {
+        LatencyRecorder recorder = latencyRecorder;
+        if (recorder != null) {
+            recorder.onAck(System.nanoTime());
+        }
+        PingCallback callback = outstandingPings.poll();
+        if (callback != null) {
+            callback.onAck();
+        }
         ackManager.onAck();
     }
 
     public void onData(String type, String data) {
-        Log.d(LOG_TAG, "onData: " + type + " / " + data);
+        dataReceiver.onData(type, data);
     }
 
     public void onDataList(DataList dataList) {
-        Log.d(LOG_TAG, "onDataList: " + dataList.getType());
-        for (DataItem dataItem : dataList.getItemList()) {
-            for (String string : dataItem.getStringFieldList()) {
-                Log.d(LOG_TAG, " data item [string]: " + string);
-            }
-            for (int i : dataItem.getIntFieldList()) {
-                Log.d(LOG_TAG, " data item [int]: " + i);
-            }
-        }
+        dataReceiver.onDataList(dataList);
     }
 
     /**
@@ -385,6 +1040,6 @@ public final class AnymoteSender implements MessageReceiver {
     }
 
     public void onFlingResult(FlingResult flingResult, Integer sequenceNumber) {
-        Log.d(LOG_TAG, "onFlingResult: " + sequenceNumber);
+        dataReceiver.onFlingResult(flingResult, sequenceNumber);
     }
 }
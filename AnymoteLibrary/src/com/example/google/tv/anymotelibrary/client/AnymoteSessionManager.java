@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.google.anymote.Key.Code;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.example.google.tv.anymotelibrary.connection.AnymoteExecutors;
+import com.example.google.tv.anymotelibrary.connection.ConnectingTask;
+import com.example.google.tv.anymotelibrary.connection.ConnectingTask.ConnectionListener;
+import com.example.google.tv.anymotelibrary.connection.KeyStoreManager;
+import com.example.google.tv.anymotelibrary.connection.NioTransport;
+import com.example.google.tv.anymotelibrary.connection.PairingPINDialogBuilder.PinListener;
+import com.example.google.tv.anymotelibrary.connection.TvDevice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps concurrent Anymote sessions to several Google TV devices. Every
+ * session has its own {@link AnymoteSender}, hence its own send queue and
+ * serial sender, so a slow device never stalls the others.
+ * <p>
+ * Devices can be put in named groups; events sent to a group are fanned out
+ * to every connected device of the group.
+ * <p>
+ * Sessions and groups identify devices by their endpoint, address and port,
+ * since identical devices may advertise the same name.
+ */
+public final class AnymoteSessionManager {
+
+    private static final String LOG_TAG = "AnymoteSessionManager";
+
+    /**
+     * Receives the state changes of the sessions.
+     */
+    public interface SessionListener {
+        /**
+         * Called when a session to a device has been established.
+         *
+         * @param device the connected device.
+         * @param anymoteSender the proxy to send Anymote messages to the
+         *            device.
+         */
+        void onSessionConnected(TvDevice device, AnymoteSender anymoteSender);
+
+        /**
+         * Called when an established session has been lost.
+         *
+         * @param device the disconnected device.
+         */
+        void onSessionDisconnected(TvDevice device);
+
+        /**
+         * Called when a session could not be established.
+         *
+         * @param device the device that could not be reached.
+         */
+        void onSessionFailed(TvDevice device);
+
+        /**
+         * Called when a device requires the pairing secret to be entered.
+         *
+         * @param device the device being paired.
+         * @param pinListener receives the secret entered by the user.
+         */
+        void onSecretRequired(TvDevice device, PinListener pinListener);
+    }
+
+    private final Context context;
+    private final KeyStoreManager keyStoreManager;
+    private final AnymoteExecutors executors;
+    private volatile NioTransport transport;
+    private final Map<String, Session> sessions;
+    private final Map<String, Set<String>> groups;
+    private final List<SessionListener> listeners;
+
+    /**
+     * Constructor.
+     *
+     * @param context context used to establish the connections.
+     * @param keyStoreManager key store manager holding the certificates.
+     * @param executors the executors running the connections.
+     */
+    public AnymoteSessionManager(Context context, KeyStoreManager keyStoreManager,
+            AnymoteExecutors executors) {
+        this.context = context;
+        this.keyStoreManager = keyStoreManager;
+        this.executors = executors;
+        sessions = new HashMap<String, Session>();
+        groups = new HashMap<String, Set<String>>();
+        listeners = new ArrayList<SessionListener>();
+    }
+
+    /**
+     * Makes the sessions opened from now on use a non-blocking transport,
+     * which multiplexes them on a single thread.
+     *
+     * @param transport the transport, or {@code null} for a blocking socket
+     *            per session.
+     */
+    public void setTransport(NioTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Opens a session to the device, unless one is already open or being
+     * established.
+     *
+     * @param device the device to connect to.
+     * @return {@code true} if a session to the device was already open.
+     */
+    public synchronized boolean open(TvDevice device) {
+        if (sessions.containsKey(device.getEndpoint())) {
+            return true;
+        }
+        Session session = new Session(device);
+        sessions.put(session.endpoint, session);
+        session.task.start();
+        return false;
+    }
+
+    /**
+     * Closes the session to the device.
+     *
+     * @param device the device to disconnect from.
+     */
+    public synchronized void close(TvDevice device) {
+        Session session = sessions.remove(device.getEndpoint());
+        if (session != null) {
+            session.task.cancel();
+        }
+    }
+
+    /**
+     * Closes all sessions.
+     */
+    public synchronized void closeAll() {
+        for (Session session : sessions.values()) {
+            session.task.cancel();
+        }
+        sessions.clear();
+    }
+
+    /**
+     * Returns the sender of an established session.
+     *
+     * @param device the connected device.
+     * @return the sender, or {@code null} if the device is not connected.
+     */
+    public synchronized AnymoteSender getSender(TvDevice device) {
+        Session session = sessions.get(device.getEndpoint());
+        return session != null ? session.sender : null;
+    }
+
+    /**
+     * @return devices to which a session is established.
+     */
+    public synchronized List<TvDevice> getConnectedDevices() {
+        List<TvDevice> devices = new ArrayList<TvDevice>();
+        for (Session session : sessions.values()) {
+            if (session.sender != null) {
+                devices.add(session.device);
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * Adds a device to a group. The group is created if needed.
+     *
+     * @param group name of the group.
+     * @param device the device to add.
+     */
+    public synchronized void addToGroup(String group, TvDevice device) {
+        Set<String> members = groups.get(group);
+        if (members == null) {
+            members = new HashSet<String>();
+            groups.put(group, members);
+        }
+        members.add(device.getEndpoint());
+    }
+
+    /**
+     * Removes a device from a group.
+     *
+     * @param group name of the group.
+     * @param device the device to remove.
+     */
+    public synchronized void removeFromGroup(String group, TvDevice device) {
+        Set<String> members = groups.get(group);
+        if (members != null) {
+            members.remove(device.getEndpoint());
+            if (members.isEmpty()) {
+                groups.remove(group);
+            }
+        }
+    }
+
+    /**
+     * Sends a key press to every connected device of a group.
+     *
+     * @param group name of the group.
+     * @param key code of the key to press.
+     */
+    public void sendKeyPress(String group, Code key) {
+        for (AnymoteSender sender : getGroupSenders(group)) {
+            sender.sendKeyPress(key);
+        }
+    }
+
+    /**
+     * Sends an Intent to every connected device of a group.
+     *
+     * @param group name of the group.
+     * @param intent the Intent to send.
+     */
+    public void sendIntent(String group, Intent intent) {
+        // Serialize once for the whole group.
+        String url = intent.toUri(Intent.URI_INTENT_SCHEME);
+        for (AnymoteSender sender : getGroupSenders(group)) {
+            sender.sendUrl(url);
+        }
+    }
+
+    /**
+     * Sends a key press to every connected device.
+     *
+     * @param key code of the key to press.
+     */
+    public void sendKeyPressToAll(Code key) {
+        for (AnymoteSender sender : getAllSenders()) {
+            sender.sendKeyPress(key);
+        }
+    }
+
+    /**
+     * Adds a session listener.
+     *
+     * @param listener session listener.
+     */
+    public synchronized void attachSessionListener(SessionListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a session listener.
+     *
+     * @param listener session listener.
+     */
+    public synchronized void detachSessionListener(SessionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the senders of the connected devices of a group. The senders
+     * are collected under the lock and used outside of it, since posting to
+     * a sender never blocks.
+     */
+    private synchronized List<AnymoteSender> getGroupSenders(String group) {
+        List<AnymoteSender> senders = new ArrayList<AnymoteSender>();
+        Set<String> members = groups.get(group);
+        if (members != null) {
+            for (String endpoint : members) {
+                Session session = sessions.get(endpoint);
+                if (session != null && session.sender != null) {
+                    senders.add(session.sender);
+                }
+            }
+        }
+        return senders;
+    }
+
+    private synchronized List<AnymoteSender> getAllSenders() {
+        List<AnymoteSender> senders = new ArrayList<AnymoteSender>();
+        for (Session session : sessions.values()) {
+            if (session.sender != null) {
+                senders.add(session.sender);
+            }
+        }
+        return senders;
+    }
+
+    private synchronized List<SessionListener> getListeners() {
+        return new ArrayList<SessionListener>(listeners);
+    }
+
+    /**
+     * A session to a single device.
+     */
+    private final class Session implements ConnectionListener {
+        private final TvDevice device;
+        private final String endpoint;
+        private final ConnectingTask task;
+        private AnymoteSender sender;
+
+        Session(TvDevice device) {
+            this.device = device;
+            endpoint = device.getEndpoint();
+            task = new ConnectingTask(device, keyStoreManager, context, executors);
+            task.setConnectionListener(this);
+            task.setTransport(transport);
+        }
+
+        /**
+         * @return {@code true} if this session is still the one registered
+         *         for its device.
+         */
+        private boolean isCurrent() {
+            return sessions.get(endpoint) == this;
+        }
+
+        public void onConnected(TvDevice device, AnymoteSender anymoteProxy) {
+            synchronized (AnymoteSessionManager.this) {
+                if (!isCurrent()) {
+                    return;
+                }
+                sender = anymoteProxy;
+            }
+            Log.i(LOG_TAG, "Session connected: " + device);
+            for (SessionListener listener : getListeners()) {
+                listener.onSessionConnected(device, anymoteProxy);
+            }
+        }
+
+        public void onConnectionFailed() {
+            synchronized (AnymoteSessionManager.this) {
+                if (!isCurrent()) {
+                    return;
+                }
+                sessions.remove(endpoint);
+            }
+            Log.i(LOG_TAG, "Session failed: " + device);
+            for (SessionListener listener : getListeners()) {
+                listener.onSessionFailed(device);
+            }
+        }
+
+        public void onSecretRequired(PinListener pinListener) {
+            for (SessionListener listener : getListeners()) {
+                listener.onSecretRequired(device, pinListener);
+            }
+        }
+
+        public void onConnectionPairing() {
+        }
+
+        public void onConnectionDisconnected() {
+            synchronized (AnymoteSessionManager.this) {
+                if (!isCurrent()) {
+                    return;
+                }
+                sessions.remove(endpoint);
+            }
+            Log.i(LOG_TAG, "Session disconnected: " + device);
+            for (SessionListener listener : getListeners()) {
+                listener.onSessionDisconnected(device);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.google.anymote.Messages.DataItem;
+import com.google.anymote.Messages.DataList;
+import com.google.anymote.Messages.FlingResult;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches the data pushed by the TV to the handlers registered for its
+ * type, and the results of the flings to the callbacks of the flings.
+ * <p>
+ * Data lists are decoded into {@link Item}s on the receive thread; handlers
+ * are called on the executor they were registered with.
+ */
+public final class DataReceiver {
+
+    private static final String LOG_TAG = "DataReceiver";
+
+    /**
+     * Executor running tasks on the main thread.
+     */
+    public static final Executor MAIN_THREAD = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    /**
+     * Receives the data of a type.
+     */
+    public interface DataHandler {
+        /**
+         * Called when the TV sends a string.
+         *
+         * @param type type of the data.
+         * @param data the string.
+         */
+        void onData(String type, String data);
+
+        /**
+         * Called when the TV sends a list of items.
+         *
+         * @param type type of the data.
+         * @param items the decoded items.
+         */
+        void onDataList(String type, List<Item> items);
+    }
+
+    /**
+     * Receives the result of a fling.
+     */
+    public interface FlingCallback {
+        /**
+         * Called when the TV has handled the fling, or when the connection
+         * was lost before.
+         *
+         * @param sequenceNumber sequence number of the fling.
+         * @param success {@code true} if the TV could handle the fling.
+         */
+        void onFlingResult(int sequenceNumber, boolean success);
+    }
+
+    /**
+     * A decoded item of a data list.
+     */
+    public static final class Item {
+        /** String fields of the item. */
+        public final String[] strings;
+        /** Integer fields of the item. */
+        public final int[] ints;
+        /** Binary fields of the item. */
+        public final byte[][] bytes;
+
+        Item(DataItem item) {
+            strings = item.getStringFieldList().toArray(new String[item.getStringFieldCount()]);
+            ints = new int[item.getIntFieldCount()];
+            for (int i = 0; i < ints.length; ++i) {
+                ints[i] = item.getIntField(i);
+            }
+            bytes = new byte[item.getBytesFieldCount()][];
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = item.getBytesField(i).toByteArray();
+            }
+        }
+    }
+
+    /**
+     * A handler and its executor.
+     */
+    private static final class Registration<T> {
+        final T listener;
+        final Executor executor;
+
+        Registration(T listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private final Map<String, List<Registration<DataHandler>>> handlers;
+    private final Map<Integer, Registration<FlingCallback>> pendingFlings;
+
+    /**
+     * Last sequence number given to a fling; 0 is used by flings without a
+     * callback.
+     */
+    private final AtomicInteger flingSequence;
+
+    DataReceiver() {
+        handlers = new ConcurrentHashMap<String, List<Registration<DataHandler>>>();
+        pendingFlings = new ConcurrentHashMap<Integer, Registration<FlingCallback>>();
+        flingSequence = new AtomicInteger();
+    }
+
+    /**
+     * Registers a handler for a type of data.
+     *
+     * @param type type of the data.
+     * @param handler the handler.
+     * @param executor executor calling the handler.
+     */
+    public synchronized void registerHandler(String type, DataHandler handler,
+            Executor executor) {
+        List<Registration<DataHandler>> registrations = handlers.get(type);
+        if (registrations == null) {
+            registrations = new CopyOnWriteArrayList<Registration<DataHandler>>();
+            handlers.put(type, registrations);
+        }
+        registrations.add(new Registration<DataHandler>(handler, executor));
+    }
+
+    /**
+     * Unregisters a handler from a type of data.
+     *
+     * @param type type of the data.
+     * @param handler the handler.
+     */
+    public synchronized void unregisterHandler(String type, DataHandler handler) {
+        List<Registration<DataHandler>> registrations = handlers.get(type);
+        if (registrations == null) {
+            return;
+        }
+        for (Registration<DataHandler> registration : registrations) {
+            if (registration.listener == handler) {
+                registrations.remove(registration);
+            }
+        }
+        if (registrations.isEmpty()) {
+            handlers.remove(type);
+        }
+    }
+
+    /**
+     * Allocates the sequence number of a fling, and remembers its callback.
+     *
+     * @param callback the callback, or {@code null}.
+     * @param executor executor calling the callback.
+     * @return the sequence number to send with the fling.
+     */
+    int registerFling(FlingCallback callback, Executor executor) {
+        if (callback == null) {
+            return 0;
+        }
+        int sequenceNumber;
+        do {
+            sequenceNumber = flingSequence.incrementAndGet();
+        } while (sequenceNumber == 0);
+        pendingFlings.put(sequenceNumber,
+                new Registration<FlingCallback>(callback, executor));
+        return sequenceNumber;
+    }
+
+    void onData(final String type, final String data) {
+        List<Registration<DataHandler>> registrations = handlers.get(type);
+        if (registrations == null) {
+            Log.d(LOG_TAG, "No handler for data " + type);
+            return;
+        }
+        for (final Registration<DataHandler> registration : registrations) {
+            registration.executor.execute(new Runnable() {
+                public void run() {
+                    registration.listener.onData(type, data);
+                }
+            });
+        }
+    }
+
+    void onDataList(DataList dataList) {
+        final String type = dataList.getType();
+        List<Registration<DataHandler>> registrations = handlers.get(type);
+        if (registrations == null) {
+            Log.d(LOG_TAG, "No handler for data list " + type);
+            return;
+        }
+        List<Item> decoded = new ArrayList<Item>(dataList.getItemCount());
+        for (DataItem dataItem : dataList.getItemList()) {
+            decoded.add(new Item(dataItem));
+        }
+        final List<Item> items = Collections.unmodifiableList(decoded);
+        for (final Registration<DataHandler> registration : registrations) {
+            registration.executor.execute(new Runnable() {
+                public void run() {
+                    registration.listener.onDataList(type, items);
+                }
+            });
+        }
+    }
+
+    void onFlingResult(FlingResult flingResult, Integer sequenceNumber) {
+        if (sequenceNumber == null) {
+            return;
+        }
+        Registration<FlingCallback> registration = pendingFlings.remove(sequenceNumber);
+        if (registration != null) {
+            boolean success = flingResult.hasResult()
+                    && flingResult.getResult() == FlingResult.Result.SUCCESS;
+            deliverFlingResult(registration, sequenceNumber, success);
+        }
+    }
+
+    /**
+     * Fails the flings still waiting for their result, e.g. when the
+     * connection is lost.
+     */
+    void failPendingFlings() {
+        for (Iterator<Map.Entry<Integer, Registration<FlingCallback>>> it =
+                pendingFlings.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, Registration<FlingCallback>> entry = it.next();
+            it.remove();
+            deliverFlingResult(entry.getValue(), entry.getKey(), false);
+        }
+    }
+
+    private static void deliverFlingResult(final Registration<FlingCallback> registration,
+            final int sequenceNumber, final boolean success) {
+        registration.executor.execute(new Runnable() {
+            public void run() {
+                registration.listener.onFlingResult(sequenceNumber, success);
+            }
+        });
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import android.content.res.Resources;
+import android.os.Handler;
+
+import com.example.google.tv.anymotelibrary.R;
+
+/**
+ * Keeps scrolling after the finger is lifted, as a list would on the phone.
+ * <p>
+ * The scroll velocity is tracked while the finger moves. When the finger is
+ * lifted fast enough, the scroller sends a stream of scroll deltas at a fixed
+ * tick, with an exponentially decaying velocity, until it is cancelled by the
+ * next touch or the velocity becomes negligible. Ticks are merged while the
+ * sender is backpressured.
+ */
+final class FlingScroller {
+
+    /**
+     * Weight of a new movement in the velocity estimate.
+     */
+    private static final float VELOCITY_SMOOTHING = 0.4f;
+
+    /**
+     * Time without movement after which the finger is considered stopped.
+     */
+    private static final long MAX_IDLE_MS = 100;
+
+    /**
+     * Velocity below which the fling stops, in units per millisecond.
+     */
+    private static final float STOP_VELOCITY = 0.02f;
+
+    private final Handler handler;
+    private final AnymoteSender anymoteSender;
+    private final long tickMs;
+    private final float minVelocity;
+
+    /**
+     * Factor applied to the velocity at each tick.
+     */
+    private final float decay;
+
+    /**
+     * Velocity, in scroll units per millisecond.
+     */
+    private float velocityX, velocityY;
+    private long lastTimestamp;
+
+    /**
+     * Scroll not sent yet, including the fractional part of the ticks.
+     */
+    private float remainderX, remainderY;
+
+    private boolean running;
+
+    private final Runnable tick = new Runnable() {
+        public void run() {
+            onTick();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param handler handler of the thread running the fling.
+     * @param anymoteSender sends the scroll events.
+     * @param tickMs interval between two scroll events.
+     * @param timeConstantMs time after which the velocity has decreased by a
+     *            factor e.
+     * @param minVelocity velocity under which lifting the finger does not
+     *            fling, in scroll units per second.
+     */
+    FlingScroller(Handler handler, AnymoteSender anymoteSender, long tickMs,
+            long timeConstantMs, float minVelocity) {
+        this.handler = handler;
+        this.anymoteSender = anymoteSender;
+        this.tickMs = tickMs;
+        this.minVelocity = minVelocity / 1000;
+        this.decay = (float) Math.exp(-(double) tickMs / timeConstantMs);
+    }
+
+    /**
+     * Creates a scroller configured from the library resources.
+     *
+     * @param resources the resources.
+     * @param handler handler of the thread running the fling.
+     * @param anymoteSender sends the scroll events.
+     * @return the scroller.
+     */
+    static FlingScroller fromResources(Resources resources, Handler handler,
+            AnymoteSender anymoteSender) {
+        return new FlingScroller(handler, anymoteSender,
+                resources.getInteger(R.integer.fling_tick),
+                resources.getInteger(R.integer.fling_time_constant),
+                resources.getInteger(R.integer.fling_min_velocity));
+    }
+
+    /**
+     * Starts tracking a new scroll. Stops the fling in progress, if any.
+     *
+     * @param timestamp time of the touch down, in milliseconds.
+     */
+    void reset(long timestamp) {
+        cancel();
+        velocityX = velocityY = 0;
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * Adds a scroll movement made by the finger.
+     *
+     * @param deltaX horizontal scroll.
+     * @param deltaY vertical scroll.
+     * @param timestamp time of the movement, in milliseconds.
+     */
+    void addMovement(float deltaX, float deltaY, long timestamp) {
+        long timeDelta = Math.max(timestamp - lastTimestamp, 1);
+        lastTimestamp = timestamp;
+        velocityX += (deltaX / timeDelta - velocityX) * VELOCITY_SMOOTHING;
+        velocityY += (deltaY / timeDelta - velocityY) * VELOCITY_SMOOTHING;
+    }
+
+    /**
+     * Starts flinging if the finger was moving fast enough when lifted.
+     *
+     * @param timestamp time the finger was lifted, in milliseconds.
+     * @return {@code true} if a fling started.
+     */
+    boolean fling(long timestamp) {
+        if (timestamp - lastTimestamp > MAX_IDLE_MS) {
+            return false;
+        }
+        float speed = (float) Math.sqrt(velocityX * velocityX + velocityY * velocityY);
+        if (speed < minVelocity) {
+            return false;
+        }
+        remainderX = remainderY = 0;
+        running = true;
+        handler.postDelayed(tick, tickMs);
+        return true;
+    }
+
+    /**
+     * Stops the fling in progress, if any.
+     */
+    void cancel() {
+        if (running) {
+            running = false;
+            handler.removeCallbacks(tick);
+        }
+    }
+
+    private void onTick() {
+        if (!running) {
+            return;
+        }
+        remainderX += velocityX * tickMs;
+        remainderY += velocityY * tickMs;
+        velocityX *= decay;
+        velocityY *= decay;
+
+        if (!anymoteSender.isBackpressured()) {
+            int x = (int) remainderX;
+            int y = (int) remainderY;
+            if (x != 0 || y != 0) {
+                anymoteSender.sendScroll(x, y);
+                remainderX -= x;
+                remainderY -= y;
+            }
+        }
+
+        if (Math.abs(velocityX) < STOP_VELOCITY && Math.abs(velocityY) < STOP_VELOCITY) {
+            running = false;
+            return;
+        }
+        handler.postDelayed(tick, tickMs);
+    }
+}
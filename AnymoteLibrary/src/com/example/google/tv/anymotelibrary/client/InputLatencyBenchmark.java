@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.google.anymote.Key.Action;
+import com.google.anymote.Key.Code;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.example.google.tv.anymotelibrary.R;
+import com.example.google.tv.anymotelibrary.client.LatencyRecorder.Stage;
+import com.example.google.tv.anymotelibrary.client.LatencyRecorder.Summary;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the input latency of the remote stack. Synthetic touch drags,
+ * trackball motions and key presses are driven through {@link TouchHandler},
+ * {@link TrackballHandler} and the {@link AnymoteSender} of an established
+ * session, typically to the fake TV of the AnymoteTestServer project. The
+ * latency of each stage is recorded with a {@link LatencyRecorder} and
+ * compared to a baseline stored on the device.
+ * <p>
+ * The benchmark must be started from a thread with a looper, usually the main
+ * thread.
+ */
+public final class InputLatencyBenchmark {
+
+    private static final String LOG_TAG = "InputLatencyBenchmark";
+
+    private static final String PREFS_NAME = "anymote_benchmark";
+    private static final String PREF_BASELINE = "baseline";
+    private static final String KEY_THROUGHPUT = "throughput";
+
+    /**
+     * Number of input events between two pings.
+     */
+    private static final int PING_INTERVAL = 20;
+
+    /**
+     * Number of moves in a touch drag.
+     */
+    private static final int DRAG_LENGTH = 10;
+
+    /**
+     * Time left for the last events and acknowledgments to arrive.
+     */
+    private static final int DRAIN_DELAY_MS = 1000;
+
+    /**
+     * Difference with the baseline under which a latency change is noise.
+     */
+    private static final long MIN_REGRESSION_US = 200;
+
+    /**
+     * Receives the result of the benchmark.
+     */
+    public interface Callback {
+        /**
+         * Called on the thread which started the benchmark once it is done.
+         *
+         * @param report the result of the benchmark.
+         */
+        void onBenchmarkFinished(Report report);
+    }
+
+    /**
+     * Result of a benchmark run.
+     */
+    public static final class Report {
+        private final Map<Stage, Summary> summaries;
+        private final float throughput;
+        private final List<String> regressions;
+
+        Report(Map<Stage, Summary> summaries, float throughput, List<String> regressions) {
+            this.summaries = summaries;
+            this.throughput = throughput;
+            this.regressions = regressions;
+        }
+
+        /**
+         * @param stage a measured stage.
+         * @return the latency percentiles of the stage.
+         */
+        public Summary getSummary(Stage stage) {
+            return summaries.get(stage);
+        }
+
+        /**
+         * @return number of events written to the socket per second.
+         */
+        public float getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * @return descriptions of the regressions against the baseline, empty
+         *         if there is none or no baseline.
+         */
+        public List<String> getRegressions() {
+            return regressions;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("%-14s %6s %8s %8s %8s %8s\n", "stage (us)", "count",
+                    "p50", "p90", "p99", "max"));
+            for (Stage stage : Stage.values()) {
+                Summary summary = summaries.get(stage);
+                builder.append(String.format("%-14s %6d %8d %8d %8d %8d\n", stage,
+                        summary.getCount(), summary.getP50(), summary.getP90(),
+                        summary.getP99(), summary.getMax()));
+            }
+            builder.append(String.format("throughput: %.0f events/s\n", throughput));
+            for (String regression : regressions) {
+                builder.append("REGRESSION: ").append(regression).append('\n');
+            }
+            return builder.toString();
+        }
+
+        private JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(KEY_THROUGHPUT, throughput);
+            for (Stage stage : Stage.values()) {
+                json.put(stage.name(), summaries.get(stage).getP90());
+            }
+            return json;
+        }
+    }
+
+    private final Context context;
+    private final AnymoteSender sender;
+    private final Handler handler;
+    private final View view;
+    private final SharedPreferences preferences;
+
+    private LatencyRecorder recorder;
+    private TouchHandler touchHandler;
+    private TrackballHandler trackballHandler;
+    private Callback callback;
+    private int eventCount;
+    private int intervalMs;
+    private int step;
+
+    /**
+     * Constructor.
+     *
+     * @param context context of the application.
+     * @param sender sender of an established session.
+     */
+    public InputLatencyBenchmark(Context context, AnymoteSender sender) {
+        this.context = context;
+        this.sender = sender;
+        this.handler = new Handler();
+        this.view = new View(context);
+        this.preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Starts the benchmark.
+     *
+     * @param eventCount number of input events to generate.
+     * @param intervalMs delay between two input events; 0 generates them as
+     *            fast as possible, to measure the sustained throughput.
+     * @param callback receives the result.
+     */
+    public void start(int eventCount, int intervalMs, Callback callback) {
+        this.eventCount = eventCount;
+        this.intervalMs = intervalMs;
+        this.callback = callback;
+        step = 0;
+        recorder = new LatencyRecorder(eventCount * 2);
+        touchHandler = new TouchHandler(view, TouchHandler.Mode.POINTER, sender);
+        trackballHandler = new TrackballHandler(new TrackballHandler.Listener() {
+            public void onDirectionalEvent(TrackballHandler.Direction direction) {
+                switch (direction) {
+                    case DOWN:
+                        sender.sendKeyPress(Code.KEYCODE_DPAD_DOWN);
+                        break;
+                    case LEFT:
+                        sender.sendKeyPress(Code.KEYCODE_DPAD_LEFT);
+                        break;
+                    case RIGHT:
+                        sender.sendKeyPress(Code.KEYCODE_DPAD_RIGHT);
+                        break;
+                    case UP:
+                        sender.sendKeyPress(Code.KEYCODE_DPAD_UP);
+                        break;
+                }
+            }
+
+            public void onDirectionalHold(TrackballHandler.Direction direction,
+                    boolean pressed) {
+                Action action = pressed ? Action.DOWN : Action.UP;
+                switch (direction) {
+                    case DOWN:
+                        sender.sendKey(Code.KEYCODE_DPAD_DOWN, action);
+                        break;
+                    case LEFT:
+                        sender.sendKey(Code.KEYCODE_DPAD_LEFT, action);
+                        break;
+                    case RIGHT:
+                        sender.sendKey(Code.KEYCODE_DPAD_RIGHT, action);
+                        break;
+                    case UP:
+                        sender.sendKey(Code.KEYCODE_DPAD_UP, action);
+                        break;
+                }
+            }
+
+            public void onScrollEvent(int dx, int dy) {
+                sender.sendScroll(dx, dy);
+            }
+
+            public void onClick() {
+                sender.sendKeyPress(Code.KEYCODE_DPAD_CENTER);
+            }
+        }, context);
+        trackballHandler.setEnabled(true);
+        // Each injected motion should reach the TV as its own key press.
+        trackballHandler.setPressAndHoldEnabled(false);
+        sender.setLatencyRecorder(recorder);
+        handler.post(stepRunnable);
+    }
+
+    /**
+     * Stops the benchmark without reporting.
+     */
+    public void cancel() {
+        handler.removeCallbacks(stepRunnable);
+        handler.removeCallbacks(finishRunnable);
+        sender.setLatencyRecorder(null);
+    }
+
+    /**
+     * Stores a report as the baseline the next runs are compared to.
+     *
+     * @param report the reference report.
+     */
+    public void saveBaseline(Report report) {
+        try {
+            preferences.edit().putString(PREF_BASELINE, report.toJson().toString()).apply();
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Unable to store baseline", e);
+        }
+    }
+
+    private final Runnable stepRunnable = new Runnable() {
+        public void run() {
+            long start = System.nanoTime();
+            injectEvent(step);
+            recorder.record(Stage.INPUT_HANDLER, System.nanoTime() - start);
+            if (++step % PING_INTERVAL == 0) {
+                sender.sendPing();
+            }
+            if (step < eventCount) {
+                if (intervalMs > 0) {
+                    handler.postDelayed(this, intervalMs);
+                } else {
+                    handler.post(this);
+                }
+            } else {
+                handler.postDelayed(finishRunnable, DRAIN_DELAY_MS);
+            }
+        }
+    };
+
+    private final Runnable finishRunnable = new Runnable() {
+        public void run() {
+            sender.setLatencyRecorder(null);
+            Map<Stage, Summary> summaries = new EnumMap<Stage, Summary>(Stage.class);
+            for (Stage stage : Stage.values()) {
+                summaries.put(stage, recorder.getSummary(stage));
+            }
+            float throughput = recorder.getThroughput();
+            Report report = new Report(summaries, throughput,
+                    compareToBaseline(summaries, throughput));
+            Log.i(LOG_TAG, "Benchmark finished\n" + report);
+            callback.onBenchmarkFinished(report);
+        }
+    };
+
+    /**
+     * Injects the input event of a step. The steps cycle through a touch
+     * drag, trackball scrolls, trackball dpad motions and key presses.
+     */
+    private void injectEvent(int step) {
+        int cycleLength = DRAG_LENGTH + 2 + 3 * DRAG_LENGTH;
+        int position = step % cycleLength;
+        if (position < DRAG_LENGTH + 2) {
+            injectTouch(position);
+            return;
+        }
+        position -= DRAG_LENGTH + 2;
+        if (position < DRAG_LENGTH) {
+            trackballHandler.setMode(TrackballHandler.Mode.SCROLL);
+            injectTrackball(0.1f, 0.2f);
+        } else if (position < 2 * DRAG_LENGTH) {
+            trackballHandler.setMode(TrackballHandler.Mode.DPAD);
+            injectTrackball(0.5f, 0);
+        } else {
+            sender.sendKeyPress(Code.KEYCODE_DPAD_RIGHT);
+        }
+    }
+
+    private void injectTouch(int position) {
+        int action;
+        if (position == 0) {
+            action = MotionEvent.ACTION_DOWN;
+        } else if (position == DRAG_LENGTH + 1) {
+            action = MotionEvent.ACTION_UP;
+        } else {
+            action = MotionEvent.ACTION_MOVE;
+        }
+        long now = SystemClock.uptimeMillis();
+        MotionEvent event = MotionEvent.obtain(now, now, action, 100 + 5 * position,
+                100 + 3 * position, 0);
+        touchHandler.onTouch(view, event);
+        event.recycle();
+    }
+
+    private void injectTrackball(float x, float y) {
+        long now = SystemClock.uptimeMillis();
+        MotionEvent event = MotionEvent.obtain(now, now, MotionEvent.ACTION_MOVE, x, y, 0);
+        trackballHandler.onTrackballEvent(event);
+        event.recycle();
+    }
+
+    /**
+     * Compares the 90th percentiles and the throughput to the baseline.
+     */
+    private List<String> compareToBaseline(Map<Stage, Summary> summaries, float throughput) {
+        String serialized = preferences.getString(PREF_BASELINE, null);
+        if (serialized == null) {
+            return Collections.emptyList();
+        }
+        float tolerance =
+                context.getResources().getInteger(R.integer.benchmark_regression_tolerance) / 100f;
+        List<String> regressions = new ArrayList<String>();
+        try {
+            JSONObject baseline = new JSONObject(serialized);
+            for (Stage stage : Stage.values()) {
+                if (!baseline.has(stage.name())) {
+                    continue;
+                }
+                long reference = baseline.getLong(stage.name());
+                long p90 = summaries.get(stage).getP90();
+                if (p90 > reference * (1 + tolerance) && p90 - reference > MIN_REGRESSION_US) {
+                    regressions.add(stage + " p90 " + p90 + "us, baseline " + reference + "us");
+                }
+            }
+            double referenceThroughput = baseline.optDouble(KEY_THROUGHPUT, 0);
+            if (throughput < referenceThroughput * (1 - tolerance)) {
+                regressions.add(String.format("throughput %.0f events/s, baseline %.0f events/s",
+                        throughput, referenceThroughput));
+            }
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Ignoring corrupted baseline", e);
+        }
+        return regressions;
+    }
+}
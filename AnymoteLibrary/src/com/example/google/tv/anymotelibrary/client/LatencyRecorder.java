@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Records the latency of each stage an event goes through, from the input
+ * handler to the acknowledgment of the Anymote server. Attach it to an
+ * {@link AnymoteSender} with {@link AnymoteSender#setLatencyRecorder}.
+ * <p>
+ * Samples are kept in fixed size buffers; once a buffer is full the oldest
+ * samples are overwritten.
+ */
+public final class LatencyRecorder {
+
+    /**
+     * Stages measured by the recorder.
+     */
+    public enum Stage {
+        /**
+         * Time spent in the touch or trackball handler.
+         */
+        INPUT_HANDLER,
+        /**
+         * Time spent waiting in the queue of the sender thread.
+         */
+        QUEUE,
+        /**
+         * Time spent building and serializing the protocol message.
+         */
+        SERIALIZE,
+        /**
+         * Time spent writing to the TLS socket.
+         */
+        TLS_WRITE,
+        /**
+         * Time from the event being posted to the sender to it being written
+         * to the socket.
+         */
+        SEND,
+        /**
+         * Round trip time of a ping until its acknowledgment.
+         */
+        ACK
+    }
+
+    /**
+     * Percentiles of a stage, in microseconds.
+     */
+    public static final class Summary {
+        private final int count;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        Summary(int count, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        /**
+         * @return number of samples summarized.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return median, in microseconds.
+         */
+        public long getP50() {
+            return p50;
+        }
+
+        /**
+         * @return 90th percentile, in microseconds.
+         */
+        public long getP90() {
+            return p90;
+        }
+
+        /**
+         * @return 99th percentile, in microseconds.
+         */
+        public long getP99() {
+            return p99;
+        }
+
+        /**
+         * @return maximum, in microseconds.
+         */
+        public long getMax() {
+            return max;
+        }
+    }
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Maximum number of pings waiting for their acknowledgment.
+     */
+    private static final int MAX_PENDING_PINGS = 16;
+
+    private final long[][] samples;
+    private final int[] counts;
+    private final LinkedList<Long> pingTimes;
+
+    /**
+     * Number of events written to the socket, and time of the first and last
+     * ones, used to compute the throughput.
+     */
+    private int sentCount;
+    private long firstSentTime;
+    private long lastSentTime;
+
+    /**
+     * Constructor.
+     */
+    public LatencyRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity maximum number of samples kept per stage.
+     */
+    public LatencyRecorder(int capacity) {
+        samples = new long[Stage.values().length][capacity];
+        counts = new int[Stage.values().length];
+        pingTimes = new LinkedList<Long>();
+    }
+
+    /**
+     * Records a sample.
+     *
+     * @param stage the measured stage.
+     * @param nanos duration of the stage, in nanoseconds.
+     */
+    public synchronized void record(Stage stage, long nanos) {
+        long[] stageSamples = samples[stage.ordinal()];
+        stageSamples[counts[stage.ordinal()]++ % stageSamples.length] = nanos;
+    }
+
+    /**
+     * Records the stages of an event written to the socket.
+     *
+     * @param postTime time the event was posted to the sender.
+     * @param startTime time the sender started to handle the event.
+     * @param endTime time the event was written.
+     * @param writeNanos time spent writing to the socket.
+     */
+    synchronized void onEventSent(long postTime, long startTime, long endTime, long writeNanos) {
+        record(Stage.QUEUE, startTime - postTime);
+        record(Stage.SERIALIZE, endTime - startTime - writeNanos);
+        record(Stage.TLS_WRITE, writeNanos);
+        record(Stage.SEND, endTime - postTime);
+        if (sentCount++ == 0) {
+            firstSentTime = endTime;
+        }
+        lastSentTime = endTime;
+    }
+
+    /**
+     * Records that a ping was written.
+     *
+     * @param time time the ping was written.
+     */
+    synchronized void onPingSent(long time) {
+        if (pingTimes.size() >= MAX_PENDING_PINGS) {
+            // Acks were lost; the oldest pings cannot be matched anymore.
+            pingTimes.removeFirst();
+        }
+        pingTimes.addLast(time);
+    }
+
+    /**
+     * Records an acknowledgment. The server answers pings in order.
+     *
+     * @param time time the acknowledgment was received.
+     */
+    synchronized void onAck(long time) {
+        if (!pingTimes.isEmpty()) {
+            record(Stage.ACK, time - pingTimes.removeFirst());
+        }
+    }
+
+    /**
+     * Returns the percentiles of a stage.
+     *
+     * @param stage the stage.
+     * @return the percentiles, in microseconds.
+     */
+    public synchronized Summary getSummary(Stage stage) {
+        int count = Math.min(counts[stage.ordinal()], samples[stage.ordinal()].length);
+        if (count == 0) {
+            return new Summary(0, 0, 0, 0, 0);
+        }
+        long[] sorted = Arrays.copyOf(samples[stage.ordinal()], count);
+        Arrays.sort(sorted);
+        return new Summary(count, percentile(sorted, 50), percentile(sorted, 90),
+                percentile(sorted, 99), sorted[count - 1] / 1000);
+    }
+
+    /**
+     * @return number of events written to the socket per second.
+     */
+    public synchronized float getThroughput() {
+        if (sentCount < 2 || lastSentTime == firstSentTime) {
+            return 0;
+        }
+        return (sentCount - 1) * 1e9f / (lastSentTime - firstSentTime);
+    }
+
+    /**
+     * Discards all samples.
+     */
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        pingTimes.clear();
+        sentCount = 0;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.google.anymote.Key.Code;
+
+import android.content.Intent;
+
+import com.example.google.tv.anymotelibrary.util.Action;
+import com.example.google.tv.anymotelibrary.util.KeyEventTranslator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sequence of actions, key presses, intents and delays, sent to the TV as a
+ * single batch by {@link AnymoteSender#sendMacro(Macro)}. Consecutive steps
+ * are sent back to back; delays and acknowledgment waits pause the sequence
+ * without blocking the sender.
+ * <p>
+ * Macros are immutable and can be stored with {@link #toJson()} and restored
+ * with {@link #fromJson(JSONObject)}. Example:
+ *
+ * <pre>
+ * Macro guide = new Macro.Builder("guide")
+ *         .key(Code.KEYCODE_LIVE)
+ *         .awaitAck()
+ *         .key(Code.KEYCODE_GUIDE)
+ *         .delay(300)
+ *         .repeat(Action.DPAD_DOWN, 5)
+ *         .action(Action.DPAD_CENTER)
+ *         .build();
+ * </pre>
+ */
+public final class Macro {
+
+    private static final String KEY_NAME = "name";
+    private static final String KEY_STEPS = "steps";
+    private static final String KEY_TYPE = "type";
+    private static final String KEY_VALUE = "value";
+
+    /**
+     * Kind of a step.
+     */
+    enum StepType {
+        /** Executes an {@link Action}. */
+        ACTION,
+        /** Presses a key. */
+        KEY,
+        /** Sends an intent, serialized as an URL. */
+        URL,
+        /** Pauses the sequence. */
+        DELAY,
+        /** Pauses the sequence until the TV has handled the previous steps. */
+        ACK
+    }
+
+    /**
+     * A single step of a macro.
+     */
+    static final class Step {
+        final StepType type;
+        final Action action;
+        final Code code;
+        final String url;
+        final long delayMs;
+
+        private Step(StepType type, Action action, Code code, String url, long delayMs) {
+            this.type = type;
+            this.action = action;
+            this.code = code;
+            this.url = url;
+            this.delayMs = delayMs;
+        }
+
+        private JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(KEY_TYPE, type.name());
+            switch (type) {
+                case ACTION:
+                    json.put(KEY_VALUE, action.name());
+                    break;
+                case KEY:
+                    json.put(KEY_VALUE, code.name());
+                    break;
+                case URL:
+                    json.put(KEY_VALUE, url);
+                    break;
+                case DELAY:
+                    json.put(KEY_VALUE, delayMs);
+                    break;
+                case ACK:
+                    break;
+            }
+            return json;
+        }
+
+        private static Step fromJson(JSONObject json) throws JSONException {
+            StepType type = StepType.valueOf(json.getString(KEY_TYPE));
+            switch (type) {
+                case ACTION:
+                    return new Step(type, Action.valueOf(json.getString(KEY_VALUE)), null, null, 0);
+                case KEY:
+                    return new Step(type, null, Code.valueOf(json.getString(KEY_VALUE)), null, 0);
+                case URL:
+                    return new Step(type, null, null, json.getString(KEY_VALUE), 0);
+                case DELAY:
+                    return new Step(type, null, null, null, json.getLong(KEY_VALUE));
+                default:
+                    return new Step(type, null, null, null, 0);
+            }
+        }
+    }
+
+    private final String name;
+    private final List<Step> steps;
+
+    private Macro(String name, List<Step> steps) {
+        this.name = name;
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * @return the name of the macro.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of steps of the macro.
+     */
+    public int getStepCount() {
+        return steps.size();
+    }
+
+    List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Serializes the macro.
+     *
+     * @return JSON representation of the macro.
+     * @throws JSONException if the macro cannot be serialized.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Step step : steps) {
+            array.put(step.toJson());
+        }
+        JSONObject json = new JSONObject();
+        json.put(KEY_NAME, name);
+        json.put(KEY_STEPS, array);
+        return json;
+    }
+
+    /**
+     * Restores a macro serialized by {@link #toJson()}.
+     *
+     * @param json JSON representation of the macro.
+     * @return the macro, or {@code null} if the representation is invalid.
+     */
+    public static Macro fromJson(JSONObject json) {
+        try {
+            JSONArray array = json.getJSONArray(KEY_STEPS);
+            List<Step> steps = new ArrayList<Step>(array.length());
+            for (int i = 0; i < array.length(); ++i) {
+                steps.add(Step.fromJson(array.getJSONObject(i)));
+            }
+            return new Macro(json.getString(KEY_NAME), steps);
+        } catch (JSONException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // Unknown step type, action or key code.
+            return null;
+        }
+    }
+
+    /**
+     * Builds a macro.
+     */
+    public static final class Builder {
+        private final String name;
+        private final List<Step> steps;
+        private long stepDelayMs;
+
+        /**
+         * Constructor.
+         *
+         * @param name name of the macro.
+         */
+        public Builder(String name) {
+            this.name = name;
+            this.steps = new ArrayList<Step>();
+        }
+
+        /**
+         * Sets a delay inserted after each action, key press and intent added
+         * from now on. Defaults to 0: steps are sent back to back.
+         *
+         * @param delayMs delay in milliseconds.
+         * @return this builder.
+         */
+        public Builder setStepDelay(long delayMs) {
+            stepDelayMs = delayMs;
+            return this;
+        }
+
+        /**
+         * Adds an action.
+         *
+         * @param action the action.
+         * @return this builder.
+         */
+        public Builder action(Action action) {
+            return add(new Step(StepType.ACTION, action, null, null, 0));
+        }
+
+        /**
+         * Adds an action several times.
+         *
+         * @param action the action.
+         * @param count number of times to execute the action.
+         * @return this builder.
+         */
+        public Builder repeat(Action action, int count) {
+            for (int i = 0; i < count; ++i) {
+                action(action);
+            }
+            return this;
+        }
+
+        /**
+         * Adds a key press.
+         *
+         * @param code Anymote code of the key.
+         * @return this builder.
+         */
+        public Builder key(Code code) {
+            return add(new Step(StepType.KEY, null, code, null, 0));
+        }
+
+        /**
+         * Adds a key press.
+         *
+         * @param keyCode Android key code, translated when the macro is built.
+         * @return this builder.
+         * @throws IllegalArgumentException if the key has no Anymote code.
+         */
+        public Builder keyEvent(int keyCode) {
+            Code code = KeyEventTranslator.fromKeyEvent(keyCode);
+            if (code == null) {
+                throw new IllegalArgumentException("No Anymote code for key " + keyCode);
+            }
+            return key(code);
+        }
+
+        /**
+         * Adds an intent.
+         *
+         * @param intent the intent, serialized when the macro is built.
+         * @return this builder.
+         */
+        public Builder intent(Intent intent) {
+            return url(intent.toUri(Intent.URI_INTENT_SCHEME));
+        }
+
+        /**
+         * Adds an URL, as sent by {@link AnymoteSender#sendUrl(String)}.
+         *
+         * @param url the URL.
+         * @return this builder.
+         */
+        public Builder url(String url) {
+            return add(new Step(StepType.URL, null, null, url, 0));
+        }
+
+        /**
+         * Adds a pause.
+         *
+         * @param delayMs duration of the pause in milliseconds.
+         * @return this builder.
+         */
+        public Builder delay(long delayMs) {
+            steps.add(new Step(StepType.DELAY, null, null, null, delayMs));
+            return this;
+        }
+
+        /**
+         * Adds a pause lasting until the TV acknowledges the previous steps,
+         * e.g. before keys sent to an activity the previous steps start. The
+         * macro is aborted if there is no session or it ends during the pause.
+         *
+         * @return this builder.
+         */
+        public Builder awaitAck() {
+            steps.add(new Step(StepType.ACK, null, null, null, 0));
+            return this;
+        }
+
+        /**
+         * @return the macro.
+         */
+        public Macro build() {
+            return new Macro(name, new ArrayList<Step>(steps));
+        }
+
+        private Builder add(Step step) {
+            steps.add(step);
+            if (stepDelayMs > 0) {
+                delay(stepDelayMs);
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.google.anymote.Key.Action;
+import com.google.anymote.Key.Code;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Bounded queue holding the events sent while there is no session to the
+ * Anymote server. Queued events are replayed in order once the connection is
+ * re-established.
+ * <p>
+ * Each event type has its own policy:
+ * <ul>
+ * <li>consecutive relative pointer moves are collapsed into a single move,</li>
+ * <li>consecutive scrolls only keep the latest one,</li>
+ * <li>key DOWN / UP pairs are dropped together, and a release whose press
+ * may already have been delivered is never dropped,</li>
+ * <li>events older than the maximum age are dropped when flushed.</li>
+ * </ul>
+ * When the queue is full, moves and scrolls are evicted first, then single
+ * key presses and flings, then the oldest complete DOWN / UP pair. Past that,
+ * a release is dropped together with its own queued press, merged with a
+ * queued release of the same key, or else admitted after evicting a press
+ * whose release is not queued yet. A release is never dropped alone, so no
+ * key is ever left down: when only releases are queued, a release whose
+ * press was delivered is admitted past the capacity. There is at most one
+ * such release per key.
+ */
+final class OutboundEventQueue {
+
+    /**
+     * Receives the events of the queue when it is flushed.
+     */
+    interface EventSink {
+        /**
+         * Called for each event still valid when the queue is flushed.
+         *
+         * @param what type of the event, as defined in {@link AnymoteSender}.
+         * @param arg1 first integer argument of the event.
+         * @param arg2 second integer argument of the event.
+         * @param obj object argument of the event.
+         */
+        void onEvent(int what, int arg1, int arg2, Object obj);
+    }
+
+    /**
+     * A single queued event.
+     */
+    private static final class QueuedEvent {
+        final int what;
+        int arg1;
+        int arg2;
+        Object obj;
+        long timestamp;
+
+        QueuedEvent(int what, int arg1, int arg2, Object obj, long timestamp) {
+            this.what = what;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.obj = obj;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final LinkedList<QueuedEvent> events;
+    private final int capacity;
+    private final long maxAgeMs;
+
+    /**
+     * Number of events dropped because the queue was full.
+     */
+    private int overflowCount;
+
+    /**
+     * Number of events dropped because they were too old when flushed.
+     */
+    private int staleCount;
+
+    /**
+     * Number of events merged into a pending move, scroll or release.
+     */
+    private int collapsedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity maximum number of events held by the queue.
+     * @param maxAgeMs age after which an event is no longer worth sending.
+     */
+    OutboundEventQueue(int capacity, long maxAgeMs) {
+        this.events = new LinkedList<QueuedEvent>();
+        this.capacity = capacity;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Queues an event, applying the policy of its type.
+     *
+     * @param what type of the event, as defined in {@link AnymoteSender}.
+     * @param arg1 first integer argument of the event.
+     * @param arg2 second integer argument of the event.
+     * @param obj object argument of the event.
+     * @param now current time, in milliseconds.
+     * @return {@code false} if the event was dropped.
+     */
+    synchronized boolean offer(int what, int arg1, int arg2, Object obj, long now) {
+        QueuedEvent tail = events.isEmpty() ? null : events.getLast();
+        if (tail != null && tail.what == what) {
+            if (what == AnymoteSender.MOUSEMOVE) {
+                tail.arg1 += arg1;
+                tail.arg2 += arg2;
+                tail.timestamp = now;
+                ++collapsedCount;
+                return true;
+            }
+            if (what == AnymoteSender.SCROLL) {
+                tail.arg1 = arg1;
+                tail.arg2 = arg2;
+                tail.timestamp = now;
+                ++collapsedCount;
+                return true;
+            }
+        }
+
+        while (events.size() >= capacity) {
+            if (evictOne()) {
+                continue;
+            }
+            if (isRelease(what, obj)) {
+                QueuedEvent last = findLast(getCode(what, obj));
+                if (last != null && isPress(last.what, last.obj)) {
+                    // Neither half of the pair reaches the TV.
+                    events.remove(last);
+                    overflowCount += 2;
+                    return false;
+                }
+                if (last != null) {
+                    // The key is already released by a queued event.
+                    ++collapsedCount;
+                    return true;
+                }
+                if (!evictPress()) {
+                    // Its press was delivered: the key must go up, even past
+                    // the capacity.
+                    break;
+                }
+                continue;
+            }
+            if (!evictPress()) {
+                // Only releases are queued: the press is dropped, so the key
+                // never goes down.
+                ++overflowCount;
+                return false;
+            }
+        }
+        events.addLast(new QueuedEvent(what, arg1, arg2, obj, now));
+        return true;
+    }
+
+    /**
+     * Removes all events from the queue and hands the ones that are still
+     * valid to the sink, in order.
+     *
+     * @param sink receives the valid events.
+     * @param now current time, in milliseconds.
+     * @return the number of events handed to the sink.
+     */
+    synchronized int drainTo(EventSink sink, long now) {
+        int sent = 0;
+        while (!events.isEmpty()) {
+            QueuedEvent event = events.removeFirst();
+            if (now - event.timestamp > maxAgeMs && !isRelease(event.what, event.obj)) {
+                ++staleCount;
+                if (isPress(event.what, event.obj)) {
+                    removeMatchingRelease(event, events.iterator());
+                }
+                continue;
+            }
+            sink.onEvent(event.what, event.arg1, event.arg2, event.obj);
+            ++sent;
+        }
+        return sent;
+    }
+
+    /**
+     * Drops all queued events.
+     */
+    synchronized void clear() {
+        events.clear();
+    }
+
+    /**
+     * @return number of events currently queued.
+     */
+    synchronized int getDepth() {
+        return events.size();
+    }
+
+    /**
+     * @return number of events dropped because the queue was full.
+     */
+    synchronized int getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * @return number of events dropped because they were too old.
+     */
+    synchronized int getStaleCount() {
+        return staleCount;
+    }
+
+    /**
+     * @return number of events merged into a pending move, scroll or release.
+     */
+    synchronized int getCollapsedCount() {
+        return collapsedCount;
+    }
+
+    /**
+     * Evicts the least valuable event of the queue.
+     *
+     * @return {@code false} if no event could be evicted.
+     */
+    private boolean evictOne() {
+        if (evictFirst(AnymoteSender.MOUSEMOVE, AnymoteSender.SCROLL)
+                || evictFirst(AnymoteSender.KEYPRESS, AnymoteSender.URL, AnymoteSender.DATA)) {
+            return true;
+        }
+        // The oldest press whose release is queued too.
+        for (int i = 0; i < events.size(); ++i) {
+            QueuedEvent event = events.get(i);
+            if (!isPress(event.what, event.obj)) {
+                continue;
+            }
+            int release = findRelease(getCode(event.what, event.obj), i + 1);
+            if (release >= 0) {
+                events.remove(release);
+                events.remove(i);
+                overflowCount += 2;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evicts the oldest press, whose release is not queued yet: the release
+     * will then reach the TV without its press, which is harmless.
+     *
+     * @return {@code true} if a press was evicted.
+     */
+    private boolean evictPress() {
+        for (Iterator<QueuedEvent> it = events.iterator(); it.hasNext();) {
+            QueuedEvent event = it.next();
+            if (isPress(event.what, event.obj)) {
+                it.remove();
+                ++overflowCount;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the last queued press or release of a key, or {@code null}.
+     */
+    private QueuedEvent findLast(Code code) {
+        for (int i = events.size() - 1; i >= 0; --i) {
+            QueuedEvent event = events.get(i);
+            if (getCode(event.what, event.obj) == code) {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index of the first release of a key from an index, or -1.
+     */
+    private int findRelease(Code code, int from) {
+        for (int i = from; i < events.size(); ++i) {
+            QueuedEvent event = events.get(i);
+            if (isRelease(event.what, event.obj) && getCode(event.what, event.obj) == code) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Evicts the oldest event of one of the given types.
+     *
+     * @return {@code true} if an event was evicted.
+     */
+    private boolean evictFirst(int... types) {
+        for (Iterator<QueuedEvent> it = events.iterator(); it.hasNext();) {
+            int what = it.next().what;
+            for (int type : types) {
+                if (what == type) {
+                    it.remove();
+                    ++overflowCount;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the release matching a dropped press, if it is still queued.
+     *
+     * @param press the dropped press.
+     * @param it iterator positioned right after the press.
+     */
+    private void removeMatchingRelease(QueuedEvent press, Iterator<QueuedEvent> it) {
+        Code code = getCode(press.what, press.obj);
+        while (it.hasNext()) {
+            QueuedEvent event = it.next();
+            if (isRelease(event.what, event.obj) && getCode(event.what, event.obj) == code) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    private static boolean isPress(int what, Object obj) {
+        return getAction(what, obj) == Action.DOWN;
+    }
+
+    private static boolean isRelease(int what, Object obj) {
+        return getAction(what, obj) == Action.UP;
+    }
+
+    private static Action getAction(int what, Object obj) {
+        if (what == AnymoteSender.CLICK) {
+            return (Action) obj;
+        }
+        if (what == AnymoteSender.KEY) {
+            return ((AnymoteSender.AnymoteKeyEvent) obj).action;
+        }
+        return null;
+    }
+
+    private static Code getCode(int what, Object obj) {
+        if (what == AnymoteSender.CLICK) {
+            return Code.BTN_MOUSE;
+        }
+        if (what == AnymoteSender.KEY) {
+            return ((AnymoteSender.AnymoteKeyEvent) obj).code;
+        }
+        return null;
+    }
+}
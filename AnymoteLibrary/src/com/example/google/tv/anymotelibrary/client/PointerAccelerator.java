@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import android.content.res.Resources;
+
+import com.example.google.tv.anymotelibrary.R;
+
+/**
+ * Turns the finger movements on the touch surface into pointer movements on
+ * the TV.
+ * <p>
+ * Movements are first converted to density independent pixels, so the same
+ * finger travel moves the pointer by the same amount on every phone. They are
+ * then multiplied by a gain which grows with the finger speed, measured over
+ * a short window: slow movements stay precise, fast swipes cross the screen.
+ * The fractional part of the result is carried over to the next movement, so
+ * rounding to whole pixels never loses motion.
+ */
+final class PointerAccelerator {
+
+    /**
+     * Maximum number of movements kept to measure the speed.
+     */
+    private static final int MAX_SAMPLES = 16;
+
+    private final float density;
+    private final long windowMs;
+    private final float minGain;
+    private final float maxGain;
+
+    /**
+     * Speeds below which the gain is minimal, and above which it is maximal,
+     * in density independent pixels per millisecond.
+     */
+    private final float lowSpeed;
+    private final float highSpeed;
+
+    /**
+     * Recent movements, as a ring buffer.
+     */
+    private final float[] sampleDistance;
+    private final long[] sampleTime;
+    private int sampleCount;
+    private int sampleHead;
+
+    /**
+     * Accelerated motion not yet consumed, in TV pixels.
+     */
+    private float remainderX, remainderY;
+
+    /**
+     * Constructor.
+     *
+     * @param density density of the touch surface, as the number of pixels
+     *            per density independent pixel.
+     * @param windowMs duration over which the speed is measured.
+     * @param minGain gain applied to slow movements.
+     * @param maxGain gain applied to fast movements.
+     * @param lowSpeed speed up to which the gain is minimal, in density
+     *            independent pixels per second.
+     * @param highSpeed speed from which the gain is maximal, in density
+     *            independent pixels per second.
+     */
+    PointerAccelerator(float density, long windowMs, float minGain, float maxGain,
+            float lowSpeed, float highSpeed) {
+        if (highSpeed <= lowSpeed) {
+            throw new IllegalArgumentException("High speed <= low speed: " + highSpeed);
+        }
+        this.density = density;
+        this.windowMs = windowMs;
+        this.minGain = minGain;
+        this.maxGain = maxGain;
+        this.lowSpeed = lowSpeed / 1000;
+        this.highSpeed = highSpeed / 1000;
+        sampleDistance = new float[MAX_SAMPLES];
+        sampleTime = new long[MAX_SAMPLES];
+    }
+
+    /**
+     * Creates an accelerator configured from the library resources.
+     *
+     * @param resources resources of the touch surface.
+     * @return the accelerator.
+     */
+    static PointerAccelerator fromResources(Resources resources) {
+        return new PointerAccelerator(resources.getDisplayMetrics().density,
+                resources.getInteger(R.integer.pointer_velocity_window),
+                resources.getInteger(R.integer.pointer_min_gain) / 100f,
+                resources.getInteger(R.integer.pointer_max_gain) / 100f,
+                resources.getInteger(R.integer.pointer_low_speed),
+                resources.getInteger(R.integer.pointer_high_speed));
+    }
+
+    /**
+     * Forgets the previous movements. Called when a new touch sequence
+     * starts.
+     */
+    void reset() {
+        sampleCount = 0;
+        sampleHead = 0;
+        remainderX = 0;
+        remainderY = 0;
+    }
+
+    /**
+     * Adds a finger movement.
+     *
+     * @param deltaX horizontal movement, in pixels of the touch surface.
+     * @param deltaY vertical movement, in pixels of the touch surface.
+     * @param timestamp time of the movement, in milliseconds.
+     */
+    void addMovement(float deltaX, float deltaY, long timestamp) {
+        float dx = deltaX / density;
+        float dy = deltaY / density;
+        addSample((float) Math.sqrt(dx * dx + dy * dy), timestamp);
+        float gain = getGain(getSpeed(timestamp));
+        remainderX += dx * gain;
+        remainderY += dy * gain;
+    }
+
+    /**
+     * Takes the whole pixels of the horizontal motion accumulated so far.
+     *
+     * @return horizontal movement of the pointer, in TV pixels.
+     */
+    int consumeX() {
+        int x = (int) remainderX;
+        remainderX -= x;
+        return x;
+    }
+
+    /**
+     * Takes the whole pixels of the vertical motion accumulated so far.
+     *
+     * @return vertical movement of the pointer, in TV pixels.
+     */
+    int consumeY() {
+        int y = (int) remainderY;
+        remainderY -= y;
+        return y;
+    }
+
+    private void addSample(float distance, long timestamp) {
+        sampleDistance[sampleHead] = distance;
+        sampleTime[sampleHead] = timestamp;
+        sampleHead = (sampleHead + 1) % MAX_SAMPLES;
+        if (sampleCount < MAX_SAMPLES) {
+            ++sampleCount;
+        }
+    }
+
+    /**
+     * Returns the speed of the finger over the window, in density independent
+     * pixels per millisecond.
+     */
+    private float getSpeed(long now) {
+        float distance = 0;
+        long oldest = now;
+        for (int i = 1; i <= sampleCount; ++i) {
+            int index = (sampleHead - i + MAX_SAMPLES) % MAX_SAMPLES;
+            if (now - sampleTime[index] > windowMs) {
+                break;
+            }
+            distance += sampleDistance[index];
+            oldest = sampleTime[index];
+        }
+        // The oldest movement covers the time since the previous event; at
+        // least one frame is assumed so a single event has a finite speed.
+        long duration = Math.max(now - oldest, 16);
+        return distance / duration;
+    }
+
+    /**
+     * Maps a speed to a gain with a smooth step between the minimal and the
+     * maximal gain.
+     */
+    private float getGain(float speed) {
+        if (speed <= lowSpeed) {
+            return minGain;
+        }
+        if (speed >= highSpeed) {
+            return maxGain;
+        }
+        float t = (speed - lowSpeed) / (highSpeed - lowSpeed);
+        return minGain + (maxGain - minGain) * t * t * (3 - 2 * t);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.example.google.tv.anymotelibrary.R;
+
+/**
+ * Moves the pointer ahead of the finger to hide the network latency.
+ * <p>
+ * The pointer velocity is estimated from the recent movements, and the
+ * pointer is sent where it is expected to be one round trip later. Each new
+ * movement replaces the previous prediction: the delta sent is the real
+ * movement plus the change of the prediction, so the prediction errors never
+ * accumulate. When the sequence ends, the prediction is taken back.
+ * <p>
+ * Every prediction is checked against the real position once its time has
+ * come; if the average error grows too large, for instance because the
+ * finger changes direction all the time, the predictor switches itself off.
+ */
+final class PointerPredictor {
+
+    private static final String LOG_TAG = "PointerPredictor";
+
+    /**
+     * Number of predictions waiting to be checked.
+     */
+    private static final int MAX_PENDING_CHECKS = 16;
+
+    /**
+     * Weight of a new movement in the velocity estimate.
+     */
+    private static final float VELOCITY_SMOOTHING = 0.5f;
+
+    /**
+     * Weight of a new error in the error estimate.
+     */
+    private static final float ERROR_SMOOTHING = 0.1f;
+
+    /**
+     * Number of checked predictions before the error estimate is trusted.
+     */
+    private static final int MIN_CHECKS = 8;
+
+    private final long maxHorizonMs;
+    private final float maxError;
+
+    private boolean enabled;
+
+    /**
+     * Real pointer position, relative to the start of the sequence.
+     */
+    private int realX, realY;
+
+    /**
+     * Offset of the predicted position from the real position, as sent.
+     */
+    private int offsetX, offsetY;
+
+    /**
+     * Estimated velocity, in pixels per millisecond.
+     */
+    private float velocityX, velocityY;
+    private long lastTimestamp;
+
+    /**
+     * Delta to send, not yet consumed.
+     */
+    private int outputX, outputY;
+
+    /**
+     * Predicted positions waiting for their time, as a ring buffer.
+     */
+    private final long[] checkTime;
+    private final int[] checkX;
+    private final int[] checkY;
+    private int checkHead;
+    private int checkCount;
+
+    private float averageError;
+    private int checkedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param maxHorizonMs maximum time to predict ahead.
+     * @param maxError average error, in pixels, above which the prediction
+     *            is switched off.
+     */
+    PointerPredictor(long maxHorizonMs, float maxError) {
+        this.maxHorizonMs = maxHorizonMs;
+        this.maxError = maxError;
+        checkTime = new long[MAX_PENDING_CHECKS];
+        checkX = new int[MAX_PENDING_CHECKS];
+        checkY = new int[MAX_PENDING_CHECKS];
+    }
+
+    /**
+     * Creates a predictor configured from the library resources.
+     *
+     * @param resources the resources.
+     * @return the predictor, disabled.
+     */
+    static PointerPredictor fromResources(Resources resources) {
+        return new PointerPredictor(
+                resources.getInteger(R.integer.pointer_prediction_max_horizon),
+                resources.getInteger(R.integer.pointer_prediction_max_error));
+    }
+
+    /**
+     * Enables or disables the prediction. Enabling it resets the error
+     * estimate.
+     *
+     * @param enabled {@code true} to predict.
+     */
+    void setEnabled(boolean enabled) {
+        if (enabled && !this.enabled) {
+            averageError = 0;
+            checkedCount = 0;
+        }
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return {@code true} if the prediction is on.
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts a new sequence.
+     *
+     * @param timestamp time of the sequence start, in milliseconds.
+     */
+    void reset(long timestamp) {
+        realX = realY = 0;
+        offsetX = offsetY = 0;
+        velocityX = velocityY = 0;
+        outputX = outputY = 0;
+        checkCount = 0;
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * Adds a real movement of the pointer and updates the prediction.
+     *
+     * @param deltaX horizontal movement, in TV pixels.
+     * @param deltaY vertical movement, in TV pixels.
+     * @param timestamp time of the movement, in milliseconds.
+     * @param roundTripTime current round trip time to the TV, in
+     *            milliseconds, or -1 if unknown.
+     */
+    void addMovement(int deltaX, int deltaY, long timestamp, long roundTripTime) {
+        realX += deltaX;
+        realY += deltaY;
+        outputX += deltaX;
+        outputY += deltaY;
+
+        long timeDelta = Math.max(timestamp - lastTimestamp, 1);
+        lastTimestamp = timestamp;
+        velocityX += (deltaX / (float) timeDelta - velocityX) * VELOCITY_SMOOTHING;
+        velocityY += (deltaY / (float) timeDelta - velocityY) * VELOCITY_SMOOTHING;
+
+        if (!enabled) {
+            retract();
+            return;
+        }
+        checkPredictions(timestamp);
+        if (!enabled) {
+            return;
+        }
+
+        long horizon = roundTripTime < 0 ? 0 : Math.min(roundTripTime, maxHorizonMs);
+        int predictedX = Math.round(velocityX * horizon);
+        int predictedY = Math.round(velocityY * horizon);
+        outputX += predictedX - offsetX;
+        outputY += predictedY - offsetY;
+        offsetX = predictedX;
+        offsetY = predictedY;
+        if (horizon > 0) {
+            addCheck(timestamp + horizon, realX + predictedX, realY + predictedY);
+        }
+    }
+
+    /**
+     * Ends the sequence: the prediction is taken back, so the pointer stops
+     * where the finger stopped.
+     */
+    void finish() {
+        retract();
+    }
+
+    /**
+     * Takes the horizontal delta to send.
+     *
+     * @return horizontal movement of the pointer, in TV pixels.
+     */
+    int consumeX() {
+        int x = outputX;
+        outputX = 0;
+        return x;
+    }
+
+    /**
+     * Takes the vertical delta to send.
+     *
+     * @return vertical movement of the pointer, in TV pixels.
+     */
+    int consumeY() {
+        int y = outputY;
+        outputY = 0;
+        return y;
+    }
+
+    private void retract() {
+        outputX -= offsetX;
+        outputY -= offsetY;
+        offsetX = 0;
+        offsetY = 0;
+    }
+
+    private void addCheck(long time, int x, int y) {
+        int index = (checkHead + checkCount) % MAX_PENDING_CHECKS;
+        if (checkCount == MAX_PENDING_CHECKS) {
+            // Drop the oldest check.
+            checkHead = (checkHead + 1) % MAX_PENDING_CHECKS;
+        } else {
+            ++checkCount;
+        }
+        checkTime[index] = time;
+        checkX[index] = x;
+        checkY[index] = y;
+    }
+
+    /**
+     * Compares the predictions whose time has come with the real position,
+     * and switches the prediction off if they are too far off on average.
+     */
+    private void checkPredictions(long now) {
+        while (checkCount > 0 && checkTime[checkHead] <= now) {
+            float dx = checkX[checkHead] - realX;
+            float dy = checkY[checkHead] - realY;
+            float error = (float) Math.sqrt(dx * dx + dy * dy);
+            averageError += (error - averageError) * ERROR_SMOOTHING;
+            ++checkedCount;
+            checkHead = (checkHead + 1) % MAX_PENDING_CHECKS;
+            --checkCount;
+        }
+        if (checkedCount >= MIN_CHECKS && averageError > maxError) {
+            Log.i(LOG_TAG, "Prediction error " + averageError + " px, disabling prediction");
+            enabled = false;
+            checkCount = 0;
+            retract();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.google.anymote.Key.Action;
+import com.google.anymote.Key.Code;
+
+import android.content.Context;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+import android.widget.EditText;
+
+import com.example.google.tv.anymotelibrary.R;
+import com.example.google.tv.anymotelibrary.util.KeyEventTranslator;
+
+/**
+ * Types text on the TV. Text is sent as whole strings in a single data
+ * message, rather than as one key event per character.
+ * <p>
+ * The text of an {@link EditText} can be mirrored on the TV: edits are
+ * collected for a short delay, then only the difference with the text already
+ * typed on the TV is sent, as backspaces followed by the new characters.
+ * <p>
+ * For TVs which do not handle data messages, the text can be typed with key
+ * events instead, see {@link #setKeyEventFallback(boolean)}.
+ */
+public final class TextSender {
+
+    private static final String LOG_TAG = "TextSender";
+
+    private final AnymoteSender anymoteSender;
+    private final Handler handler;
+    private final long syncDelayMs;
+
+    /**
+     * {@code true} to type with key events.
+     */
+    private boolean keyEventFallback;
+
+    /**
+     * Lazily loaded character map used by the key event fallback.
+     */
+    private KeyCharacterMap characterMap;
+
+    /**
+     * Mirrored text field, or {@code null}.
+     */
+    private EditText editText;
+
+    /**
+     * Text typed on the TV by the mirroring so far.
+     */
+    private String syncedText = "";
+
+    /**
+     * {@code true} while edits wait for the sync delay.
+     */
+    private boolean syncPending;
+
+    private final TextWatcher textWatcher = new TextWatcher() {
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        public void afterTextChanged(Editable s) {
+            handler.removeCallbacks(syncCallback);
+            handler.postDelayed(syncCallback, syncDelayMs);
+            syncPending = true;
+        }
+    };
+
+    private final Runnable syncCallback = new Runnable() {
+        public void run() {
+            syncPending = false;
+            if (editText != null) {
+                syncText(editText.getText());
+            }
+        }
+    };
+
+    /**
+     * Constructor. Must be called on the UI thread.
+     *
+     * @param context context of the application.
+     * @param anymoteSender sends the text to the TV.
+     */
+    public TextSender(Context context, AnymoteSender anymoteSender) {
+        this.anymoteSender = anymoteSender;
+        this.handler = new Handler();
+        this.syncDelayMs = context.getResources().getInteger(R.integer.text_sync_delay);
+    }
+
+    /**
+     * Types text with key events instead of data messages, for TVs which do
+     * not handle data messages.
+     *
+     * @param enabled {@code true} to type with key events.
+     */
+    public void setKeyEventFallback(boolean enabled) {
+        keyEventFallback = enabled;
+    }
+
+    /**
+     * Types text on the TV.
+     *
+     * @param text the text to type.
+     */
+    public void sendText(CharSequence text) {
+        if (text.length() == 0) {
+            return;
+        }
+        if (keyEventFallback) {
+            sendAsKeyEvents(text);
+        } else {
+            anymoteSender.sendData(text.toString());
+        }
+    }
+
+    /**
+     * Brings the text typed on the TV by this sender to the given text,
+     * sending only the difference.
+     *
+     * @param text the new text.
+     */
+    public void syncText(CharSequence text) {
+        String current = text.toString();
+        int common = 0;
+        int max = Math.min(current.length(), syncedText.length());
+        while (common < max && current.charAt(common) == syncedText.charAt(common)) {
+            ++common;
+        }
+        for (int i = syncedText.length(); i > common; --i) {
+            anymoteSender.sendKeyPress(Code.KEYCODE_DEL);
+        }
+        sendText(current.substring(common));
+        syncedText = current;
+    }
+
+    /**
+     * Mirrors a text field on the TV. The text already in the field is
+     * considered typed on the TV.
+     *
+     * @param field the text field.
+     */
+    public void attach(EditText field) {
+        detach();
+        editText = field;
+        syncedText = field.getText().toString();
+        field.addTextChangedListener(textWatcher);
+    }
+
+    /**
+     * Stops mirroring the text field, after sending its pending edits.
+     */
+    public void detach() {
+        if (editText == null) {
+            return;
+        }
+        editText.removeTextChangedListener(textWatcher);
+        if (syncPending) {
+            syncPending = false;
+            handler.removeCallbacks(syncCallback);
+            syncText(editText.getText());
+        }
+        editText = null;
+    }
+
+    private void sendAsKeyEvents(CharSequence text) {
+        if (characterMap == null) {
+            characterMap = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
+        }
+        char[] chars = new char[text.length()];
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = text.charAt(i);
+        }
+        KeyEvent[] events = characterMap.getEvents(chars);
+        if (events == null) {
+            // Some characters cannot be typed: type the others one by one.
+            for (char c : chars) {
+                KeyEvent[] charEvents = characterMap.getEvents(new char[] { c });
+                if (charEvents != null) {
+                    sendKeyEvents(charEvents);
+                } else {
+                    Log.w(LOG_TAG, "Cannot type character " + (int) c);
+                }
+            }
+            return;
+        }
+        sendKeyEvents(events);
+    }
+
+    private void sendKeyEvents(KeyEvent[] events) {
+        for (KeyEvent event : events) {
+            Code code = KeyEventTranslator.fromKeyEvent(event.getKeyCode());
+            if (code == null) {
+                continue;
+            }
+            anymoteSender.sendKey(code,
+                    event.getAction() == KeyEvent.ACTION_DOWN ? Action.DOWN : Action.UP);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream measuring the time spent writing to the underlying stream,
+ * so that writing to the socket can be told apart from serializing messages.
+ * Only used from the sender thread.
+ */
+final class TimingOutputStream extends FilterOutputStream {
+
+    private volatile boolean enabled;
+    private long writeNanos;
+
+    TimingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Starts or stops measuring writes.
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return total time spent writing while enabled, in nanoseconds.
+     */
+    long getWriteNanos() {
+        return writeNanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!enabled) {
+            out.write(b);
+            return;
+        }
+        long start = System.nanoTime();
+        out.write(b);
+        writeNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!enabled) {
+            out.write(b, off, len);
+            return;
+        }
+        long start = System.nanoTime();
+        out.write(b, off, len);
+        writeNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (!enabled) {
+            out.flush();
+            return;
+        }
+        long start = System.nanoTime();
+        out.flush();
+        writeNanos += System.nanoTime() - start;
+    }
+}
@@ -16,7 +16,8 @@
 
 package com.example.google.tv.anymotelibrary.client;
 
-import android.os.CountDownTimer;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.view.MotionEvent;
 import android.view.View;
 
@@ -42,9 +43,23 @@ public final class TouchHandler implements View.OnTouchListener {
     private final AnymoteSender anymoteSender;
 
     /**
-     * The current touch sequence.
+     * The touch sequence, reused for every touch.
      */
-    private Sequence state;
+    private final Sequence state;
+
+    /**
+     * Handler of the UI thread, running the click and fling callbacks.
+     */
+    private final Handler handler;
+
+    /**
+     * Sends the click down of a long press.
+     */
+    private final Runnable clickDownCallback = new Runnable() {
+        public void run() {
+            state.onClickDownTimeout();
+        }
+    };
 
     /**
      * {@code true} if the touch handler is active.
@@ -58,11 +73,38 @@ public final class TouchHandler implements View.OnTouchListener {
 
     private final float zoomThreshold;
 
+    /**
+     * Shapes the pointer movements.
+     */
+    private final PointerAccelerator pointerAccelerator;
+
+    /**
+     * Moves the pointer ahead of the finger, when enabled.
+     */
+    private final PointerPredictor pointerPredictor;
+
+    /**
+     * Tracks the pointer on the TV in absolute mode.
+     */
+    private final AbsolutePointer absolutePointer;
+
+    /**
+     * Keeps scrolling after the finger is lifted.
+     */
+    private final FlingScroller flingScroller;
+
     /**
      * Max thresholds for a sequence to be considered a click.
      */
     private static final int CLICK_DISTANCE_THRESHOLD_SQUARE = 30 * 30;
     private static final int CLICK_TIME_THRESHOLD = 500;
+
+    /**
+     * Max thresholds for a touch to continue the previous tap, as a double
+     * tap or as a tap and drag.
+     */
+    private static final int DOUBLE_TAP_DISTANCE_THRESHOLD_SQUARE = 60 * 60;
+    private static final int DOUBLE_TAP_TIME_THRESHOLD = 300;
     private static final float SCROLLING_FACTOR = 0.2f;
 
     /**
@@ -78,6 +120,11 @@ public final class TouchHandler implements View.OnTouchListener {
     private static final float MT_SCROLL_END_THRESHOLD = 1.4f;
     private static final float MT_ZOOM_SCALE_THRESHOLD = 1.8f;
 
+    /**
+     * Number of fingers of the swipes going back or home.
+     */
+    private static final int MT_SWIPE_POINTERS = 3;
+
     /**
      * Describes the way touches should be interpreted.
      */
@@ -86,7 +133,12 @@ public final class TouchHandler implements View.OnTouchListener {
         POINTER_MULTITOUCH,
         SCROLL_VERTICAL,
         SCROLL_HORIZONTAL,
-        ZOOM_VERTICAL
+        ZOOM_VERTICAL,
+        /**
+         * The touch surface maps onto the TV screen: the pointer jumps where
+         * the finger touches.
+         */
+        ABSOLUTE
     }
     /**
      * Constructor
@@ -96,8 +148,12 @@ public final class TouchHandler implements View.OnTouchListener {
      */
     public TouchHandler(View view, Mode mode, AnymoteSender anymoteSender) {
         if (Mode.POINTER_MULTITOUCH.equals(mode)) {
+            MultitouchHandler multitouchHandler = new MultitouchHandler();
             this.scaleGestureDetector = ScaleGestureDetectorFactory
-                    .createScaleGestureDetector(view, new MultitouchHandler());
+                    .createScaleGestureDetector(view, multitouchHandler);
+            if (scaleGestureDetector != null) {
+                scaleGestureDetector.setOnSwipeListener(multitouchHandler, MT_SWIPE_POINTERS);
+            }
             this.mode = Mode.POINTER;
         } else {
             this.scaleGestureDetector = null;
@@ -107,6 +163,13 @@ public final class TouchHandler implements View.OnTouchListener {
         this.anymoteSender = anymoteSender;
         isActive = true;
         zoomThreshold = view.getResources().getInteger(R.integer.zoom_threshold);
+        pointerAccelerator = PointerAccelerator.fromResources(view.getResources());
+        pointerPredictor = PointerPredictor.fromResources(view.getResources());
+        absolutePointer = AbsolutePointer.fromResources(view.getResources());
+        handler = new Handler();
+        flingScroller = FlingScroller.fromResources(view.getResources(), handler,
+                anymoteSender);
+        state = new Sequence();
         view.setOnTouchListener(this);
     }
 
@@ -115,12 +178,16 @@ public final class TouchHandler implements View.OnTouchListener {
             return false;
         }
 
+        if (event.getAction() == MotionEvent.ACTION_DOWN) {
+            // A new touch stops the scroll in progress.
+            flingScroller.reset(event.getEventTime());
+        }
+
         if (scaleGestureDetector != null) {
             scaleGestureDetector.onTouchEvent(event);
             if (scaleGestureDetector.isInProgress()) {
-                if (state != null) {
-                    state.cancelDownTimer();
-                    state = null;
+                if (state.active) {
+                    state.cancel();
                 }
                 return true;
             }
@@ -129,22 +196,25 @@ public final class TouchHandler implements View.OnTouchListener {
         int x = (int) event.getX();
         int y = (int) event.getY();
         long timestamp = event.getEventTime();
+        if (mode == Mode.ABSOLUTE) {
+            absolutePointer.setTarget(x, y, v.getWidth(), v.getHeight());
+        }
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
-                state = new Sequence(x, y, timestamp);
+                state.begin(x, y, timestamp);
                 return true;
 
             case MotionEvent.ACTION_CANCEL:
-                state = null;
+                if (state.active) {
+                    state.cancel();
+                }
                 return true;
 
             case MotionEvent.ACTION_UP:
-                boolean handled = state != null && state.handleUp(x, y, timestamp);
-                state = null;
-                return handled;
+                return state.active && state.handleUp(x, y, timestamp);
 
             case MotionEvent.ACTION_MOVE:
-                return state != null && state.handleMove(x, y, timestamp);
+                return state.active && state.handleMove(x, y, timestamp);
 
             default:
                 return false;
@@ -158,22 +228,72 @@ public final class TouchHandler implements View.OnTouchListener {
         isActive = active;
     }
 
+    /**
+     * Enables or disables the pointer motion prediction. When enabled, the
+     * pointer is moved where the finger is expected to be one network round
+     * trip later, which hides the latency of the connection. The prediction
+     * switches itself off if it turns out to be inaccurate.
+     * 
+     * @param enabled {@code true} to predict the pointer motion.
+     */
+    public void setPredictionEnabled(boolean enabled) {
+        pointerPredictor.setEnabled(enabled);
+    }
+
+    /**
+     * @return {@code true} if the pointer motion is predicted.
+     */
+    public boolean isPredictionEnabled() {
+        return pointerPredictor.isEnabled();
+    }
+
+    /**
+     * Snaps the pointer to a screen corner at the next touch, in absolute
+     * mode. Call it when the pointer may have been moved by other means, e.g.
+     * after a reconnection.
+     */
+    public void recalibrate() {
+        absolutePointer.invalidate();
+    }
+
+    /**
+     * Returns {@code true} if touches click, i.e. in the pointer modes.
+     */
+    private boolean isPointing() {
+        return mode == Mode.POINTER || mode == Mode.ABSOLUTE;
+    }
+
     /**
      * Stores parameters of a touch sequence, i.e. down - move(s) - up and
-     * handles new touch events.
+     * handles new touch events. A single instance is reset at each touch
+     * down, so handling touches allocates nothing.
+     * <p>
+     * In pointer mode, a touch which stays still sends a click, on release or
+     * once it has been held long enough. A touch starting shortly after a tap,
+     * close to it, presses the button right away: released, it makes a double
+     * tap; moved, it drags.
+     * <p>
+     * In absolute mode, the touch down moves the pointer to the touched
+     * location at once. The pointer then follows the finger, but only once
+     * the touch is no longer a candidate tap, so that a tap clicks where it
+     * landed.
      */
     private class Sequence {
 
+        /**
+         * {@code true} between a touch down and the end of the sequence.
+         */
+        private boolean active;
+
         /**
          * Location of the sequence's start event.
          */
-        private final int refX, refY;
+        private int refX, refY;
 
         /**
          * Location of the last touch event.
          */
         private int lastX, lastY;
-        private long lastTimestamp;
 
         /**
          * Delta Y accumulated across several touches.
@@ -181,29 +301,94 @@ public final class TouchHandler implements View.OnTouchListener {
         private int accuY;
 
         /**
-         * Timer that expires when a click down has to be sent.
+         * Pointer or scroll deltas held back while the sender is
+         * backpressured.
+         */
+        private int pendingX, pendingY;
+
+        /**
+         * {@code true} while the click down callback is scheduled.
          */
-        private CountDownTimer clickDownTimer;
+        private boolean clickDownPending;
 
         /**
          * {@code true} if a click down has been sent.
          */
         private boolean clickDownSent;
 
-        public Sequence(int x, int y, long timestamp) {
+        /**
+         * {@code true} if the sequence is a candidate tap: it has not moved and
+         * has not been held long enough to press the button.
+         */
+        private boolean isTap;
+
+        /**
+         * Time and location of the release of the last tap, or -1.
+         */
+        private long lastTapTime = -1;
+        private int lastTapX, lastTapY;
+
+        /**
+         * Starts a new sequence.
+         */
+        void begin(int x, int y, long timestamp) {
+            cancelDownTimer();
+            active = true;
             refX = x;
             refY = y;
+            accuY = 0;
+            pendingX = 0;
+            pendingY = 0;
             clickDownSent = false;
-            setLastTouch(x, y, timestamp);
+            isTap = true;
+            setLastTouch(x, y);
             if (mode == Mode.POINTER) {
-                startClickDownTimer();
+                pointerAccelerator.reset();
+                pointerPredictor.reset(timestamp);
+            } else if (mode == Mode.ABSOLUTE) {
+                absolutePointer.recalibrateIfNeeded(anymoteSender, timestamp);
+                absolutePointer.flush(anymoteSender);
             }
+            if (isPointing()) {
+                if (continuesLastTap(x, y, timestamp)) {
+                    // Double tap or tap and drag: no need to wait.
+                    isTap = false;
+                    clickDown();
+                } else {
+                    startClickDownTimer();
+                }
+            }
+        }
+
+        /**
+         * Ends the sequence without a click, e.g. when a multitouch gesture
+         * starts.
+         */
+        void cancel() {
+            cancelDownTimer();
+            retractPrediction();
+            if (clickDownSent) {
+                Action.CLICK_UP.execute(anymoteSender);
+            }
+            lastTapTime = -1;
+            active = false;
+        }
+
+        /**
+         * Returns {@code true} if a touch down follows the last tap closely
+         * enough both timewise and distance-wise.
+         */
+        private boolean continuesLastTap(int x, int y, long timestamp) {
+            if (lastTapTime < 0 || timestamp - lastTapTime > DOUBLE_TAP_TIME_THRESHOLD) {
+                return false;
+            }
+            int distance = ((lastTapX - x) * (lastTapX - x)) + ((lastTapY - y) * (lastTapY - y));
+            return distance <= DOUBLE_TAP_DISTANCE_THRESHOLD_SQUARE;
         }
 
-        private void setLastTouch(int x, int y, long timestamp) {
+        private void setLastTouch(int x, int y) {
             lastX = x;
             lastY = y;
-            lastTimestamp = timestamp;
         }
 
         /**
@@ -215,35 +400,35 @@ public final class TouchHandler implements View.OnTouchListener {
         }
 
         /**
-         * Starts a timer that will expire after
-         * {@link TouchHandler#CLICK_TIME_THRESHOLD} and start to send a click
-         * down event if the touch event cannot be interpreted as a movement.
+         * Schedules the click down callback after
+         * {@link TouchHandler#CLICK_TIME_THRESHOLD}; it sends a click down
+         * event if the touch event cannot be interpreted as a movement.
          */
         private void startClickDownTimer() {
-            clickDownTimer = new CountDownTimer(CLICK_TIME_THRESHOLD,
-                    CLICK_TIME_THRESHOLD) {
-                    @Override
-                public void onTick(long arg0) {
-                    // Nothing to do.
-                }
+            clickDownPending = true;
+            handler.postDelayed(clickDownCallback, CLICK_TIME_THRESHOLD);
+        }
 
-                    @Override
-                public void onFinish() {
-                    clickDown();
-                }
-            };
-            clickDownTimer.start();
+        /**
+         * Called when the click down callback expires.
+         */
+        void onClickDownTimeout() {
+            if (clickDownPending) {
+                clickDownPending = false;
+                isTap = false;
+                clickDown();
+            }
         }
 
         /**
-         * Cancels the timer, no-op if there is no timer available.
+         * Cancels the click down callback, no-op if it is not scheduled.
          * 
-         * @return {@code true} if there was a timer to cancel
+         * @return {@code true} if there was a callback to cancel
          */
         private boolean cancelDownTimer() {
-            if (clickDownTimer != null) {
-                clickDownTimer.cancel();
-                clickDownTimer = null;
+            if (clickDownPending) {
+                clickDownPending = false;
+                handler.removeCallbacks(clickDownCallback);
                 return true;
             }
             return false;
@@ -266,8 +451,13 @@ public final class TouchHandler implements View.OnTouchListener {
          * @param timestamp a long representing the touch's time
          * @return {@code true} if a click was issued
          */
-        public boolean handleUp(int x, int y, long timestamp) {
-            if (mode != Mode.POINTER) {
+        boolean handleUp(int x, int y, long timestamp) {
+            active = false;
+            retractPrediction();
+            if (!isPointing()) {
+                if (mode == Mode.SCROLL_VERTICAL || mode == Mode.SCROLL_HORIZONTAL) {
+                    flingScroller.fling(timestamp);
+                }
                 return true;
             }
             // If a click down is waiting, send it.
@@ -277,6 +467,13 @@ public final class TouchHandler implements View.OnTouchListener {
             if (clickDownSent) {
                 Action.CLICK_UP.execute(anymoteSender);
             }
+            if (isTap) {
+                lastTapTime = timestamp;
+                lastTapX = x;
+                lastTapY = y;
+            } else {
+                lastTapTime = -1;
+            }
             return true;
         }
 
@@ -289,35 +486,57 @@ public final class TouchHandler implements View.OnTouchListener {
          * @param timestamp a long representing the touch's time
          * @return {@code true} if any action was taken
          */
-        public boolean handleMove(int x, int y, long timestamp) {
-            if (mode == Mode.POINTER) {
+        boolean handleMove(int x, int y, long timestamp) {
+            if (isPointing()) {
                 if (!isMove(x, y)) {
                     // Stand still while it's not a move to avoid a movement
                     // when a click
                     // is performed.
                 } else {
                     cancelDownTimer();
+                    isTap = false;
                 }
             }
 
-            long timeDelta = timestamp - lastTimestamp;
             int deltaX = x - lastX;
             int deltaY = y - lastY;
 
             switch (mode) {
                 case POINTER:
-                    anymoteSender.sendMoveRelative(deltaX, deltaY);
+                    pointerAccelerator.addMovement(deltaX, deltaY, timestamp);
+                    pointerPredictor.addMovement(pointerAccelerator.consumeX(),
+                            pointerAccelerator.consumeY(), timestamp,
+                            anymoteSender.getRoundTripTime());
+                    pendingX += pointerPredictor.consumeX();
+                    pendingY += pointerPredictor.consumeY();
+                    if (!anymoteSender.isBackpressured()) {
+                        flushPending();
+                    }
+                    break;
+
+                case ABSOLUTE:
+                    if (!isTap && !anymoteSender.isBackpressured()) {
+                        flushPending();
+                    }
                     break;
 
                 case SCROLL_VERTICAL:
+                    flingScroller.addMovement(0, deltaY, timestamp);
                     if (shouldTriggerScrollEvent(deltaY)) {
-                        anymoteSender.sendScroll(0, deltaY);
+                        pendingY += deltaY;
+                        if (!anymoteSender.isBackpressured()) {
+                            flushPending();
+                        }
                     }
                     break;
 
                 case SCROLL_HORIZONTAL:
+                    flingScroller.addMovement(deltaX, 0, timestamp);
                     if (shouldTriggerScrollEvent(deltaX)) {
-                        anymoteSender.sendScroll(deltaX, 0);
+                        pendingX += deltaX;
+                        if (!anymoteSender.isBackpressured()) {
+                            flushPending();
+                        }
                     }
                     break;
 
@@ -333,22 +552,72 @@ public final class TouchHandler implements View.OnTouchListener {
                     }
                     break;
             }
-            setLastTouch(x, y, timestamp);
+            setLastTouch(x, y);
             return true;
         }
+
+        /**
+         * Moves the pointer back from its predicted position to the finger
+         * position, and sends the pending deltas.
+         */
+        private void retractPrediction() {
+            if (mode == Mode.POINTER) {
+                pointerPredictor.finish();
+                pendingX += pointerPredictor.consumeX();
+                pendingY += pointerPredictor.consumeY();
+            }
+            flushPending();
+        }
+
+        /**
+         * Sends the deltas held back while the sender was backpressured.
+         */
+        private void flushPending() {
+            if (mode == Mode.ABSOLUTE) {
+                // Only the latest target matters.
+                if (!isTap) {
+                    absolutePointer.flush(anymoteSender);
+                }
+                return;
+            }
+            if (pendingX == 0 && pendingY == 0) {
+                return;
+            }
+            switch (mode) {
+                case POINTER:
+                    anymoteSender.sendMoveRelative(pendingX, pendingY);
+                    break;
+
+                case SCROLL_VERTICAL:
+                case SCROLL_HORIZONTAL:
+                    anymoteSender.sendScroll(pendingX, pendingY);
+                    break;
+
+                default:
+                    break;
+            }
+            pendingX = 0;
+            pendingY = 0;
+        }
     }
 
     /**
-     * Handles multitouch events to capture zoom and sendScroll events.
+     * Handles multitouch events to capture zoom and sendScroll events. Three
+     * fingers swiping left go back, swiping up go home.
      */
     private class MultitouchHandler
-            implements ScaleGestureDetector.OnScaleGestureListener {
+            implements ScaleGestureDetector.OnScaleGestureListener,
+            ScaleGestureDetector.OnSwipeListener {
 
         private float lastScrollX;
         private float lastScrollY;
         private boolean isScrolling;
 
         public boolean onScale(ScaleGestureDetector detector) {
+            if (detector.getPointerCount() >= MT_SWIPE_POINTERS) {
+                // Left to the swipe detection.
+                return false;
+            }
             float scaleFactor = detector.getScaleFactor();
             float deltaX = scaleGestureDetector.getFocusX() - lastScrollX;
             float deltaY = scaleGestureDetector.getFocusY() - lastScrollY;
@@ -399,11 +668,24 @@ public final class TouchHandler implements View.OnTouchListener {
 
         public boolean onScaleBegin(ScaleGestureDetector detector) {
             resetScroll();
+            flingScroller.reset(SystemClock.uptimeMillis());
             return true;
         }
 
         public void onScaleEnd(ScaleGestureDetector detector) {
-            // Do nothing
+            if (isScrolling) {
+                flingScroller.fling(SystemClock.uptimeMillis());
+            }
+        }
+
+        public void onSwipe(ScaleGestureDetector detector, float distanceX, float distanceY) {
+            if (Math.abs(distanceX) > Math.abs(distanceY)) {
+                if (distanceX < 0) {
+                    Action.BACK.execute(anymoteSender);
+                }
+            } else if (distanceY < 0) {
+                Action.HOME.execute(anymoteSender);
+            }
         }
 
         /**
@@ -441,6 +723,7 @@ public final class TouchHandler implements View.OnTouchListener {
          */
         private void executeScrollEvent(float deltaX, float deltaY) {
             anymoteSender.sendScroll(Math.round(deltaX), Math.round(deltaY));
+            flingScroller.addMovement(deltaX, deltaY, SystemClock.uptimeMillis());
             updateScroll();
         }
 
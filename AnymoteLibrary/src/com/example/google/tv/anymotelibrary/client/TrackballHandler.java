@@ -17,13 +17,22 @@
 package com.example.google.tv.anymotelibrary.client;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.media.AudioManager;
+import android.os.Handler;
 import android.view.MotionEvent;
 
 import com.example.google.tv.anymotelibrary.R;
 
 /**
  * The trackball logic.
+ * <p>
+ * In dpad mode, the trackball motion is turned into directional events. The
+ * motion needed for an event shrinks as the trackball rolls faster and as it
+ * keeps rolling in the same direction, so long lists are crossed quickly.
+ * When press and hold is enabled, rolling steadily in one direction presses
+ * the key and leaves the repeat to the TV, until the trackball stops or
+ * turns: two messages instead of one per step.
  */
 public final class TrackballHandler {
 
@@ -62,6 +71,16 @@ public final class TrackballHandler {
          */
         void onDirectionalEvent(Direction direction);
 
+        /**
+         * Called when a dpad key should be pressed or released, to let the
+         * TV repeat it.
+         * 
+         * @param direction represents the direction of the dpad key
+         * @param pressed {@code true} to press the key, {@code false} to
+         *            release it
+         */
+        void onDirectionalHold(Direction direction, boolean pressed);
+
         /**
          * Called when a trackball event should be interpreted as a scrolling
          * event.
@@ -87,6 +106,74 @@ public final class TrackballHandler {
 
     private final int scrollAmount;
 
+    /**
+     * Largest factor by which the motion needed for an event is reduced.
+     */
+    private final float maxAcceleration;
+
+    /**
+     * Rate of directional events, per second, from which the speed
+     * acceleration is maximal.
+     */
+    private final float fastRate;
+
+    /**
+     * Time rolling in the same direction after which the hold acceleration
+     * is maximal, in milliseconds.
+     */
+    private final long accelerationTime;
+
+    /**
+     * Time rolling in the same direction after which the key is held, in
+     * milliseconds.
+     */
+    private final long holdDelay;
+
+    /**
+     * Time without motion which ends a run, and releases a held key, in
+     * milliseconds.
+     */
+    private final long releaseTimeout;
+
+    private boolean pressAndHoldEnabled;
+
+    /**
+     * Direction of the current run of directional events, or {@code null}.
+     */
+    private Direction runDirection;
+
+    /**
+     * Time the current run started and time of the last motion.
+     */
+    private long runStart, lastMotionTime;
+
+    /**
+     * Smoothed speed of the trackball, in directional events per second.
+     */
+    private float speed;
+
+    /**
+     * {@code true} while the key of {@link #runDirection} is held.
+     */
+    private boolean holding;
+
+    /**
+     * {@code true} while the release callback is scheduled.
+     */
+    private boolean releasePending;
+
+    private final Handler handler;
+
+    /**
+     * Releases the held key once the trackball stops.
+     */
+    private final Runnable releaseCallback = new Runnable() {
+        public void run() {
+            releasePending = false;
+            endRun();
+        }
+    };
+
     /**
      * {@code true} if trackball events should be handled.
      */
@@ -110,20 +197,43 @@ public final class TrackballHandler {
     TrackballHandler(Listener listener, Context context) {
         this.listener = listener;
         this.mode = Mode.SCROLL;
-        dpadThreshold = (float) context.getResources().getInteger(
-                R.integer.dpad_threshold) / 100;
-        scrollAmount = context.getResources().getInteger(
-                R.integer.scroll_amount);
+        Resources resources = context.getResources();
+        dpadThreshold = (float) resources.getInteger(R.integer.dpad_threshold) / 100;
+        scrollAmount = resources.getInteger(R.integer.scroll_amount);
+        maxAcceleration = resources.getInteger(R.integer.dpad_max_acceleration) / 100f;
+        fastRate = resources.getInteger(R.integer.dpad_fast_rate);
+        accelerationTime = resources.getInteger(R.integer.dpad_acceleration_time);
+        holdDelay = resources.getInteger(R.integer.dpad_hold_delay);
+        releaseTimeout = resources.getInteger(R.integer.dpad_release_timeout);
+        pressAndHoldEnabled = resources.getBoolean(R.bool.dpad_press_and_hold);
+        handler = new Handler();
     }
 
     public void setEnabled(boolean enabled) {
+        if (!enabled) {
+            endRun();
+        }
         this.enabled = enabled;
     }
 
     public void setMode(Mode mode) {
+        if (mode != this.mode) {
+            endRun();
+        }
         this.mode = mode;
     }
 
+    /**
+     * Enables or disables press and hold. When disabled, every step sends
+     * its own directional event.
+     */
+    public void setPressAndHoldEnabled(boolean enabled) {
+        if (!enabled && holding) {
+            endRun();
+        }
+        pressAndHoldEnabled = enabled;
+    }
+
     public void setAudioManager(AudioManager audioManager) {
         this.audioManager = audioManager;
     }
@@ -167,26 +277,136 @@ public final class TrackballHandler {
      */
     private boolean onDpad(MotionEvent event) {
         if (event.getAction() == MotionEvent.ACTION_DOWN) {
+            endRun();
             playSoundOnDPad();
             listener.onClick();
-            resetMotionAccumulators();
             return true;
         }
+        long timestamp = event.getEventTime();
+        if (runDirection != null && timestamp - lastMotionTime > releaseTimeout) {
+            // The trackball stopped: the next motion starts a new run.
+            endRun();
+        }
+        updateSpeed(event.getX(), event.getY(), timestamp);
+        lastMotionTime = timestamp;
         dpadAccuX += event.getX();
         dpadAccuY += event.getY();
-        if (Math.abs(dpadAccuX) > dpadThreshold) {
-            playSoundOnDPad();
-            listener.onDirectionalEvent(
-                    dpadAccuX > 0 ? Direction.RIGHT : Direction.LEFT);
+
+        float threshold = dpadThreshold / getAcceleration(timestamp);
+        Direction direction = null;
+        if (Math.abs(dpadAccuX) > threshold) {
+            direction = dpadAccuX > 0 ? Direction.RIGHT : Direction.LEFT;
+        } else if (Math.abs(dpadAccuY) > threshold) {
+            direction = dpadAccuY > 0 ? Direction.DOWN : Direction.UP;
+        }
+        if (direction != null) {
+            onStep(direction, threshold, timestamp);
+        }
+        if (holding) {
+            scheduleRelease();
+        }
+        return true;
+    }
+
+    /**
+     * Handles a motion large enough for a directional event.
+     */
+    private void onStep(Direction direction, float threshold, long timestamp) {
+        if (direction != runDirection) {
+            releaseHold();
+            runDirection = direction;
+            runStart = timestamp;
+        }
+        if (holding) {
+            // The TV repeats the key.
             resetMotionAccumulators();
+            return;
         }
-        if (Math.abs(dpadAccuY) > dpadThreshold) {
-            playSoundOnDPad();
-            listener.onDirectionalEvent(
-                    dpadAccuY > 0 ? Direction.DOWN : Direction.UP);
+        if (pressAndHoldEnabled && timestamp - runStart >= holdDelay) {
+            holding = true;
             resetMotionAccumulators();
+            playSoundOnDPad();
+            listener.onDirectionalHold(direction, true);
+            return;
         }
-        return true;
+        // Sends as many events as the motion covers, and keeps the rest.
+        int steps;
+        if (direction == Direction.LEFT || direction == Direction.RIGHT) {
+            steps = (int) (Math.abs(dpadAccuX) / threshold);
+            dpadAccuX %= threshold;
+            dpadAccuY = 0;
+        } else {
+            steps = (int) (Math.abs(dpadAccuY) / threshold);
+            dpadAccuY %= threshold;
+            dpadAccuX = 0;
+        }
+        playSoundOnDPad();
+        for (int i = 0; i < steps; ++i) {
+            listener.onDirectionalEvent(direction);
+        }
+    }
+
+    /**
+     * Returns the factor by which the motion needed for an event is
+     * divided: it grows with the speed of the trackball and with the time
+     * spent rolling in the same direction.
+     */
+    private float getAcceleration(long timestamp) {
+        float speedFactor = Math.min(1, speed / fastRate);
+        float timeFactor = runDirection == null
+                ? 0 : Math.min(1, (float) (timestamp - runStart) / accelerationTime);
+        float acceleration = (1 + (maxAcceleration - 1) * speedFactor)
+                * (1 + (maxAcceleration - 1) * timeFactor);
+        return Math.min(maxAcceleration, acceleration);
+    }
+
+    /**
+     * Updates the smoothed speed of the trackball with a new motion.
+     */
+    private void updateSpeed(float deltaX, float deltaY, long timestamp) {
+        long elapsed = timestamp - lastMotionTime;
+        if (runDirection == null || elapsed <= 0) {
+            return;
+        }
+        float sample = (Math.abs(deltaX) + Math.abs(deltaY)) / dpadThreshold
+                * 1000 / elapsed;
+        speed += (sample - speed) / 2;
+    }
+
+    /**
+     * Ends the current run, releasing the held key if any.
+     */
+    private void endRun() {
+        releaseHold();
+        runDirection = null;
+        speed = 0;
+        resetMotionAccumulators();
+    }
+
+    /**
+     * Releases the held key, if any.
+     */
+    private void releaseHold() {
+        if (releasePending) {
+            releasePending = false;
+            handler.removeCallbacks(releaseCallback);
+        }
+        if (holding) {
+            holding = false;
+            listener.onDirectionalHold(runDirection, false);
+        }
+    }
+
+    /**
+     * Schedules the release of the held key after
+     * {@link #releaseTimeout} without motion.
+     */
+    private void scheduleRelease() {
+        if (releasePending) {
+            handler.removeCallbacks(releaseCallback);
+        }
+        releasePending = true;
+        handler.postDelayed(releaseCallback, releaseTimeout);
     }
 
     private void resetMotionAccumulators() {
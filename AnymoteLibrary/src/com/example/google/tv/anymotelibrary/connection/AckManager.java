@@ -14,14 +14,15 @@
 
 package com.example.google.tv.anymotelibrary.connection;
 
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.example.google.tv.anymotelibrary.client.AnymoteSender;
 
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 /**
  * This class manages the requests for acknowledgments that are sent to the
  * Anymote server to monitor the connection state.
@@ -44,15 +45,82 @@ public final class AckManager {
     private final Listener connectionListener;
 
     /**
-     * Inner class that handles start / stop / ping / ack / timeout messages.
+     * Runs the pings and the handling of the acks, in order.
      */
-    private final AckHandler handler;
+    private final ScheduledExecutorService scheduler;
 
     /**
      * The proxy for sending Anymote events.
      */
     private final AnymoteSender sender;
 
+    /**
+     * Smoothed round trip time of the pings, in milliseconds, or -1 until the
+     * first ack is received.
+     */
+    private volatile long roundTripTime = -1;
+
+    /**
+     * Duration between two ack requests.
+     */
+    private static final int PING_PERIOD = 3 * 1000;
+
+    /**
+     * Max number of missing requests in a row that indicade conneciton lost
+     * this is more robust and only fails if server stops responding
+     */
+    private static final int MAX_LOST_ACKS = 3;
+
+    /**
+     * Number of missing acks in a row above which the connection is
+     * reported as degraded. One ping is always in flight.
+     */
+    private static final int DEGRADED_LOST_ACKS = 1;
+
+    // The fields below are only accessed on the scheduler thread.
+
+    private int lostAcks;
+
+    /**
+     * {@code true} once the listener was told the connection is degraded.
+     */
+    private boolean degraded;
+
+    /**
+     * The next ping, or {@code null} when stopped.
+     */
+    private ScheduledFuture<?> nextPing;
+
+    private final Runnable startTask = new Runnable() {
+        public void run() {
+            if (DEBUG) {
+                Log.d(LOG_TAG, "start @ " + System.currentTimeMillis());
+            }
+            cancelPing();
+            lostAcks = 0;
+            degraded = false;
+            handlePing();
+        }
+    };
+
+    private final Runnable stopTask = new Runnable() {
+        public void run() {
+            cancelPing();
+        }
+    };
+
+    private final Runnable pingTask = new Runnable() {
+        public void run() {
+            handlePing();
+        }
+    };
+
+    private final Runnable ackTask = new Runnable() {
+        public void run() {
+            handleAck();
+        }
+    };
+
     /**
      * Interface used when the connection is lost.
      */
@@ -61,143 +129,116 @@ public final class AckManager {
          * Called on connection timeout.
          */
         public void onTimeout();
+
+        /**
+         * Called when a ping has not been acknowledged within a ping period,
+         * before the connection times out.
+         */
+        public void onDegraded();
+
+        /**
+         * Called when an ack is received after {@link #onDegraded()}.
+         */
+        public void onRecovered();
     }
 
     /**
      * Constructor.
      * 
-     * @param listener Listens for lost connection events.
+     * @param listener Listens for lost connection events. It is called on the
+     *            scheduler thread, and must not block.
      * @param sender Sends Anymote events to server.
+     * @param scheduler Runs the pings; a single-threaded scheduler shared by
+     *            all the connections.
      */
-    public AckManager(final Listener listener, final AnymoteSender sender) {
-        HandlerThread handlerThread = new HandlerThread("AckHandlerThread");
-        handlerThread.start();
-        handler = new AckHandler(handlerThread.getLooper());
+    public AckManager(final Listener listener, final AnymoteSender sender,
+            ScheduledExecutorService scheduler) {
         connectionListener = listener;
         this.sender = sender;
+        this.scheduler = scheduler;
     }
 
     /**
      * Notifies the AckManager that a acknowledgment message has been received.
+     * Any ack shows the connection is alive; the round trip time is only
+     * measured on the pings of this manager.
      */
     public void onAck() {
-        handler.sendEmptyMessage(Action.ACK.ordinal());
-    }
-
-    /**
-     * Starts monitoring connection to Anymote server.
-     */
-    public void start() {
-        handler.sendEmptyMessage(Action.START.ordinal());
+        scheduler.execute(ackTask);
     }
 
     /**
-     * Stops monitoring connection to Anymote server.
-     */
-    public void stop() {
-        handler.removeMessages(Action.PING, Action.START);
-    }
-
-    /**
-     * Stop the ACK handling thread.
+     * Returns the round trip time to the Anymote server, measured from the
+     * pings and their acks and smoothed over the last few pings.
+     * 
+     * @return the round trip time in milliseconds, or -1 if unknown.
      */
-    public void quit() {
-        handler.getLooper().quit();
+    public long getRoundTripTime() {
+        return roundTripTime;
     }
 
     /**
-     * Notifies the listener that the connection to Anymote server has been
-     * lost.
+     * Starts monitoring connection to Anymote server.
      */
-    private void connectionTimeout() {
-        connectionListener.onTimeout();
+    public void start() {
+        scheduler.execute(startTask);
     }
 
     /**
-     * Enum defining action for messages sent to AckHandler.
+     * Stops monitoring connection to Anymote server.
      */
-    private enum Action {
-        START, PING, ACK,
+    public void stop() {
+        scheduler.execute(stopTask);
     }
 
-    /**
-     * Inner class that handles start / stop / ping / ack / timeout messages
-     * from multiple threads, and serializes their execution.
-     */
-    private final class AckHandler extends Handler {
-        /**
-         * Duration between two ack requests.
-         */
-        private static final int PING_PERIOD = 3 * 1000;
-        private int lostAcks;
-
-        /**
-         * Max number of missing requests in a row that indicade conneciton lost
-         * this is more robust and only fails if server stops responding
-         */
-        private static final int MAX_LOST_ACKS = 3;
-
-        AckHandler(Looper looper) {
-            super(looper);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            Action action = actionValueOf(msg.what);
-            if (DEBUG) {
-                Log.d(LOG_TAG, "action=" + action + " : msg=" + msg + " @ "
-                        + System.currentTimeMillis());
-            }
-            switch (action) {
-                case START:
-                    handleStart();
-                    break;
-
-                case PING:
-                    handlePing();
-                    break;
-
-                case ACK:
-                    handleAck();
-                    break;
+    private void handlePing() {
+        final long pingTime = SystemClock.uptimeMillis();
+        sender.sendPing(new AnymoteSender.PingCallback() {
+            public void onAck() {
+                final long sample = SystemClock.uptimeMillis() - pingTime;
+                scheduler.execute(new Runnable() {
+                    public void run() {
+                        updateRoundTripTime(sample);
+                    }
+                });
             }
-        }
 
-        private void handlePing() {
-            sender.sendPing();
-            sendMessageDelayed(obtainMessage(Action.PING), PING_PERIOD);
-            ++lostAcks;
-            if (lostAcks > MAX_LOST_ACKS) {
-                handleTimeout();
+            public void onDropped() {
             }
+        });
+        nextPing = scheduler.schedule(pingTask, PING_PERIOD, TimeUnit.MILLISECONDS);
+        ++lostAcks;
+        if (lostAcks > MAX_LOST_ACKS) {
+            handleTimeout();
+        } else if (lostAcks > DEGRADED_LOST_ACKS && !degraded) {
+            degraded = true;
+            connectionListener.onDegraded();
         }
+    }
 
-        private void handleStart() {
-            lostAcks = 0;
-            handlePing();
-        }
-
-        private void handleTimeout() {
-            removeMessages(Action.PING, Action.ACK);
-            connectionTimeout();
-        }
-
-        private void handleAck() {
-            lostAcks = 0;
-        }
+    private void handleTimeout() {
+        cancelPing();
+        connectionListener.onTimeout();
+    }
 
-        private void removeMessages(Action... actions) {
-            for (Action action : actions) {
-                removeMessages(action.ordinal());
-            }
+    private void handleAck() {
+        lostAcks = 0;
+        if (degraded) {
+            degraded = false;
+            connectionListener.onRecovered();
         }
+    }
 
-        private Message obtainMessage(Action action) {
-            return obtainMessage(action.ordinal());
-        }
+    private void updateRoundTripTime(long sample) {
+        long previous = roundTripTime;
+        // Same smoothing as the TCP round trip time estimator.
+        roundTripTime = previous < 0 ? sample : previous + (sample - previous) / 8;
+    }
 
-        private Action actionValueOf(int what) {
-            return Action.values()[what];
+    private void cancelPing() {
+        if (nextPing != null) {
+            nextPing.cancel(false);
+            nextPing = null;
         }
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads of the Anymote stack:
+ * <ul>
+ * <li>a small bounded pool for short tasks which never block, such as the
+ * TLS handshake computations and the writes to non-blocking sessions,</li>
+ * <li>a larger bounded pool for work which may block for long: connecting
+ * and pairing, writing to blocking sockets, the selector loop, discovery and
+ * the reachability probes; each of these tasks holds a thread while it runs,
+ * and tasks wait in a queue once all the threads are busy,</li>
+ * <li>a single thread for timers, such as the connection pings.</li>
+ * </ul>
+ * Keeping blocking work off the task pool means a pending pairing or a slow
+ * device never starves the other sessions. Idle threads of both pools exit
+ * after a while. A task a pool cannot take because its queue is full is
+ * rejected with a {@link RejectedExecutionException}; tasks submitted after
+ * {@link #shutdown()} are dropped with a warning.
+ */
+public final class AnymoteExecutors {
+
+    private static final String LOG_TAG = "AnymoteExecutors";
+
+    /**
+     * Number of threads of the bounded pool.
+     */
+    private static final int TASK_THREADS = 4;
+
+    /**
+     * Maximum number of short tasks waiting for a thread.
+     */
+    private static final int TASK_QUEUE_CAPACITY = 256;
+
+    /**
+     * Number of threads of the blocking pool: enough for the connecting
+     * tasks, the senders on blocking sockets, the selector loop and discovery
+     * of a few devices at once.
+     */
+    private static final int BLOCKING_THREADS = 16;
+
+    /**
+     * Maximum number of blocking tasks waiting for a thread.
+     */
+    private static final int BLOCKING_QUEUE_CAPACITY = 64;
+
+    /**
+     * Time after which an idle thread exits, in seconds.
+     */
+    private static final int KEEP_ALIVE_S = 30;
+
+    private final ThreadPoolExecutor tasks;
+    private final ThreadPoolExecutor blocking;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Constructor.
+     */
+    public AnymoteExecutors() {
+        tasks = new ThreadPoolExecutor(TASK_THREADS, TASK_THREADS, KEEP_ALIVE_S,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(TASK_QUEUE_CAPACITY),
+                new NamedThreadFactory("AnymoteTask"), new RejectionHandler("task executor"));
+        tasks.allowCoreThreadTimeOut(true);
+        blocking = new ThreadPoolExecutor(BLOCKING_THREADS, BLOCKING_THREADS, KEEP_ALIVE_S,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(BLOCKING_QUEUE_CAPACITY),
+                new NamedThreadFactory("AnymoteIo"), new RejectionHandler("blocking executor"));
+        blocking.allowCoreThreadTimeOut(true);
+        scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("AnymoteTimer"),
+                new RejectionHandler("scheduler"));
+    }
+
+    /**
+     * Returns the executor of short tasks. Its tasks must not block.
+     *
+     * @return the bounded executor.
+     */
+    public ExecutorService getTaskExecutor() {
+        return tasks;
+    }
+
+    /**
+     * Returns the executor of the work which may block, such as socket I/O.
+     * Its tasks get a thread right away unless all of them are busy.
+     *
+     * @return the bounded executor of blocking work.
+     */
+    public ExecutorService getBlockingExecutor() {
+        return blocking;
+    }
+
+    /**
+     * Returns the executor running timers. Its tasks must not block; tasks
+     * which need to do I/O should hand it over to {@link #getBlockingExecutor()}.
+     *
+     * @return the single-threaded scheduled executor.
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return number of threads currently alive, for diagnostics.
+     */
+    public int getThreadCount() {
+        return tasks.getPoolSize() + blocking.getPoolSize() + scheduler.getPoolSize();
+    }
+
+    /**
+     * Stops the executors. Tasks already submitted still run, so pending
+     * disconnections complete; pending timers are dropped. Connecting tasks
+     * should be cancelled first.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        tasks.shutdown();
+        blocking.shutdown();
+    }
+
+    /**
+     * Rejects the tasks an executor cannot take loudly, except after shutdown
+     * where late tasks are expected.
+     */
+    private static final class RejectionHandler implements RejectedExecutionHandler {
+        private final String name;
+
+        RejectionHandler(String name) {
+            this.name = name;
+        }
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                Log.w(LOG_TAG, "Dropping task submitted after shutdown to the " + name);
+                return;
+            }
+            Log.e(LOG_TAG, "The " + name + " is saturated, rejecting " + r);
+            throw new RejectedExecutionException("The " + name + " is saturated");
+        }
+    }
+
+    /**
+     * Names the threads, so they can be told apart in traces.
+     */
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
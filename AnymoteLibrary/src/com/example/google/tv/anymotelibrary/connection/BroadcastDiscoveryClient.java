@@ -15,13 +15,21 @@
 package com.example.google.tv.anymotelibrary.connection;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
-import java.net.SocketException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import android.util.Log;
 
@@ -29,7 +37,10 @@ import android.util.Log;
  * An implementation of a trivial broadcast discovery protocol.
  * <p>
  * This client sends L3 broadcasts to probe for particular services on the
- * network.
+ * network. Probes are sent to the broadcast address of every network the
+ * device is connected to, from a single non-blocking channel. On networks
+ * which filter broadcasts, the client can also sweep the local /24 subnets
+ * with unicast probes.
  */
 public class BroadcastDiscoveryClient implements Runnable {
 
@@ -38,44 +49,56 @@ public class BroadcastDiscoveryClient implements Runnable {
     /**
      * UDP port to send probe messages to.
      */
-    private static final int BROADCAST_SERVER_PORT = 9101;
+    static final int BROADCAST_SERVER_PORT = 9101;
 
     /**
      * Frequency of probe messages.
      */
     private static final int PROBE_INTERVAL_MS = 2000;
 
+    /**
+     * Delay between two batches of unicast sweep probes.
+     */
+    private static final int SWEEP_INTERVAL_MS = 20;
+
     /**
      * Command name for a discovery request.
      */
     private static final String COMMAND_DISCOVER = "discover";
 
     /**
-     * Broadcast address of the local device.
+     * Broadcast addresses of the local networks.
      */
-    private final Inet4Address mBroadcastAddress;
+    private final List<Inet4Address> mBroadcastAddresses;
 
     /**
-     * Timer to send probes.
+     * Hosts to probe with unicast requests, once per run.
      */
-    private final Timer mProbeTimer;
+    private final List<Inet4Address> mSweepAddresses;
 
     /**
-     * TimerTask to send probes.
+     * Maximum number of unicast probes sent in a single batch.
      */
-    private final TimerTask mProbeTimerTask;
+    private int mSweepBatchSize;
 
     /**
-     * Send/receive socket.
+     * Send/receive channel.
      */
-    private final DatagramSocket mSocket;
+    private final DatagramChannel mChannel;
+
+    /**
+     * Selector waking the client thread up when responses arrive.
+     */
+    private final Selector mSelector;
+
+    private volatile boolean mStopped;
     private DeviceDiscoveredListener mListener;
     private final String mServiceName;
 
     /**
      * Broadcast advertisement response to listener.
      */
-    public final class BroadcastAdvertisement {
+    public static final class BroadcastAdvertisement {
 
         /**
          * Name of the service.
@@ -145,71 +168,163 @@ public class BroadcastDiscoveryClient implements Runnable {
      * @param service The name of service we are looking for.
      */
     public BroadcastDiscoveryClient(Inet4Address broadcastAddress, String service) {
-        mBroadcastAddress = broadcastAddress;
+        this(Collections.singletonList(broadcastAddress), service);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param broadcastAddresses destination addresses for probes, one per
+     *            local network.
+     * @param service The name of service we are looking for.
+     */
+    public BroadcastDiscoveryClient(List<Inet4Address> broadcastAddresses, String service) {
+        mBroadcastAddresses = new ArrayList<Inet4Address>(broadcastAddresses);
+        mSweepAddresses = new ArrayList<Inet4Address>();
         mServiceName = service;
 
         try {
+            mChannel = DatagramChannel.open();
             // binds to random port
-            mSocket = new DatagramSocket();
-            mSocket.setBroadcast(true);
-        } catch (SocketException e) {
-            Log.e(LOG_TAG, "Could not create broadcast client socket.", e);
-            throw new RuntimeException();
+            mChannel.socket().bind(null);
+            mChannel.socket().setBroadcast(true);
+            mChannel.configureBlocking(false);
+            mSelector = Selector.open();
+            mChannel.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not create broadcast client channel.", e);
+            throw new RuntimeException(e);
         }
+        Log.i(LOG_TAG, "Starting client on addresses " + mBroadcastAddresses);
+    }
 
-        mProbeTimer = new Timer();
-        mProbeTimerTask = new TimerTask() {
-                @Override
-            public void run() {
-                BroadcastDiscoveryClient.this.sendProbe();
+    /**
+     * Enables the unicast sweep of the /24 subnets of the local addresses.
+     * Each host is probed once per run, at most {@code batchSize} probes being
+     * sent at a time so that the network is not flooded. Must be called
+     * before the client is started.
+     * 
+     * @param localAddresses addresses of the local device.
+     * @param batchSize maximum number of probes sent at a time.
+     */
+    public void enableUnicastSweep(List<Inet4Address> localAddresses, int batchSize) {
+        Set<Inet4Address> targets = new LinkedHashSet<Inet4Address>();
+        for (Inet4Address local : localAddresses) {
+            byte[] octets = local.getAddress();
+            // Skip the network and broadcast addresses.
+            for (int host = 1; host < 255; ++host) {
+                octets[3] = (byte) host;
+                try {
+                    Inet4Address target = (Inet4Address) InetAddress.getByAddress(octets);
+                    if (!target.equals(local)) {
+                        targets.add(target);
+                    }
+                } catch (UnknownHostException e) {
+                    // Not possible with a 4 byte address.
+                }
             }
-        };
-        Log.i(LOG_TAG, "Starting client on address " + mBroadcastAddress);
+        }
+        mSweepAddresses.clear();
+        mSweepAddresses.addAll(targets);
+        mSweepBatchSize = Math.max(1, batchSize);
+        Log.i(LOG_TAG, "Unicast sweep of " + mSweepAddresses.size() + " hosts enabled");
     }
 
     public void run() {
         Log.i(LOG_TAG, "Broadcast client thread starting.");
-        byte[] buffer = new byte[256];
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        long nextProbe = System.currentTimeMillis();
+        long nextSweep = nextProbe;
+        int sweepIndex = 0;
 
-        mProbeTimer.schedule(mProbeTimerTask, 0, PROBE_INTERVAL_MS);
+        try {
+            while (!mStopped) {
+                long now = System.currentTimeMillis();
+                if (now >= nextProbe) {
+                    for (Inet4Address address : mBroadcastAddresses) {
+                        sendProbe(address);
+                    }
+                    nextProbe = now + PROBE_INTERVAL_MS;
+                }
+                boolean sweeping = sweepIndex < mSweepAddresses.size();
+                if (sweeping && now >= nextSweep) {
+                    int end = Math.min(sweepIndex + mSweepBatchSize, mSweepAddresses.size());
+                    for (; sweepIndex < end; ++sweepIndex) {
+                        sendProbe(mSweepAddresses.get(sweepIndex));
+                    }
+                    nextSweep = now + SWEEP_INTERVAL_MS;
+                }
+
+                long wakeUp = sweeping ? Math.min(nextProbe, nextSweep) : nextProbe;
+                mSelector.select(Math.max(1, wakeUp - now));
+                mSelector.selectedKeys().clear();
+                receiveResponses(buffer);
+            }
+        } catch (IOException e) {
+            if (!mStopped) {
+                Log.e(LOG_TAG, "Broadcast client failed", e);
+            }
+        } finally {
+            close();
+        }
+        Log.i(LOG_TAG, "Exiting client loop.");
+    }
 
+    /**
+     * Reads all the pending responses.
+     */
+    private void receiveResponses(ByteBuffer buffer) throws IOException {
         while (true) {
-            try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                mSocket.receive(packet);
-                handleResponsePacket(packet);
-            } catch (InterruptedIOException e) {
-                // timeout
-            } catch (IOException e) {
-                // SocketException - stop() was called
-                mProbeTimer.cancel();
-                break;
+            buffer.clear();
+            SocketAddress from = mChannel.receive(buffer);
+            if (from == null) {
+                return;
+            }
+            BroadcastAdvertisement advert = parseResponse(buffer.array(), buffer.position(),
+                    ((InetSocketAddress) from).getAddress(), mServiceName);
+            if (advert != null && mListener != null) {
+                mListener.onDeviceDiscovered(advert);
             }
         }
-        Log.i(LOG_TAG, "Exiting client loop.");
-        mProbeTimer.cancel();
     }
 
     /**
-     * Sends a single broadcast discovery request.
+     * Sends a single discovery request.
+     * 
+     * @param address broadcast address, or address of a single host.
      */
-    private void sendProbe() {
-        DatagramPacket packet = makeRequestPacket(mServiceName, mSocket.getLocalPort());
+    private void sendProbe(Inet4Address address) {
+        ByteBuffer request = ByteBuffer.wrap(makeRequest(mServiceName, getLocalPort()));
+        try {
+            if (mChannel.send(request, new InetSocketAddress(address, BROADCAST_SERVER_PORT))
+                    == 0) {
+                Log.w(LOG_TAG, "Send buffer full, probe to " + address + " dropped");
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Exception sending probe to " + address, e);
+        }
+    }
+
+    private int getLocalPort() {
+        return mChannel.socket().getLocalPort();
+    }
+
+    private void close() {
         try {
-            mSocket.send(packet);
+            mSelector.close();
+            mChannel.close();
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Exception sending broadcast probe", e);
-            return;
+            Log.w(LOG_TAG, "Error while closing broadcast client", e);
         }
     }
 
     /**
-     * Immediately stops the receiver thread, and cancels the probe timer.
+     * Stops the receiver thread. The channel is closed by the thread when it
+     * exits.
      */
     public void stop() {
-        if (mSocket != null) {
-            mSocket.close();
-        }
+        mStopped = true;
+        mSelector.wakeup();
     }
 
     /**
@@ -217,47 +332,71 @@ public class BroadcastDiscoveryClient implements Runnable {
      * 
      * @param serviceName the service name to discover
      * @param responsePort the udp port number for replies
+     * @param address destination of the probe, either a broadcast address or
+     *            the address of a single device
      * @return a new DatagramPacket
      */
-    private DatagramPacket makeRequestPacket(String serviceName, int responsePort) {
-        String message = COMMAND_DISCOVER + " " + serviceName + " " + responsePort + "\n";
-        byte[] buf = message.getBytes();
+    static DatagramPacket makeRequestPacket(
+            String serviceName, int responsePort, Inet4Address address) {
+        byte[] buf = makeRequest(serviceName, responsePort);
         DatagramPacket packet =
-                new DatagramPacket(buf, buf.length, mBroadcastAddress, BROADCAST_SERVER_PORT);
+                new DatagramPacket(buf, buf.length, address, BROADCAST_SERVER_PORT);
         return packet;
     }
 
+    private static byte[] makeRequest(String serviceName, int responsePort) {
+        String message = COMMAND_DISCOVER + " " + serviceName + " " + responsePort + "\n";
+        return message.getBytes();
+    }
+
     /**
-     * Parse a received packet, and notify the main thread if valid.
-     * 
-     * @param packet The locally-received DatagramPacket
+     * Parses a response to a probe.
+     *
+     * @param packet the received packet
+     * @param serviceName the service name which was probed
+     * @return the advertisement, or {@code null} if the packet is not a valid
+     *         response for the service
      */
-    private void handleResponsePacket(DatagramPacket packet) {
-        String strPacket = new String(packet.getData(), 0, packet.getLength());
+    static BroadcastAdvertisement parseResponsePacket(DatagramPacket packet, String serviceName) {
+        return parseResponse(packet.getData(), packet.getLength(), packet.getAddress(),
+                serviceName);
+    }
+
+    /**
+     * Parses a response to a probe.
+     *
+     * @param data buffer holding the response
+     * @param length length of the response
+     * @param sender address the response was received from
+     * @param serviceName the service name which was probed
+     * @return the advertisement, or {@code null} if the response is not valid
+     *         for the service
+     */
+    private static BroadcastAdvertisement parseResponse(
+            byte[] data, int length, InetAddress sender, String serviceName) {
+        if (!(sender instanceof Inet4Address)) {
+            return null;
+        }
+        String strPacket = new String(data, 0, length);
         String tokens[] = strPacket.trim().split("\\s+");
 
         if (tokens.length != 3) {
             Log.w(LOG_TAG, "Malformed response: expected 3 tokens, got " + tokens.length);
-            return;
+            return null;
         }
 
-        BroadcastAdvertisement advert;
         try {
             String serviceType = tokens[0];
-            if (!serviceType.equals(mServiceName)) {
-                return;
+            if (!serviceType.equals(serviceName)) {
+                return null;
             }
-            String serviceName = tokens[1];
+            String advertisedName = tokens[1];
             int port = Integer.parseInt(tokens[2]);
-            Inet4Address addr = (Inet4Address) packet.getAddress();
-            Log.v(LOG_TAG, "Broadcast response: " + serviceName + ", " + addr + ", " + port);
-            advert = new BroadcastAdvertisement(serviceName, addr, port);
+            Inet4Address addr = (Inet4Address) sender;
+            Log.v(LOG_TAG, "Broadcast response: " + advertisedName + ", " + addr + ", " + port);
+            return new BroadcastAdvertisement(advertisedName, addr, port);
         } catch (NumberFormatException e) {
-            return;
-        }
-
-        if (mListener != null) {
-            mListener.onDeviceDiscovered(advert);
+            return null;
         }
     }
 
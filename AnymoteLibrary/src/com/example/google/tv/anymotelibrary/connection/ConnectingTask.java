@@ -29,6 +29,7 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Build;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.example.google.tv.anymotelibrary.client.AnymoteSender;
@@ -36,11 +37,17 @@ import com.example.google.tv.anymotelibrary.client.AnymoteClientService.ClientLi
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -49,25 +56,65 @@ import javax.net.ssl.SSLSocketFactory;
 
 /**
  * This task covers entire connection mechanism, including pairing, when
- * necessary.
+ * necessary. It runs on the blocking executor.
+ * <p>
+ * Pairing is pipelined: while the user enters the secret, the TCP connection
+ * of the Anymote session is opened in the background, and the TLS handshake
+ * starts on it as soon as the pairing succeeds, without waiting. A
+ * connection the TV closed meanwhile, or which idled too long, is reopened.
  */
-public class ConnectingTask extends Thread {
+public class ConnectingTask implements Runnable {
     private static final String REMOTE_NAME = Build.MANUFACTURER + " " + Build.MODEL;
     private static final int RECONNECTION_DELAY_MS = 1000;
     private static final int MAX_CONNECTION_ATTEMPTS = 3;
+    private static final int CONNECTION_TIMEOUT_MS = 10 * 1000;
+
+    /**
+     * Age after which a connection opened during the pairing is reopened
+     * rather than used, as the TV may have dropped it silently.
+     */
+    private static final long PRECONNECTION_MAX_AGE_MS = 20 * 1000;
     private static final String LOG_TAG = "ConnectingActivity";
 
     private final Object secretSync;
     private final AnymoteSender anymoteProxy;
     private final KeyStoreManager keyStore;
+    private final AnymoteExecutors executors;
 
     private TvDevice target;
     private ConnectionListener listener;
-    private boolean isCancelled;
+    private volatile boolean isCancelled;
     private String secret;
     private SSLSocket sslsock;
+
+    /** Non-blocking transport, or {@code null} to use a blocking socket. */
+    private NioTransport transport;
+
+    /** The session opened on the transport, or {@code null}. */
+    private volatile NioSession nioSession;
     private Context context;
 
+    /**
+     * Connection to the Anymote port opened during the pairing, or
+     * {@code null}.
+     */
+    private Future<SocketChannel> preconnection;
+
+    /** Time the connection opened during the pairing was established. */
+    private volatile long preconnectionTime;
+
+    /** The running task, {@code null} until started. */
+    private Future<?> future;
+
+    /** Duration of the last TCP connection, in milliseconds, or -1. */
+    private volatile long socketConnectTime = -1;
+
+    /** Duration of the last TLS handshake, in milliseconds, or -1. */
+    private volatile long handshakeTime = -1;
+
+    /** Duration of the pairing, in milliseconds, or -1 if not paired. */
+    private volatile long pairingTime = -1;
+
     /**
      * Connection status enumeration.
      */
@@ -152,25 +199,44 @@ public class ConnectingTask extends Thread {
      *            certificates.
      * @param context context of the foreground Activity which wants to send
      *            events to the server
+     * @param executors the executors running the connection.
      */
-    public ConnectingTask(TvDevice device, KeyStoreManager keystoreManager, Context context) {
+    public ConnectingTask(TvDevice device, KeyStoreManager keystoreManager, Context context,
+            AnymoteExecutors executors) {
         this.context = context;
         target = device;
         isCancelled = false;
         secretSync = new Object();
         secret = null;
         keyStore = keystoreManager;
-        anymoteProxy = new AnymoteSender(this);
+        this.executors = executors;
+        anymoteProxy = new AnymoteSender(this, executors);
+    }
+
+    /**
+     * Starts connecting on the blocking executor.
+     */
+    public synchronized void start() {
+        if (future == null) {
+            future = executors.getBlockingExecutor().submit(this);
+        }
     }
 
     /**
      * Initialize background connection; notify the listener about results.
      */
-    @Override
     public void run() {
-        Looper.prepare();
+        // Pool threads keep their looper between tasks.
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
         boolean state = connect();
-        state = anymoteProxy.attemptToConnect(sslsock);
+        if (state) {
+            NioSession session = nioSession;
+            state = session != null
+                    ? anymoteProxy.attemptToConnect(session)
+                    : anymoteProxy.attemptToConnect(sslsock);
+        }
         if (isCancelled) {
             disconnect();
         } else {
@@ -188,42 +254,185 @@ public class ConnectingTask extends Thread {
 
     /**
      * Loops to connect to the server until connection is established or max
-     * allowed attempts are made.
+     * allowed attempts are made. Pairing is only performed when the server
+     * does not know the client certificate yet, so reconnecting to a paired
+     * device needs a single handshake.
      * 
      * @return true, if connection succeeded.
      */
     protected boolean connect() {
-        PairingStatus pairingStatus = attemptToPair(new PairingListenerImpl());
-        if (pairingStatus != PairingStatus.PAIRING_SUCCESS) {
-            Log.i(LOG_TAG, "Pairing failed");
-            return false;
-        }
+        boolean paired = false;
+        boolean justPaired = false;
         for (int connectionAttempt = 0; connectionAttempt < MAX_CONNECTION_ATTEMPTS;) {
             /*
              * wait on every next iteration; placed here so we don't wait after
-             * final one
+             * final one. The first attempt after pairing goes right away, on
+             * the connection opened during the pairing.
              */
             try {
-                if (connectionAttempt > 0) {
+                if (connectionAttempt > 0 && !justPaired) {
                     // Give server time to accept connection if we just paired
                     Thread.sleep(RECONNECTION_DELAY_MS);
                 }
             } catch (InterruptedException e) {
                 return false;
             }
+            justPaired = false;
             if (isCancelled) {
                 return false;
             }
-            if (attemptToConnect() == ConnectionStatus.SUCCESS) {
+            ConnectionStatus status = attemptToConnect();
+            if (status == ConnectionStatus.SUCCESS) {
                 Log.i(LOG_TAG, "Connected to " + target.toString());
                 return true;
             }
+            if (status == ConnectionStatus.NEEDS_PAIRING && !paired) {
+                if (listener != null) {
+                    listener.onConnectionPairing();
+                }
+                long pairingStart = SystemClock.elapsedRealtime();
+                PairingStatus pairingStatus = attemptToPair(new PairingListenerImpl());
+                pairingTime = SystemClock.elapsedRealtime() - pairingStart;
+                if (pairingStatus != PairingStatus.PAIRING_SUCCESS) {
+                    Log.i(LOG_TAG, "Pairing failed");
+                    discardPreconnection();
+                    return false;
+                }
+                paired = true;
+                justPaired = true;
+            }
             connectionAttempt++;
         }
         Log.i(LOG_TAG, "Connection failed");
+        discardPreconnection();
         return false;
     }
 
+    /**
+     * Starts opening the connection of the Anymote session on the blocking
+     * executor, off the pairing thread, so that it is ready when the pairing
+     * succeeds.
+     */
+    private synchronized void preconnect() {
+        if (preconnection != null || isCancelled) {
+            return;
+        }
+        final InetSocketAddress address =
+                new InetSocketAddress(target.getAddress(), target.getPort());
+        preconnection = executors.getBlockingExecutor().submit(new Callable<SocketChannel>() {
+            public SocketChannel call() throws IOException {
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    channel.socket().setTcpNoDelay(true);
+                    channel.socket().setKeepAlive(true);
+                    channel.socket().connect(address, CONNECTION_TIMEOUT_MS);
+                    preconnectionTime = SystemClock.elapsedRealtime();
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                return channel;
+            }
+        });
+    }
+
+    /**
+     * Returns the connection opened during the pairing, waiting for it if it
+     * is still being opened. The connection is dropped if it is too old or
+     * the TV closed it meanwhile.
+     *
+     * @return the connected channel, in blocking mode, or {@code null} if
+     *         there is none or it is not usable.
+     */
+    private SocketChannel takePreconnection() {
+        Future<SocketChannel> pending;
+        synchronized (this) {
+            pending = preconnection;
+            preconnection = null;
+        }
+        if (pending == null) {
+            return null;
+        }
+        SocketChannel channel = null;
+        try {
+            channel = pending.get(CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Log.w(LOG_TAG, "Connection opened during pairing failed", e.getCause());
+        } catch (TimeoutException e) {
+            Log.w(LOG_TAG, "Connection opened during pairing timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (channel == null) {
+            closeQuietly(pending);
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - preconnectionTime > PRECONNECTION_MAX_AGE_MS) {
+            Log.i(LOG_TAG, "Connection opened during pairing is too old, reconnecting");
+        } else if (!isOpen(channel)) {
+            Log.i(LOG_TAG, "Connection opened during pairing was closed, reconnecting");
+        } else {
+            return channel;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "(IOE) Could not close socket", e);
+        }
+        return null;
+    }
+
+    /**
+     * Checks that the TV has neither closed nor reset an idle connection. The
+     * TV never speaks first, so there is nothing to read on a live one.
+     */
+    private static boolean isOpen(SocketChannel channel) {
+        if (!channel.isConnected()) {
+            return false;
+        }
+        try {
+            channel.configureBlocking(false);
+            int read = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            return read == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the connection opened during the pairing, if any.
+     */
+    private void discardPreconnection() {
+        Future<SocketChannel> pending;
+        synchronized (this) {
+            pending = preconnection;
+            preconnection = null;
+        }
+        if (pending != null) {
+            closeQuietly(pending);
+        }
+    }
+
+    /**
+     * Closes a connection being opened, or stops opening it.
+     */
+    private static void closeQuietly(Future<SocketChannel> pending) {
+        // Interrupting the connection closes the channel.
+        if (pending.cancel(true)) {
+            return;
+        }
+        try {
+            pending.get().close();
+        } catch (ExecutionException e) {
+            // Never connected.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "(IOE) Could not close socket", e);
+        }
+    }
+
     /**
      * Attempts to establish pairing with the server.
      * 
@@ -237,11 +446,8 @@ public class ConnectingTask extends Thread {
         PairingContext context;
 
         try {
-            try {
-                socketFactory = DummySSLSocketFactory.fromKeyManagers(keyStore.getKeyManagers());
-            } catch (GeneralSecurityException e) {
-                throw new IllegalStateException("Cannot build socket factory", e);
-            }
+            // Cached by the key store, across pairings.
+            socketFactory = keyStore.getPairingSocketFactory();
 
             Socket s =
                     new java.net.Socket(target.getAddress().getHostAddress(), target.getPort() + 1);
@@ -261,7 +467,7 @@ public class ConnectingTask extends Thread {
 
             boolean ret = pairingSession.doPair(listener);
             if (ret) {
-                keyStore.storeCertificate(context.getServerCertificate());
+                keyStore.storeCertificate(target, context.getServerCertificate());
                 result = PairingStatus.PAIRING_SUCCESS;
             } else {
                 if (listener.isFailedSecret()) {
@@ -270,6 +476,9 @@ public class ConnectingTask extends Thread {
                     result = PairingStatus.FAILED_CANCELLED;
                 }
             }
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Cannot build socket factory", e);
+            result = PairingStatus.FAILED_CONNECTION;
         } catch (UnknownHostException e) {
             Log.e(LOG_TAG, "Unknown host. Failed to connect", e);
             result = PairingStatus.FAILED_CONNECTION;
@@ -287,12 +496,14 @@ public class ConnectingTask extends Thread {
      * Cancel current connection.
      */
     public void cancel() {
+        isCancelled = true;
         disconnect();
         // Interrupt thread in case it's pending on pairing code.
         synchronized (this) {
-            this.interrupt();
+            if (future != null) {
+                future.cancel(true);
+            }
         }
-        isCancelled = true;
     }
 
     /**
@@ -338,25 +549,36 @@ public class ConnectingTask extends Thread {
      * @return result of connection attempt.
      */
     public ConnectionStatus attemptToConnect() {
+        if (transport != null) {
+            return attemptToConnectNio();
+        }
         ConnectionStatus status = ConnectionStatus.ERROR;
 
         try {
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(keyStore.getKeyManagers(), keyStore.getTrustManagers(), null);
-            SSLSocketFactory factory = sslContext.getSocketFactory();
-            sslsock = (SSLSocket) factory.createSocket(
-                    target.getAddress().getHostAddress(), target.getPort());
+            // The pinned context of the device is cached by the key store.
+            SSLSocketFactory factory = keyStore.getSSLContext(target).getSocketFactory();
+            String host = target.getAddress().getHostAddress();
+            long start = SystemClock.elapsedRealtime();
+            SocketChannel channel = takePreconnection();
+            if (channel != null) {
+                sslsock = (SSLSocket) factory.createSocket(
+                        channel.socket(), host, target.getPort(), true);
+            } else {
+                sslsock = (SSLSocket) factory.createSocket(host, target.getPort());
+            }
+            long connected = SystemClock.elapsedRealtime();
+            socketConnectTime = connected - start;
             sslsock.setUseClientMode(true);
             sslsock.setKeepAlive(true);
             sslsock.setTcpNoDelay(true);
             sslsock.startHandshake();
+            handshakeTime = SystemClock.elapsedRealtime() - connected;
 
             if (sslsock.isConnected()) {
                 status = ConnectionStatus.SUCCESS;
             }
-        } catch (NoSuchAlgorithmException e) {
-            status = ConnectionStatus.ERROR;
-        } catch (KeyManagementException e) {
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Could not create TLS context", e);
             status = ConnectionStatus.ERROR;
         } catch (SSLException e) {
             Log.e(LOG_TAG, "(SSL) Could not create socket to " + target.getName(), e);
@@ -388,12 +610,83 @@ public class ConnectingTask extends Thread {
         return status;
     }
 
+    /**
+     * Attempts to establish connection the Anymote server on the non-blocking
+     * transport.
+     *
+     * @return result of connection attempt.
+     */
+    private ConnectionStatus attemptToConnectNio() {
+        NioSession session = null;
+        try {
+            SSLContext sslContext = keyStore.getSSLContext(target);
+            session = transport.open(
+                    new InetSocketAddress(target.getAddress(), target.getPort()),
+                    sslContext, takePreconnection());
+            nioSession = session;
+            if (isCancelled) {
+                throw new IOException("Cancelled");
+            }
+            session.awaitHandshake(CONNECTION_TIMEOUT_MS);
+            socketConnectTime = session.getConnectTime();
+            handshakeTime = session.getHandshakeTime();
+            return ConnectionStatus.SUCCESS;
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Could not create TLS context", e);
+        } catch (SSLException e) {
+            Log.e(LOG_TAG, "(SSL) Handshake refused by " + target.getName(), e);
+            nioSession = null;
+            return ConnectionStatus.NEEDS_PAIRING;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "(IOE) Could not connect to " + target.getName(), e);
+        }
+        if (session != null) {
+            session.stop();
+        }
+        nioSession = null;
+        return ConnectionStatus.ERROR;
+    }
+
+    /**
+     * Makes the Anymote session use a non-blocking transport instead of a
+     * blocking socket. Must be called before the task is started.
+     *
+     * @param transport the transport, or {@code null} for a blocking socket.
+     */
+    public void setTransport(NioTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return duration of the TCP connection of the last attempt, in
+     *         milliseconds, or -1 if it did not connect.
+     */
+    public long getSocketConnectTime() {
+        return socketConnectTime;
+    }
+
+    /**
+     * @return duration of the TLS handshake of the last successful attempt, in
+     *         milliseconds, or -1.
+     */
+    public long getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    /**
+     * @return duration of the pairing, including the time the user took to
+     *         enter the secret, in milliseconds, or -1 if no pairing was
+     *         needed.
+     */
+    public long getPairingTime() {
+        return pairingTime;
+    }
+
     /**
      * Disconnect from the Anymote server.
      */
     public void disconnect() {
-        new Thread(new Runnable() {
-                @Override
+        executors.getBlockingExecutor().execute(new Runnable() {
             public void run() {
                 if (anymoteProxy != null) {
                     anymoteProxy.destroy();
@@ -406,9 +699,14 @@ public class ConnectingTask extends Thread {
                     Log.e(LOG_TAG, "(IOE) Failed to close socket", e);
                 }
                 sslsock = null;
+                discardPreconnection();
+                NioSession session = nioSession;
+                if (session != null) {
+                    session.stop();
+                    nioSession = null;
+                }
             }
-
-        }).start();
+        });
     }
 
     /**
@@ -445,7 +743,11 @@ public class ConnectingTask extends Thread {
 
         public void onPerformInputDeviceRole(PairingSession session) {
 
-            Looper.prepare();
+            if (Looper.myLooper() == null) {
+                Looper.prepare();
+            }
+            // The user takes seconds to type the secret: connect meanwhile.
+            preconnect();
             // this listener is implemented by the main Activity which
             // shows Pairing PIN dialog to the user to enter secret code.
             listener.onSecretRequired(this);
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+/**
+ * States of the connection to the Anymote service of a TV.
+ */
+public enum ConnectionState {
+    /**
+     * Nothing started yet.
+     */
+    IDLE,
+    /**
+     * Looking for a TV on the network.
+     */
+    DISCOVERING,
+    /**
+     * Connecting to a TV selected by the user or found in the cache.
+     */
+    CONNECTING,
+    /**
+     * Pairing with the TV, usually waiting for the user to enter the secret.
+     */
+    PAIRING,
+    /**
+     * Connected, and the TV answers the pings.
+     */
+    CONNECTED,
+    /**
+     * Connected, but the TV is late answering the pings.
+     */
+    DEGRADED,
+    /**
+     * Connecting again to the TV of a lost connection.
+     */
+    RECONNECTING,
+    /**
+     * The connection failed or was lost.
+     */
+    DISCONNECTED
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks the state of the connection to a TV, and how long connecting takes.
+ * <p>
+ * Transitions are checked against the allowed ones, listed in
+ * {@link #TRANSITIONS}; a transition which is not allowed is logged and
+ * ignored. Listeners are called on the thread making the transition, after
+ * the state has changed. This class is thread-safe.
+ */
+public final class ConnectionStateMachine {
+
+    private static final String LOG_TAG = "ConnectionStateMachine";
+
+    /**
+     * Receives the state changes.
+     */
+    public interface StateListener {
+        /**
+         * Called when the connection state changes.
+         *
+         * @param from the previous state.
+         * @param to the new state.
+         * @param device the device concerned, or {@code null}.
+         */
+        void onStateChanged(ConnectionState from, ConnectionState to, TvDevice device);
+    }
+
+    /**
+     * States reachable from each state.
+     */
+    private static final Map<ConnectionState, EnumSet<ConnectionState>> TRANSITIONS =
+            new EnumMap<ConnectionState, EnumSet<ConnectionState>>(ConnectionState.class);
+
+    static {
+        TRANSITIONS.put(ConnectionState.IDLE, EnumSet.of(
+                ConnectionState.DISCOVERING, ConnectionState.CONNECTING));
+        TRANSITIONS.put(ConnectionState.DISCOVERING, EnumSet.of(
+                ConnectionState.IDLE, ConnectionState.CONNECTING));
+        TRANSITIONS.put(ConnectionState.CONNECTING, EnumSet.of(
+                ConnectionState.IDLE, ConnectionState.DISCOVERING, ConnectionState.CONNECTING,
+                ConnectionState.PAIRING, ConnectionState.CONNECTED,
+                ConnectionState.DISCONNECTED));
+        TRANSITIONS.put(ConnectionState.PAIRING, EnumSet.of(
+                ConnectionState.IDLE, ConnectionState.DISCOVERING, ConnectionState.CONNECTING,
+                ConnectionState.CONNECTED, ConnectionState.DISCONNECTED));
+        TRANSITIONS.put(ConnectionState.CONNECTED, EnumSet.of(
+                ConnectionState.IDLE, ConnectionState.CONNECTING, ConnectionState.DEGRADED,
+                ConnectionState.RECONNECTING, ConnectionState.DISCONNECTED));
+        TRANSITIONS.put(ConnectionState.DEGRADED, EnumSet.of(
+                ConnectionState.IDLE, ConnectionState.CONNECTING, ConnectionState.CONNECTED,
+                ConnectionState.RECONNECTING, ConnectionState.DISCONNECTED));
+        TRANSITIONS.put(ConnectionState.RECONNECTING, EnumSet.of(
+                ConnectionState.IDLE, ConnectionState.DISCOVERING, ConnectionState.CONNECTING,
+                ConnectionState.PAIRING, ConnectionState.CONNECTED,
+                ConnectionState.DISCONNECTED));
+        TRANSITIONS.put(ConnectionState.DISCONNECTED, EnumSet.of(
+                ConnectionState.IDLE, ConnectionState.DISCOVERING, ConnectionState.CONNECTING,
+                ConnectionState.RECONNECTING));
+    }
+
+    /**
+     * Snapshot of the connection metrics.
+     */
+    public static final class Metrics {
+        private final ConnectionState state;
+        private final long[] timeInState;
+        private final int[] enterCount;
+        private final int reconnectCount;
+        private final int failureCount;
+        private final long lastSocketConnectTime;
+        private final long lastHandshakeTime;
+        private final long totalHandshakeTime;
+        private final int handshakeCount;
+        private final long lastPairingTime;
+        private final long lastConnectTime;
+
+        private Metrics(ConnectionStateMachine machine, long now) {
+            state = machine.state;
+            timeInState = machine.timeInState.clone();
+            timeInState[state.ordinal()] += now - machine.stateEnterTime;
+            enterCount = machine.enterCount.clone();
+            reconnectCount = machine.reconnectCount;
+            failureCount = machine.failureCount;
+            lastSocketConnectTime = machine.lastSocketConnectTime;
+            lastHandshakeTime = machine.lastHandshakeTime;
+            totalHandshakeTime = machine.totalHandshakeTime;
+            handshakeCount = machine.handshakeCount;
+            lastPairingTime = machine.lastPairingTime;
+            lastConnectTime = machine.lastConnectTime;
+        }
+
+        /**
+         * @return the state when the snapshot was taken.
+         */
+        public ConnectionState getState() {
+            return state;
+        }
+
+        /**
+         * @param state a state.
+         * @return total time spent in the state, in milliseconds.
+         */
+        public long getTimeInState(ConnectionState state) {
+            return timeInState[state.ordinal()];
+        }
+
+        /**
+         * @param state a state.
+         * @return number of times the state was entered.
+         */
+        public int getEnterCount(ConnectionState state) {
+            return enterCount[state.ordinal()];
+        }
+
+        /**
+         * @return number of reconnections.
+         */
+        public int getReconnectCount() {
+            return reconnectCount;
+        }
+
+        /**
+         * @return number of connection attempts which failed.
+         */
+        public int getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * @return duration of the last TCP connection, in milliseconds, or -1.
+         */
+        public long getLastSocketConnectTime() {
+            return lastSocketConnectTime;
+        }
+
+        /**
+         * @return duration of the last TLS handshake, in milliseconds, or -1.
+         */
+        public long getLastHandshakeTime() {
+            return lastHandshakeTime;
+        }
+
+        /**
+         * @return average duration of the TLS handshakes, in milliseconds, or
+         *         -1.
+         */
+        public long getAverageHandshakeTime() {
+            return handshakeCount > 0 ? totalHandshakeTime / handshakeCount : -1;
+        }
+
+        /**
+         * @return duration of the last pairing, in milliseconds, or -1.
+         */
+        public long getLastPairingTime() {
+            return lastPairingTime;
+        }
+
+        /**
+         * @return time from the start of the last successful connection
+         *         attempt to the connection, in milliseconds, or -1.
+         */
+        public long getLastConnectTime() {
+            return lastConnectTime;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("state=").append(state);
+            for (ConnectionState s : ConnectionState.values()) {
+                int i = s.ordinal();
+                if (enterCount[i] > 0) {
+                    builder.append(' ').append(s).append('=').append(timeInState[i])
+                            .append("ms/").append(enterCount[i]);
+                }
+            }
+            builder.append(" reconnects=").append(reconnectCount)
+                    .append(" failures=").append(failureCount)
+                    .append(" tcp=").append(lastSocketConnectTime)
+                    .append("ms tls=").append(lastHandshakeTime)
+                    .append("ms pairing=").append(lastPairingTime)
+                    .append("ms connect=").append(lastConnectTime).append("ms");
+            return builder.toString();
+        }
+    }
+
+    private final List<StateListener> listeners;
+
+    private ConnectionState state;
+    private TvDevice device;
+    private long stateEnterTime;
+    private final long[] timeInState;
+    private final int[] enterCount;
+    private int reconnectCount;
+    private int failureCount;
+    private long lastSocketConnectTime = -1;
+    private long lastHandshakeTime = -1;
+    private long totalHandshakeTime;
+    private int handshakeCount;
+    private long lastPairingTime = -1;
+    private long lastConnectTime = -1;
+
+    /**
+     * Time the current connection attempt started at.
+     */
+    private long attemptStartTime;
+
+    /**
+     * Constructor. The machine starts in {@link ConnectionState#IDLE}.
+     */
+    public ConnectionStateMachine() {
+        listeners = new CopyOnWriteArrayList<StateListener>();
+        state = ConnectionState.IDLE;
+        stateEnterTime = SystemClock.elapsedRealtime();
+        timeInState = new long[ConnectionState.values().length];
+        enterCount = new int[ConnectionState.values().length];
+        enterCount[state.ordinal()] = 1;
+    }
+
+    /**
+     * Moves to a new state.
+     *
+     * @param newState the new state.
+     * @param newDevice the device concerned, or {@code null} to keep the
+     *            current one.
+     * @return {@code false} if the transition is not allowed.
+     */
+    public boolean moveTo(ConnectionState newState, TvDevice newDevice) {
+        ConnectionState oldState;
+        TvDevice currentDevice;
+        synchronized (this) {
+            oldState = state;
+            if (oldState == newState && newState != ConnectionState.CONNECTING) {
+                return true;
+            }
+            if (!TRANSITIONS.get(oldState).contains(newState)) {
+                Log.w(LOG_TAG, "Ignoring transition " + oldState + " -> " + newState);
+                return false;
+            }
+            long now = SystemClock.elapsedRealtime();
+            timeInState[oldState.ordinal()] += now - stateEnterTime;
+            stateEnterTime = now;
+            ++enterCount[newState.ordinal()];
+            state = newState;
+            if (newDevice != null) {
+                device = newDevice;
+            }
+            currentDevice = device;
+
+            switch (newState) {
+                case CONNECTING:
+                    attemptStartTime = now;
+                    break;
+                case RECONNECTING:
+                    attemptStartTime = now;
+                    ++reconnectCount;
+                    break;
+                case CONNECTED:
+                    if (oldState != ConnectionState.DEGRADED) {
+                        lastConnectTime = now - attemptStartTime;
+                    }
+                    break;
+                case DISCONNECTED:
+                    if (oldState != ConnectionState.CONNECTED
+                            && oldState != ConnectionState.DEGRADED) {
+                        ++failureCount;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        Log.d(LOG_TAG, oldState + " -> " + newState);
+        for (StateListener listener : listeners) {
+            listener.onStateChanged(oldState, newState, currentDevice);
+        }
+        return true;
+    }
+
+    /**
+     * Records the timings of a connection attempt.
+     *
+     * @param socketConnectTime duration of the TCP connection, or -1.
+     * @param handshakeTime duration of the TLS handshake, or -1.
+     * @param pairingTime duration of the pairing, or -1 if no pairing was
+     *            needed.
+     */
+    public synchronized void recordTimings(long socketConnectTime, long handshakeTime,
+            long pairingTime) {
+        if (socketConnectTime >= 0) {
+            lastSocketConnectTime = socketConnectTime;
+        }
+        if (handshakeTime >= 0) {
+            lastHandshakeTime = handshakeTime;
+            totalHandshakeTime += handshakeTime;
+            ++handshakeCount;
+        }
+        if (pairingTime >= 0) {
+            lastPairingTime = pairingTime;
+        }
+    }
+
+    /**
+     * @return the current state.
+     */
+    public synchronized ConnectionState getState() {
+        return state;
+    }
+
+    /**
+     * @return the device of the current or last connection, or {@code null}.
+     */
+    public synchronized TvDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * @return a snapshot of the metrics.
+     */
+    public synchronized Metrics getMetrics() {
+        return new Metrics(this, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Adds a state listener.
+     *
+     * @param listener the listener.
+     */
+    public void addListener(StateListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a state listener.
+     *
+     * @param listener the listener.
+     */
+    public void removeListener(StateListener listener) {
+        listeners.remove(listener);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import android.util.Log;
+
+import com.example.google.tv.anymotelibrary.connection.BroadcastDiscoveryClient.BroadcastAdvertisement;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+/**
+ * Checks which of a list of known devices are reachable, by sending them
+ * unicast discovery probes in parallel from a single socket.
+ */
+public final class DeviceLivenessProbe {
+
+    private static final String LOG_TAG = "DeviceLivenessProbe";
+
+    /**
+     * Anymote service name.
+     */
+    private static final String SERVICE_TCP = "_anymote._tcp";
+
+    /**
+     * Delay after which unanswered probes are sent again, in case a packet was
+     * lost.
+     */
+    private static final int RETRY_INTERVAL_MS = 150;
+
+    private final int timeoutMs;
+
+    /**
+     * Constructor.
+     *
+     * @param timeoutMs maximum time to wait for answers, in milliseconds.
+     */
+    public DeviceLivenessProbe(int timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Probes the devices and returns the first one of the list which answered.
+     * Returns as soon as the first device of the list answers; otherwise waits
+     * until the timeout for a better ranked device to answer. This call
+     * blocks.
+     *
+     * @param devices the devices to probe, ordered by preference.
+     * @return the best ranked reachable device, or {@code null} if none
+     *         answered.
+     */
+    public TvDevice findFirstReachable(List<TvDevice> devices) {
+        if (devices.isEmpty()) {
+            return null;
+        }
+        DatagramSocket socket;
+        try {
+            socket = new DatagramSocket();
+        } catch (SocketException e) {
+            Log.e(LOG_TAG, "Could not create probe socket", e);
+            return null;
+        }
+
+        int best = devices.size();
+        try {
+            long start = System.currentTimeMillis();
+            long deadline = start + timeoutMs;
+            long nextProbe = start;
+            byte[] buffer = new byte[256];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+            while (best > 0) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    break;
+                }
+                if (now >= nextProbe) {
+                    sendProbes(socket, devices, best);
+                    nextProbe = now + RETRY_INTERVAL_MS;
+                }
+                socket.setSoTimeout((int) Math.max(1, Math.min(nextProbe, deadline) - now));
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                BroadcastAdvertisement advert =
+                        BroadcastDiscoveryClient.parseResponsePacket(packet, SERVICE_TCP);
+                if (advert == null) {
+                    continue;
+                }
+                for (int i = 0; i < best; ++i) {
+                    TvDevice device = devices.get(i);
+                    if (device.getAddress().equals(advert.getServiceAddress())
+                            && device.getPort() == advert.getServicePort()) {
+                        best = i;
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Probe failed", e);
+        } finally {
+            socket.close();
+        }
+        return best < devices.size() ? devices.get(best) : null;
+    }
+
+    /**
+     * Sends a probe to every device ranked better than the best one which
+     * answered so far.
+     */
+    private static void sendProbes(DatagramSocket socket, List<TvDevice> devices, int best) {
+        for (int i = 0; i < best; ++i) {
+            DatagramPacket probe = BroadcastDiscoveryClient.makeRequestPacket(
+                    SERVICE_TCP, socket.getLocalPort(), devices.get(i).getAddress());
+            try {
+                socket.send(probe);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not probe " + devices.get(i), e);
+            }
+        }
+    }
+}
@@ -22,7 +22,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Color;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.AttributeSet;
 import android.view.HapticFeedbackConstants;
@@ -54,7 +53,7 @@ public class DeviceSelectDialog extends Dialog {
     private DeviceSelectListener mListener;
     private TvDiscoveryService mTvDiscoveryService;
     private boolean mInitialized;
-    private AsyncTask<Integer, Integer, List<TvDevice>> mDiscoveryTask;
+    private boolean mDiscovering;
     private ProgressBar progressBar;
 
     /**
@@ -134,7 +133,7 @@ public class DeviceSelectDialog extends Dialog {
 
         findViewById(R.id.dsl_rescan).setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-
+                stopDiscovery();
                 startDiscovery();
             }
         });
@@ -210,6 +209,7 @@ public class DeviceSelectDialog extends Dialog {
      */
     private class DeviceListAdapter extends BaseAdapter {
         private final List<TvDevice> trackedDevices;
+        private TvDevice[] rememberedDevices;
         private TvDevice mCurrentDevice;
 
         public DeviceListAdapter() {
@@ -233,7 +233,7 @@ public class DeviceSelectDialog extends Dialog {
 
         @Override
         public boolean isEnabled(int position) {
-            return (position != 0);
+            return getTvDevice(position) != null;
         }
 
         public Object getItem(int position) {
@@ -245,7 +245,7 @@ public class DeviceSelectDialog extends Dialog {
         }
 
         public boolean add(TvDevice device) {
-            if (!trackedDevices.contains(device)) {
+            if (indexOfTracked(device) < 0 && !isRemembered(device)) {
                 trackedDevices.add(device);
                 Collections.sort(trackedDevices);
 
@@ -255,34 +255,77 @@ public class DeviceSelectDialog extends Dialog {
             return false;
         }
 
-        public void setRecentDevices(TvDevice[] devices) {
+        public boolean remove(TvDevice device) {
+            int index = indexOfTracked(device);
+            if (index >= 0) {
+                trackedDevices.remove(index);
+                notifyDataSetChanged();
+                return true;
+            }
+            return false;
+        }
 
+        public void setRecentDevices(TvDevice[] devices) {
+            rememberedDevices = (devices != null) ? devices : new TvDevice[0];
+            // Recent devices are not listed twice.
+            for (TvDevice device : rememberedDevices) {
+                int index = indexOfTracked(device);
+                if (index >= 0) {
+                    trackedDevices.remove(index);
+                }
+            }
             notifyDataSetChanged();
         }
 
+        private boolean isRemembered(TvDevice device) {
+            for (TvDevice remembered : rememberedDevices) {
+                if (isSameDevice(remembered, device)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int indexOfTracked(TvDevice device) {
+            for (int i = 0; i < trackedDevices.size(); ++i) {
+                if (isSameDevice(trackedDevices.get(i), device)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Tells devices apart by endpoint, like the discovery service: identical
+         * TVs share a name.
+         */
+        private boolean isSameDevice(TvDevice device, TvDevice another) {
+            return device != null && another != null
+                    && device.getEndpoint().equals(another.getEndpoint());
+        }
+
         public View getView(int position, View convertView, ViewGroup parent) {
-            // /*
-            // * Find an item and construct a view for it given the position.
-            // * Layout / content is as follows: 0 : [ Recently Connected header
-            // ]
-            // * 1 : [ Recent Device #0 ] n : [ Recent Device #n-1 ] n+1: [
-            // * Discovered Devices header ] n+2: [ Discovered Device #0 ] n+m:
-            // [
-            // * Discovered Device #m-2 ]
-            // */
-            // if (position == 0) {
-            // return getHeaderView(R.string.finder_recently_connected,
-            // convertView);
-            // }
-            // // Skip Recently Connected header.
-            // position -= 1;
-            //
-            // if (position < rememberedDevices.length) {
-            // return getDeviceView(rememberedDevices[position], convertView,
-            // true);
-            // }
-            // // Skip Recent Devices.
-            // position -= rememberedDevices.length;
+            /*
+             * Find an item and construct a view for it given the position.
+             * Layout / content is as follows, the first two sections being
+             * only present if there are recent devices: 0 : [ Recently
+             * Connected header ] 1 : [ Recent Device #0 ] n : [ Recent Device
+             * #n-1 ] n+1: [ Discovered Devices header ] n+2: [ Discovered
+             * Device #0 ] n+m: [ Discovered Device #m-2 ]
+             */
+            if (rememberedDevices.length > 0) {
+                if (position == 0) {
+                    return getHeaderView(R.string.finder_recently_connected, convertView);
+                }
+                // Skip Recently Connected header.
+                position -= 1;
+
+                if (position < rememberedDevices.length) {
+                    return getDeviceView(rememberedDevices[position], convertView, true);
+                }
+                // Skip Recent Devices.
+                position -= rememberedDevices.length;
+            }
 
             if (position == 0) {
                 return getHeaderView(R.string.finder_connect, convertView);
@@ -333,7 +376,7 @@ public class DeviceSelectDialog extends Dialog {
 
             image = (ImageView) itemView.findViewById(R.id.device_select_item_image);
             if (image != null) {
-                if (device.equals(mCurrentDevice)) {
+                if (isSameDevice(device, mCurrentDevice)) {
                     image.setImageResource(android.R.drawable.ic_menu_upload_you_tube);
                 } else if (isRecent) {
                     image.setImageResource(android.R.drawable.ic_menu_recent_history);
@@ -342,7 +385,7 @@ public class DeviceSelectDialog extends Dialog {
                 }
             }
 
-            if (device.equals(mCurrentDevice)) {
+            if (isSameDevice(device, mCurrentDevice)) {
                 itemView.setBackgroundColor(Color.argb(0x80, 0x00, 0x40, 0x20));
             } else {
                 itemView.setBackgroundColor(Color.TRANSPARENT);
@@ -353,11 +396,28 @@ public class DeviceSelectDialog extends Dialog {
         }
 
         private int getTotalSize() {
-            // return sum of tracked devices and header.
-            return trackedDevices.size() + 1;
+            // return sum of tracked devices and header, plus recent devices and
+            // their header.
+            int size = trackedDevices.size() + 1;
+            if (rememberedDevices.length > 0) {
+                size += rememberedDevices.length + 1;
+            }
+            return size;
         }
 
         private TvDevice getTvDevice(int position) {
+            if (rememberedDevices.length > 0) {
+                // Skip header.
+                position--;
+                if (position < 0) {
+                    return null;
+                }
+                if (position < rememberedDevices.length) {
+                    return rememberedDevices[position];
+                }
+                position -= rememberedDevices.length;
+            }
+
             // Skip header.
             position--;
             if (position < 0) {
@@ -397,52 +457,53 @@ public class DeviceSelectDialog extends Dialog {
         ipDialog.show();
     }
 
-    private void startDiscovery() {
-        if (!mInitialized || (mTvDiscoveryService == null) || (mDiscoveryTask != null)) {
-            return;
-        }
+    /**
+     * Receives discovered TVs as they answer. Callbacks are called on the UI
+     * thread, as the discovery service is created there.
+     */
+    private final TvDiscoveryService.DiscoveryListener mDiscoveryListener =
+            new TvDiscoveryService.DiscoveryListener() {
+                public void onTvFound(TvDevice device) {
+                    progressBar.setVisibility(View.INVISIBLE);
+                    mDataAdapter.add(device);
+                }
 
-        // As TvDiscovery.discoverTvs method is blocking, launch an AsyncTask
-        // to get a list of TVs.
-        mDiscoveryTask = new AsyncTask<Integer, Integer, List<TvDevice>>() {
+                public void onTvLost(TvDevice device) {
+                    mDataAdapter.remove(device);
+                }
 
-            /**
-             * Start a discovery in background.
-             */
-                @Override
-            protected List<TvDevice> doInBackground(Integer... params) {
-                return mTvDiscoveryService.discoverTvs();
-            }
+                public void onDiscoveryTimeout() {
+                    progressBar.setVisibility(View.INVISIBLE);
+                }
 
-            /**
-             * Put results into the dialog, or pop a no-wifi dialog, after
-             * discovery has finished.
-             */
-                @Override
-            protected void onPostExecute(List<TvDevice> tvs) {
-
-                progressBar.setVisibility(View.INVISIBLE);
-                if (tvs != null) {
-                    for (TvDevice tv : tvs) {
-                        mDataAdapter.add(tv);
-                    }
-                } else {
-                    // For the time being, assume that null result means
+                public void onNetworkUnavailable() {
+                    progressBar.setVisibility(View.INVISIBLE);
+                    // For the time being, assume that no network means
                     // wifi connection error, so show wifi config dialog.
                     buildNoWifiDialog().show();
+                    stopDiscovery();
                 }
-                mDiscoveryTask = null;
-            }
-        };
-        mDiscoveryTask.execute((Integer) null);
+            };
+
+    private void startDiscovery() {
+        if (!mInitialized || (mTvDiscoveryService == null) || mDiscovering) {
+            return;
+        }
+        mDiscovering = true;
+        progressBar.setVisibility(View.VISIBLE);
+        // Keep scanning while the dialog is shown, so that TVs turned on
+        // later show up, and TVs turned off go away.
+        mTvDiscoveryService.startDiscovery(mDiscoveryListener, true);
     }
 
     private void stopDiscovery() {
-        if (mDiscoveryTask == null) {
+        if (!mDiscovering) {
             return;
         }
-        mDiscoveryTask.cancel(true);
-        mDiscoveryTask = null;
+        mDiscovering = false;
+        if (mTvDiscoveryService != null) {
+            mTvDiscoveryService.stopDiscovery(mDiscoveryListener);
+        }
     }
 
     /**
@@ -530,6 +591,7 @@ public class DeviceSelectDialog extends Dialog {
      * @param discovery service used to find neighboring TVs.
      */
     public void setTvDiscovery(TvDiscoveryService discovery) {
+        stopDiscovery();
         mTvDiscoveryService = discovery;
         startDiscovery();
     }
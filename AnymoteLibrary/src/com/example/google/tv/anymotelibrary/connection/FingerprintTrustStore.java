@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import android.content.SharedPreferences;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * In-memory index of the certificates of the paired devices, keyed by their
+ * SHA-256 fingerprint, and of the certificate each device was paired with.
+ * Trust decisions hash the presented certificate and look it up, so they do
+ * not depend on the number of paired devices.
+ */
+final class FingerprintTrustStore {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Trusted certificates, keyed by fingerprint.
+     */
+    private final Map<String, Certificate> certificates;
+
+    /**
+     * Fingerprint of the certificate each device paired with, keyed by device
+     * endpoint, as identical devices share a name. Persisted in the
+     * preferences.
+     */
+    private final Map<String, String> pins;
+
+    private final SharedPreferences pinPreferences;
+    private final X509TrustManager trustManager;
+
+    /**
+     * Constructor.
+     *
+     * @param pinPreferences preferences storing the pinned fingerprints.
+     */
+    FingerprintTrustStore(SharedPreferences pinPreferences) {
+        this.certificates = new ConcurrentHashMap<String, Certificate>();
+        this.pins = new ConcurrentHashMap<String, String>();
+        this.pinPreferences = pinPreferences;
+        for (Map.Entry<String, ?> pin : pinPreferences.getAll().entrySet()) {
+            if (pin.getValue() instanceof String) {
+                pins.put(pin.getKey(), (String) pin.getValue());
+            }
+        }
+        this.trustManager = new IndexTrustManager();
+    }
+
+    /**
+     * Computes the SHA-256 fingerprint of a certificate.
+     *
+     * @param certificate the certificate.
+     * @return the fingerprint, as an upper case hexadecimal string.
+     * @throws CertificateEncodingException if the certificate cannot be
+     *             encoded.
+     */
+    static String fingerprint(Certificate certificate) throws CertificateEncodingException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        byte[] hash = digest.digest(certificate.getEncoded());
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; ++i) {
+            hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Adds a trusted certificate.
+     *
+     * @param fingerprint fingerprint of the certificate.
+     * @param certificate the certificate.
+     */
+    void add(String fingerprint, Certificate certificate) {
+        certificates.put(fingerprint, certificate);
+    }
+
+    /**
+     * @param fingerprint fingerprint of a certificate.
+     * @return {@code true} if the certificate is trusted.
+     */
+    boolean contains(String fingerprint) {
+        return certificates.containsKey(fingerprint);
+    }
+
+    /**
+     * Records the certificate a device paired with.
+     *
+     * @param endpoint endpoint of the device, see {@link TvDevice#getEndpoint()}.
+     * @param fingerprint fingerprint of the certificate of the device.
+     */
+    void pin(String endpoint, String fingerprint) {
+        if (!fingerprint.equals(pins.put(endpoint, fingerprint))) {
+            pinPreferences.edit().putString(endpoint, fingerprint).apply();
+        }
+    }
+
+    /**
+     * @param endpoint endpoint of the device, see {@link TvDevice#getEndpoint()}.
+     * @return fingerprint of the certificate the device paired with, or
+     *         {@code null}.
+     */
+    String getPin(String endpoint) {
+        String pin = pins.get(endpoint);
+        return pin != null && certificates.containsKey(pin) ? pin : null;
+    }
+
+    /**
+     * Removes all certificates and pins.
+     */
+    void clear() {
+        certificates.clear();
+        pins.clear();
+        pinPreferences.edit().clear().apply();
+    }
+
+    /**
+     * @return a trust manager accepting any paired device.
+     */
+    X509TrustManager getTrustManager() {
+        return trustManager;
+    }
+
+    /**
+     * Creates a trust manager only accepting one certificate.
+     *
+     * @param fingerprint fingerprint of the accepted certificate.
+     * @return the trust manager.
+     */
+    X509TrustManager createPinnedTrustManager(String fingerprint) {
+        return new PinnedTrustManager(fingerprint);
+    }
+
+    private static String getServerFingerprint(X509Certificate[] chain)
+            throws CertificateException {
+        if (chain == null || chain.length == 0) {
+            throw new CertificateException("No server certificate");
+        }
+        return fingerprint(chain[0]);
+    }
+
+    /**
+     * Accepts the certificates of the index.
+     */
+    private final class IndexTrustManager implements X509TrustManager {
+        public void checkClientTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            throw new CertificateException("Clients are not trusted");
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            if (!certificates.containsKey(getServerFingerprint(chain))) {
+                throw new CertificateException("Server is not paired");
+            }
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+
+    /**
+     * Accepts a single certificate.
+     */
+    private final class PinnedTrustManager implements X509TrustManager {
+        private final String fingerprint;
+
+        PinnedTrustManager(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        public void checkClientTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            throw new CertificateException("Clients are not trusted");
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            String presented = getServerFingerprint(chain);
+            if (!presented.equals(fingerprint) || !certificates.containsKey(presented)) {
+                throw new CertificateException("Server certificate does not match pairing");
+            }
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -26,22 +26,41 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
-import java.util.Enumeration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
 
 import android.content.Context;
 import android.os.Build;
 import android.provider.Settings;
 import android.util.Log;
 
+import com.google.polo.ssl.DummySSLSocketFactory;
 import com.google.polo.ssl.SslUtil;
 
 /**
  * Key store manager. It manages client and server certificates.
+ * <p>
+ * Loading the key store, and generating the local identity on first run, are
+ * done on a background thread; the key and trust managers block until they
+ * are ready. Changes to the key store are written to storage in the
+ * background, coalescing consecutive changes into a single write.
+ * <p>
+ * Trusted server certificates are indexed in memory by their SHA-256
+ * fingerprint, so pairing with a new device does not rebuild the trust
+ * managers, and each device is pinned to the certificate it paired with.
  */
 public final class KeyStoreManager {
 
@@ -59,13 +78,81 @@ public final class KeyStoreManager {
     /**
      * Alias pattern for anymote server identities in the {@link KeyStore}
      */
-    private static final String REMOTE_IDENTITY_ALIAS_PATTERN = "anymote-server-%X";
+    private static final String REMOTE_IDENTITY_ALIAS_PREFIX = "anymote-server-";
+
+    /**
+     * Name of the preferences holding the certificate pinned for each device,
+     * keyed by endpoint. Pins of older versions, keyed by name, are ignored.
+     */
+    private static final String PINS_PREFS_NAME = "anymote_trust";
+
+    /**
+     * Maximum number of TLS contexts pinned to a single device kept cached.
+     */
+    private static final int MAX_PINNED_CONTEXTS = 8;
 
     private Context mContext;
     private KeyManager[] mKeyManagers;
     private TrustManager[] mTrustManagers;
     private KeyStore mKeyStore;
 
+    /**
+     * Index of the trusted server certificates.
+     */
+    private FingerprintTrustStore mTrustStore;
+
+    /**
+     * TLS context built from the key and trust managers, trusting any paired
+     * device.
+     */
+    private SSLContext mSSLContext;
+
+    /**
+     * TLS contexts trusting a single device, keyed by fingerprint, least
+     * recently used first.
+     */
+    private final Map<String, SSLContext> mPinnedContexts;
+
+    /**
+     * Socket factory of the pairing sessions, built from the key managers.
+     */
+    private SSLSocketFactory mPairingSocketFactory;
+
+    /**
+     * Runs the initialization and the writes of the key store file, in order.
+     */
+    private final ExecutorService mExecutor;
+
+    /**
+     * Result of the initialization, {@code null} until it is started.
+     */
+    private volatile Future<Void> mInitialization;
+
+    /**
+     * {@code true} while a write of the key store file is scheduled.
+     */
+    private boolean mStorePending;
+
+    /**
+     * Constructor.
+     */
+    public KeyStoreManager() {
+        mPinnedContexts = Collections.synchronizedMap(
+                new LinkedHashMap<String, SSLContext>(MAX_PINNED_CONTEXTS, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, SSLContext> eldest) {
+                        return size() > MAX_PINNED_CONTEXTS;
+                    }
+                });
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "KeyStoreManager");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
     /**
      * Loads key store from storage, or creates new one if storage is missing
      * key store or corrupted.
@@ -97,10 +184,11 @@ public final class KeyStoreManager {
             } catch (GeneralSecurityException e) {
                 throw new IllegalStateException("Unable to create identity KeyStore", e);
             }
+            mKeyStore = keyStore;
+            store();
+            return;
         }
-
         mKeyStore = keyStore;
-        store();
     }
 
     /**
@@ -129,13 +217,71 @@ public final class KeyStoreManager {
      * @throws GeneralSecurityException
      */
     public void initialize(Context context) throws GeneralSecurityException {
-        mContext = context;
-        load();
-        if (!hasLocalIdentityAlias()) {
-            generateAppCertificate();
+        initializeAsync(context);
+        awaitInitialization();
+    }
+
+    /**
+     * Starts loading or otherwise creating keys for application on a
+     * background thread, and returns immediately.
+     * 
+     * @param context Context of the Application
+     * @return the result of the initialization.
+     */
+    public synchronized Future<Void> initializeAsync(Context context) {
+        if (mInitialization == null) {
+            mContext = context.getApplicationContext();
+            mInitialization = mExecutor.submit(new Callable<Void>() {
+                public Void call() throws GeneralSecurityException {
+                    long start = System.currentTimeMillis();
+                    synchronized (KeyStoreManager.this) {
+                        mTrustStore = new FingerprintTrustStore(mContext.getSharedPreferences(
+                                PINS_PREFS_NAME, Context.MODE_PRIVATE));
+                        load();
+                        if (!hasLocalIdentityAlias()) {
+                            generateAppCertificate();
+                        }
+                        collectKeyManagers();
+                        indexTrustedCertificates();
+                    }
+                    Log.i(LOG_TAG, "Key store ready in " + (System.currentTimeMillis() - start)
+                            + " ms");
+                    return null;
+                }
+            });
         }
-        collectKeyManagers();
-        collectTrustManagers();
+        return mInitialization;
+    }
+
+    /**
+     * Blocks until the initialization is done.
+     * 
+     * @throws GeneralSecurityException if the initialization failed.
+     */
+    private void awaitInitialization() throws GeneralSecurityException {
+        Future<Void> initialization = mInitialization;
+        if (initialization == null) {
+            throw new IllegalStateException("Key store manager not initialized");
+        }
+        try {
+            initialization.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while loading key store", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw new GeneralSecurityException("Unable to load key store", e.getCause());
+        }
+    }
+
+    /**
+     * Writes the pending changes and stops the background thread.
+     */
+    public void shutdown() {
+        // Already submitted writes still run.
+        mExecutor.shutdown();
     }
 
     /**
@@ -175,15 +321,32 @@ public final class KeyStoreManager {
         return keyStore;
     }
 
+    /**
+     * Schedules a write of the key store file. Writes scheduled while one is
+     * pending are merged into it.
+     */
     private synchronized void store() {
+        if (mStorePending) {
+            return;
+        }
+        mStorePending = true;
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                writeKeyStore();
+            }
+        });
+    }
+
+    private synchronized void writeKeyStore() {
+        mStorePending = false;
         try {
             FileOutputStream fos = mContext.openFileOutput(KEYSTORE_FILENAME, Context.MODE_PRIVATE);
             mKeyStore.store(fos, KEYSTORE_PASSWORD);
             fos.close();
         } catch (IOException e) {
-            throw new IllegalStateException("Unable to store keyStore", e);
+            Log.e(LOG_TAG, "Unable to store keyStore", e);
         } catch (GeneralSecurityException e) {
-            throw new IllegalStateException("Unable to store keyStore", e);
+            Log.e(LOG_TAG, "Unable to store keyStore", e);
         }
     }
 
@@ -197,10 +360,87 @@ public final class KeyStoreManager {
     }
 
     /**
-     * @return key managers loaded for this service.
+     * Returns the key managers, waiting for the initialization to complete.
+     * 
+     * @return key managers loaded for this service, or {@code null} if the
+     *         initialization failed.
      */
     public KeyManager[] getKeyManagers() {
-        return mKeyManagers;
+        try {
+            awaitInitialization();
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Key managers unavailable", e);
+            return null;
+        }
+        synchronized (this) {
+            return mKeyManagers;
+        }
+    }
+
+    /**
+     * Returns the TLS context used to connect to paired devices, waiting for
+     * the initialization to complete. The context is cached; it trusts
+     * devices paired after it was created.
+     * 
+     * @return the TLS context.
+     * @throws GeneralSecurityException if the context cannot be created.
+     */
+    public SSLContext getSSLContext() throws GeneralSecurityException {
+        awaitInitialization();
+        synchronized (this) {
+            if (mSSLContext == null) {
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(mKeyManagers, mTrustManagers, null);
+                mSSLContext = sslContext;
+            }
+            return mSSLContext;
+        }
+    }
+
+    /**
+     * Returns the TLS context used to connect to a device, waiting for the
+     * initialization to complete. If the device was paired, the context only
+     * trusts the certificate it paired with; otherwise it trusts any paired
+     * device.
+     * 
+     * @param device the device to connect to.
+     * @return the TLS context.
+     * @throws GeneralSecurityException if the context cannot be created.
+     */
+    public SSLContext getSSLContext(TvDevice device) throws GeneralSecurityException {
+        awaitInitialization();
+        String fingerprint = mTrustStore.getPin(device.getEndpoint());
+        if (fingerprint == null) {
+            return getSSLContext();
+        }
+        SSLContext sslContext = mPinnedContexts.get(fingerprint);
+        if (sslContext == null) {
+            sslContext = SSLContext.getInstance("TLS");
+            synchronized (this) {
+                sslContext.init(mKeyManagers, new TrustManager[] {
+                        mTrustStore.createPinnedTrustManager(fingerprint) }, null);
+            }
+            mPinnedContexts.put(fingerprint, sslContext);
+        }
+        return sslContext;
+    }
+
+    /**
+     * Returns the socket factory of the pairing sessions, waiting for the
+     * initialization to complete. The factory trusts any server, as the
+     * pairing authenticates the TV; it is cached across pairings.
+     * 
+     * @return the socket factory.
+     * @throws GeneralSecurityException if the factory cannot be created.
+     */
+    public SSLSocketFactory getPairingSocketFactory() throws GeneralSecurityException {
+        awaitInitialization();
+        synchronized (this) {
+            if (mPairingSocketFactory == null) {
+                mPairingSocketFactory = DummySSLSocketFactory.fromKeyManagers(mKeyManagers);
+            }
+            return mPairingSocketFactory;
+        }
     }
 
     /**
@@ -214,62 +454,108 @@ public final class KeyStoreManager {
                 .getDefaultAlgorithm());
         factory.init(mKeyStore, "".toCharArray());
         mKeyManagers = factory.getKeyManagers();
+        mPairingSocketFactory = null;
     }
 
     /**
-     * @return trust managers loaded for this service.
+     * Returns the trust managers, waiting for the initialization to complete.
+     * 
+     * @return trust managers loaded for this service, or {@code null} if the
+     *         initialization failed.
      */
     public TrustManager[] getTrustManagers() {
-        return mTrustManagers;
+        try {
+            awaitInitialization();
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Trust managers unavailable", e);
+            return null;
+        }
+        synchronized (this) {
+            return mTrustManagers;
+        }
     }
 
     /**
+     * Indexes the server certificates of the key store by fingerprint,
+     * renaming the entries still using the former alias format.
+     * 
      * @throws GeneralSecurityException
      */
-    private synchronized void collectTrustManagers() throws GeneralSecurityException {
-        // Build a new set of TrustManagers based on the KeyStore.
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory
-                .getDefaultAlgorithm());
-        tmf.init(mKeyStore);
-        mTrustManagers = tmf.getTrustManagers();
+    private synchronized void indexTrustedCertificates() throws GeneralSecurityException {
+        boolean migrated = false;
+        for (String alias : Collections.list(mKeyStore.aliases())) {
+            if (!mKeyStore.isCertificateEntry(alias)) {
+                continue;
+            }
+            Certificate cert = mKeyStore.getCertificate(alias);
+            String fingerprint = FingerprintTrustStore.fingerprint(cert);
+            String expected = REMOTE_IDENTITY_ALIAS_PREFIX + fingerprint;
+            if (!alias.equals(expected)) {
+                Log.i(LOG_TAG, "Migrating " + alias + " to " + expected);
+                mKeyStore.deleteEntry(alias);
+                mKeyStore.setCertificateEntry(expected, cert);
+                migrated = true;
+            }
+            mTrustStore.add(fingerprint, cert);
+        }
+        if (migrated) {
+            store();
+        }
+        mTrustManagers = new TrustManager[] {
+                mTrustStore.getTrustManager() };
     }
 
     /**
-     * Stores the remote device certificate in keystore.
-     * @param peerCert
+     * Stores the certificate of a device which has just been paired, and pins
+     * the device to it.
+     * 
+     * @param device the paired device.
+     * @param peerCert the certificate of the device.
      */
-    synchronized void storeCertificate(final Certificate peerCert) {
+    void storeCertificate(TvDevice device, Certificate peerCert) {
+        try {
+            awaitInitialization();
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Cannot store cert without key store", e);
+            return;
+        }
+        String fingerprint;
+        try {
+            fingerprint = FingerprintTrustStore.fingerprint(peerCert);
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Cannot fingerprint cert", e);
+            return;
+        }
+        storeCertificateLocked(fingerprint, peerCert);
+        mTrustStore.pin(device.getEndpoint(), fingerprint);
+    }
+
+    private synchronized void storeCertificateLocked(String fingerprint, Certificate peerCert) {
+        if (mTrustStore.contains(fingerprint)) {
+            return;
+        }
+        String alias = REMOTE_IDENTITY_ALIAS_PREFIX + fingerprint;
         try {
-            String alias = String.format(KeyStoreManager.REMOTE_IDENTITY_ALIAS_PATTERN,
-                    peerCert.hashCode());
-            if (mKeyStore.containsAlias(alias)) {
-                Log.w(LOG_TAG, "Deleting existing entry for " + alias);
-                mKeyStore.deleteEntry(alias);
-            }
             Log.i(LOG_TAG, "Adding cert to keystore: " + alias);
             mKeyStore.setCertificateEntry(alias, peerCert);
-            store();
-
-            try {
-                collectTrustManagers();
-            } catch (GeneralSecurityException e) {
-                // ignore.
-            }
         } catch (KeyStoreException e) {
             Log.e(LOG_TAG, "Storing cert failed", e);
+            return;
         }
+        // The trust managers read the index: nothing to rebuild.
+        mTrustStore.add(fingerprint, peerCert);
+        store();
     }
 
     private void clearKeyStore() {
         try {
-            for (Enumeration<String> e = mKeyStore.aliases(); e.hasMoreElements();) {
-                final String alias = e.nextElement();
-                Log.v(LOG_TAG, "Deleting alias: " + alias);
-                mKeyStore.deleteEntry(alias);
-            }
-        } catch (KeyStoreException e) {
-            Log.e(LOG_TAG, "Clearing certificates failed", e);
+            mKeyStore = createKeyStore();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to create identity KeyStore", e);
         }
+        // Paired devices only know the previous identity.
+        mTrustStore.clear();
+        mPinnedContexts.clear();
         store();
     }
 
@@ -0,0 +1,642 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import com.google.anymote.Messages.RemoteMessage;
+import com.google.anymote.common.ErrorListener;
+import com.google.anymote.common.RemoteWireAdapter.IMessageListener;
+import com.google.anymote.common.WireAdapter;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * An Anymote session on a {@link NioTransport}: a non-blocking TLS channel
+ * carrying length delimited protocol buffers, like the streams of the
+ * blocking {@code RemoteWireAdapter}.
+ * <p>
+ * Messages can be sent from any thread; they are appended to the plaintext
+ * buffer and written by the selector thread. Received messages are passed to
+ * the message listener on the selector thread, so it must not block.
+ */
+public final class NioSession implements WireAdapter {
+
+    private static final String LOG_TAG = "NioSession";
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Largest message accepted from the TV, in bytes. Anymote messages are
+     * far smaller; a larger length prefix closes the session rather than
+     * growing the buffer.
+     */
+    private static final int MAX_MESSAGE_SIZE = 256 * 1024;
+
+    private final NioTransport transport;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final InetSocketAddress address;
+
+    /** Guards the plaintext output buffer and the closed flag. */
+    private final Object outLock = new Object();
+
+    /** Plaintext waiting to be encrypted, in fill mode. */
+    private ByteBuffer appOut;
+
+    // The fields below are only accessed on the selector thread.
+
+    private SelectionKey key;
+
+    /** Encrypted bytes received, in fill mode. */
+    private ByteBuffer netIn;
+
+    /** Encrypted bytes to write, in fill mode. */
+    private ByteBuffer netOut;
+
+    /** Decrypted bytes not parsed yet, in fill mode. */
+    private ByteBuffer appIn;
+
+    /** {@code true} while the delegated tasks of the engine run. */
+    private boolean tasksRunning;
+
+    private boolean handshakeDone;
+
+    /** {@code true} once the TV sent bytes of the handshake. */
+    private boolean handshakeAnswered;
+
+    private volatile boolean closed;
+
+    private volatile IMessageListener messageListener;
+    private volatile ErrorListener errorListener;
+
+    /** Released when the handshake completes or fails. */
+    private final CountDownLatch handshakeLatch = new CountDownLatch(1);
+
+    /** Why the handshake or the session failed, or {@code null}. */
+    private volatile IOException failure;
+
+    /** {@code true} while a flush is queued on the selector thread. */
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    private final long openTime;
+    private volatile long connectTime = -1;
+    private volatile long handshakeTime = -1;
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushQueued.set(false);
+            pumpSafely();
+        }
+    };
+
+    private final Runnable resumeTask = new Runnable() {
+        public void run() {
+            tasksRunning = false;
+            pumpSafely();
+        }
+    };
+
+    private final Runnable closeTask = new Runnable() {
+        public void run() {
+            close(null);
+        }
+    };
+
+    NioSession(NioTransport transport, SocketChannel channel, SSLEngine engine,
+            InetSocketAddress address) {
+        this.transport = transport;
+        this.channel = channel;
+        this.engine = engine;
+        this.address = address;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int applicationSize = engine.getSession().getApplicationBufferSize();
+        netIn = transport.acquirePacketBuffer(packetSize);
+        netOut = transport.acquirePacketBuffer(packetSize);
+        appIn = transport.acquireApplicationBuffer(applicationSize);
+        appOut = transport.acquireApplicationBuffer(applicationSize);
+        openTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Sets the listener receiving the messages, on the selector thread.
+     *
+     * @param listener the listener, usually a {@code DeviceMessageAdapter}.
+     */
+    public void setMessageListener(IMessageListener listener) {
+        messageListener = listener;
+    }
+
+    /**
+     * Sets the listener told when the session fails after the handshake. It
+     * is called on the blocking executor.
+     *
+     * @param listener the listener.
+     */
+    public void setErrorListener(ErrorListener listener) {
+        errorListener = listener;
+    }
+
+    /**
+     * Waits for the connection and the TLS handshake.
+     *
+     * @param timeoutMs maximum time to wait, in milliseconds.
+     * @throws SSLException if the TV refused the handshake, usually because
+     *             it does not know the client certificate, including when it
+     *             closed or reset the connection during the handshake.
+     * @throws IOException if the connection failed or timed out.
+     */
+    public void awaitHandshake(long timeoutMs) throws IOException {
+        boolean done;
+        try {
+            done = handshakeLatch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            stop();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting");
+        }
+        if (!done) {
+            stop();
+            throw new SocketTimeoutException("Could not connect to " + address);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return duration of the TCP connection, in milliseconds, or -1.
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * @return duration of the TLS handshake, in milliseconds, or -1.
+     */
+    public long getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    /**
+     * @return number of plaintext bytes waiting to be written.
+     */
+    public int getPendingOutputBytes() {
+        synchronized (outLock) {
+            return appOut != null ? appOut.position() : 0;
+        }
+    }
+
+    public void sendRemoteMessage(RemoteMessage message) {
+        int size = message.getSerializedSize();
+        int frameSize = CodedOutputStream.computeRawVarint32Size(size) + size;
+        synchronized (outLock) {
+            if (closed) {
+                return;
+            }
+            if (appOut.remaining() < frameSize) {
+                ByteBuffer larger = ByteBuffer.allocate(
+                        Math.max(appOut.capacity() * 2, appOut.position() + frameSize));
+                appOut.flip();
+                larger.put(appOut);
+                transport.releaseApplicationBuffer(appOut);
+                appOut = larger;
+            }
+            try {
+                CodedOutputStream out = CodedOutputStream.newInstance(appOut.array(),
+                        appOut.arrayOffset() + appOut.position(), frameSize);
+                out.writeRawVarint32(size);
+                message.writeTo(out);
+            } catch (IOException e) {
+                // Cannot happen: the frame fits.
+                throw new IllegalStateException(e);
+            }
+            appOut.position(appOut.position() + frameSize);
+        }
+        if (flushQueued.compareAndSet(false, true)) {
+            transport.execute(flushTask);
+        }
+    }
+
+    /**
+     * Unused: messages are received by the selector thread.
+     *
+     * @return {@code false}.
+     */
+    public boolean getNextRemoteMessage() {
+        return false;
+    }
+
+    /**
+     * Closes the session. The error listener is not called.
+     */
+    public void stop() {
+        synchronized (outLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        transport.execute(closeTask);
+    }
+
+    Runnable getResumeTask() {
+        return resumeTask;
+    }
+
+    /**
+     * Registers the channel and starts connecting, on the selector thread.
+     */
+    void register(Selector selector) {
+        if (closed) {
+            close(null);
+            return;
+        }
+        try {
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            if (channel.isConnected() || channel.connect(address)) {
+                onConnected();
+            }
+        } catch (IOException e) {
+            close(e);
+        } catch (RuntimeException e) {
+            close(new IOException("Session to " + address + " failed", e));
+        }
+    }
+
+    /**
+     * Called on the selector thread when the channel is ready.
+     */
+    void onReady(SelectionKey readyKey) {
+        try {
+            if (!readyKey.isValid()) {
+                return;
+            }
+            if (readyKey.isConnectable()) {
+                if (channel.finishConnect()) {
+                    onConnected();
+                }
+                return;
+            }
+            if (readyKey.isReadable()) {
+                int read = channel.read(netIn);
+                if (read < 0) {
+                    throw new EOFException("Connection closed by " + address);
+                }
+                if (read > 0) {
+                    handshakeAnswered = true;
+                }
+            }
+            pump();
+        } catch (IOException e) {
+            close(e);
+        } catch (RuntimeException e) {
+            // Only this session fails, not the selector shared by the others.
+            close(new IOException("Session to " + address + " failed", e));
+        }
+    }
+
+    private void onConnected() throws IOException {
+        connectTime = SystemClock.elapsedRealtime() - openTime;
+        key.interestOps(SelectionKey.OP_READ);
+        engine.beginHandshake();
+        pump();
+    }
+
+    private void pumpSafely() {
+        try {
+            pump();
+        } catch (IOException e) {
+            close(e);
+        } catch (RuntimeException e) {
+            close(new IOException("Session to " + address + " failed", e));
+        }
+    }
+
+    /**
+     * Moves the bytes through the engine until nothing more can be done, then
+     * writes what is ready and updates the interest set.
+     */
+    private void pump() throws IOException {
+        if (key == null || !key.isValid() || connectTime < 0) {
+            return;
+        }
+        boolean progress = true;
+        while (progress && !tasksRunning && key.isValid()) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                tasksRunning = true;
+                transport.runDelegatedTasks(this, engine);
+                break;
+            }
+            progress = false;
+            if (status == HandshakeStatus.NEED_WRAP || (handshakeDone && hasPendingOutput())) {
+                progress |= wrap();
+            }
+            if (status == HandshakeStatus.NEED_UNWRAP
+                    || (handshakeDone && netIn.position() > 0)) {
+                progress |= unwrap();
+            }
+            if (!handshakeDone && engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
+                onHandshakeFinished();
+                progress = true;
+            }
+        }
+        if (!key.isValid()) {
+            return;
+        }
+        writeNetOut();
+        key.interestOps(netOut.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private boolean hasPendingOutput() {
+        synchronized (outLock) {
+            return appOut != null && appOut.position() > 0;
+        }
+    }
+
+    /**
+     * Encrypts the pending plaintext, or produces handshake data.
+     *
+     * @return {@code true} if anything was done.
+     */
+    private boolean wrap() throws IOException {
+        SSLEngineResult result;
+        synchronized (outLock) {
+            if (handshakeDone && appOut != null) {
+                appOut.flip();
+                result = engine.wrap(appOut, netOut);
+                appOut.compact();
+            } else {
+                result = engine.wrap(EMPTY, netOut);
+            }
+        }
+        checkHandshakeFinished(result);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                // Make room, and wait for the channel if it is full.
+                return writeNetOut();
+            case CLOSED:
+                throw new EOFException("TLS session closed");
+            default:
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    /**
+     * Decrypts the received bytes, and passes the complete messages to the
+     * listener.
+     *
+     * @return {@code true} if anything was done.
+     */
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        checkHandshakeFinished(result);
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                if (!netIn.hasRemaining()) {
+                    netIn = grow(netIn, engine.getSession().getPacketBufferSize(), true);
+                }
+                return false;
+            case BUFFER_OVERFLOW:
+                parseMessages();
+                if (appIn.remaining() < engine.getSession().getApplicationBufferSize()) {
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), false);
+                }
+                return true;
+            case CLOSED:
+                throw new EOFException("TLS session closed by " + address);
+            default:
+                if (result.bytesProduced() > 0) {
+                    parseMessages();
+                }
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    private void checkHandshakeFinished(SSLEngineResult result) {
+        if (!handshakeDone && result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+            onHandshakeFinished();
+        }
+    }
+
+    private void onHandshakeFinished() {
+        handshakeDone = true;
+        handshakeTime = SystemClock.elapsedRealtime() - openTime - connectTime;
+        handshakeLatch.countDown();
+    }
+
+    /**
+     * Writes the encrypted bytes the channel accepts.
+     *
+     * @return {@code true} if anything was written.
+     */
+    private boolean writeNetOut() throws IOException {
+        if (netOut.position() == 0) {
+            return false;
+        }
+        netOut.flip();
+        int written;
+        try {
+            written = channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+        return written > 0;
+    }
+
+    /**
+     * Passes the complete length delimited messages of the plaintext to the
+     * listener, and keeps the incomplete tail.
+     */
+    private void parseMessages() throws IOException {
+        byte[] array = appIn.array();
+        int base = appIn.arrayOffset();
+        int end = appIn.position();
+        int start = 0;
+        while (start < end) {
+            // Length prefix: a varint of at most 5 bytes.
+            int length = 0;
+            int shift = 0;
+            int offset = start;
+            boolean complete = false;
+            while (offset < end && shift < 35) {
+                byte b = array[base + offset++];
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+                if (b >= 0) {
+                    complete = true;
+                    break;
+                }
+            }
+            if (!complete) {
+                if (shift >= 35) {
+                    throw new IOException("Malformed message length");
+                }
+                break;
+            }
+            if (length < 0) {
+                throw new IOException("Malformed message length");
+            }
+            if (length > MAX_MESSAGE_SIZE) {
+                throw new IOException("Message too large: " + length + " bytes");
+            }
+            if (offset + length > end) {
+                if (offset - start + length > appIn.capacity()) {
+                    appIn = grow(appIn, offset - start + length, false);
+                    array = appIn.array();
+                    base = appIn.arrayOffset();
+                }
+                break;
+            }
+            RemoteMessage message = RemoteMessage.parseFrom(
+                    CodedInputStream.newInstance(array, base + offset, length));
+            start = offset + length;
+            IMessageListener listener = messageListener;
+            if (listener != null) {
+                listener.onMessage(message);
+            }
+        }
+        appIn.flip();
+        appIn.position(start);
+        appIn.compact();
+    }
+
+    /**
+     * Replaces a buffer in fill mode with a larger one holding the same bytes.
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int minFree, boolean direct) {
+        int size = Math.max(buffer.capacity() * 2, buffer.position() + minFree);
+        ByteBuffer larger = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        buffer.flip();
+        larger.put(buffer);
+        if (direct) {
+            transport.releasePacketBuffer(buffer);
+        } else {
+            transport.releaseApplicationBuffer(buffer);
+        }
+        return larger;
+    }
+
+    /**
+     * Closes the channel and gives the buffers back, on the selector thread.
+     *
+     * @param cause why the session is closed, or {@code null} if it was
+     *            stopped.
+     */
+    void close(IOException cause) {
+        synchronized (outLock) {
+            if (appOut == null) {
+                // Already closed.
+                return;
+            }
+            closed = true;
+            transport.releaseApplicationBuffer(appOut);
+            appOut = null;
+        }
+        boolean stopped = cause == null;
+        if (key != null && key.isValid() && handshakeDone && stopped) {
+            // Best effort close_notify.
+            engine.closeOutbound();
+            try {
+                netOut.clear();
+                engine.wrap(EMPTY, netOut);
+                writeNetOut();
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Could not send close_notify", e);
+            }
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not close channel", e);
+        }
+        transport.releasePacketBuffer(netIn);
+        transport.releasePacketBuffer(netOut);
+        transport.releaseApplicationBuffer(appIn);
+        netIn = null;
+        netOut = null;
+        appIn = null;
+
+        if (!handshakeDone) {
+            if (stopped) {
+                failure = new IOException("Session stopped");
+            } else if (handshakeAnswered && isClosedByPeer(cause)) {
+                // The TV drops unknown clients without an alert: like
+                // SSLSocket, report it as a refused handshake. Other failures,
+                // e.g. of the network, stay connection errors.
+                failure = new SSLException("Handshake closed by " + address, cause);
+            } else {
+                failure = cause;
+            }
+            handshakeLatch.countDown();
+            return;
+        }
+        final ErrorListener listener = errorListener;
+        if (!stopped && listener != null) {
+            final IOException error = cause;
+            try {
+                transport.dispatch(new Runnable() {
+                    public void run() {
+                        listener.onIoError("Session to " + address + " failed", error);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.e(LOG_TAG, "Could not report the failure of " + address, cause);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the failure is the TV closing or resetting the
+     *         connection.
+     */
+    private static boolean isClosedByPeer(IOException cause) {
+        if (cause instanceof EOFException) {
+            return true;
+        }
+        String message = cause.getMessage();
+        return message != null && message.contains("reset");
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Non-blocking transport for Anymote sessions. All the sessions share a
+ * single selector thread, which connects, runs the TLS handshakes and moves
+ * the bytes; the CPU heavy handshake tasks run on the task executor.
+ * <p>
+ * The network buffers are direct buffers taken from a pool, so opening and
+ * closing sessions does not churn native memory.
+ * <p>
+ * Discovery does not use this transport: {@link BroadcastDiscoveryClient}
+ * runs its own non-blocking datagram channel and selector, on a thread of the
+ * blocking executor, only while a scan is in progress.
+ */
+public final class NioTransport implements Runnable {
+
+    private static final String LOG_TAG = "NioTransport";
+
+    /**
+     * Size of the pooled network buffers, large enough for a TLS record.
+     */
+    static final int PACKET_BUFFER_SIZE = 17 * 1024;
+
+    /**
+     * Size of the pooled application buffers, large enough for the plaintext
+     * of a TLS record.
+     */
+    static final int APPLICATION_BUFFER_SIZE = 16 * 1024 + 64;
+
+    /**
+     * Number of buffers of each kind kept for reuse.
+     */
+    private static final int POOLED_BUFFERS = 16;
+
+    private final Executor taskExecutor;
+    private final Executor blockingExecutor;
+    private final BufferPool packetBuffers;
+    private final BufferPool applicationBuffers;
+
+    /** Tasks to run on the selector thread. */
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks;
+
+    private Selector selector;
+    private boolean started;
+    private volatile boolean running;
+
+    /**
+     * Fixed size buffers kept for reuse.
+     */
+    static final class BufferPool {
+        private final ConcurrentLinkedQueue<ByteBuffer> buffers =
+                new ConcurrentLinkedQueue<ByteBuffer>();
+        private final int bufferSize;
+        private final boolean direct;
+        private final int maxPooled;
+
+        BufferPool(int bufferSize, boolean direct, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.direct = direct;
+            this.maxPooled = maxPooled;
+        }
+
+        /**
+         * @param minSize minimum capacity of the buffer.
+         * @return an empty buffer.
+         */
+        ByteBuffer acquire(int minSize) {
+            if (minSize <= bufferSize) {
+                ByteBuffer buffer = buffers.poll();
+                if (buffer != null) {
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+            int size = Math.max(minSize, bufferSize);
+            return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+
+        /**
+         * Gives a buffer back. Buffers of another size are left to the garbage
+         * collector.
+         */
+        void release(ByteBuffer buffer) {
+            if (buffer != null && buffer.capacity() == bufferSize
+                    && buffer.isDirect() == direct && buffers.size() < maxPooled) {
+                buffers.offer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param executors the executors; the selector loop holds a thread of the
+     *            blocking executor once the first session is opened.
+     */
+    public NioTransport(AnymoteExecutors executors) {
+        taskExecutor = executors.getTaskExecutor();
+        blockingExecutor = executors.getBlockingExecutor();
+        packetBuffers = new BufferPool(PACKET_BUFFER_SIZE, true, POOLED_BUFFERS);
+        applicationBuffers = new BufferPool(APPLICATION_BUFFER_SIZE, false, POOLED_BUFFERS);
+        pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+    }
+
+    /**
+     * Opens a session. The connection and the handshake go on in the
+     * background; wait for them with {@link NioSession#awaitHandshake}.
+     *
+     * @param address address of the Anymote service.
+     * @param sslContext the TLS context authenticating the TV.
+     * @return the new session.
+     * @throws IOException if the channel cannot be opened.
+     */
+    public NioSession open(InetSocketAddress address, SSLContext sslContext)
+            throws IOException {
+        return open(address, sslContext, null);
+    }
+
+    /**
+     * Opens a session on a channel which may already be connected, e.g. one
+     * connected while the user was entering the pairing secret. Only the
+     * handshake is then left to do.
+     *
+     * @param address address of the Anymote service.
+     * @param sslContext the TLS context authenticating the TV.
+     * @param channel a channel connected to {@code address}, or {@code null}
+     *            to open a new one.
+     * @return the new session.
+     * @throws IOException if the channel cannot be opened.
+     */
+    public NioSession open(InetSocketAddress address, SSLContext sslContext,
+            SocketChannel channel) throws IOException {
+        start();
+        SSLEngine engine = sslContext.createSSLEngine(
+                address.getAddress().getHostAddress(), address.getPort());
+        engine.setUseClientMode(true);
+        if (channel == null) {
+            channel = SocketChannel.open();
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        final NioSession session = new NioSession(this, channel, engine, address);
+        execute(new Runnable() {
+            public void run() {
+                session.register(selector);
+            }
+        });
+        return session;
+    }
+
+    /**
+     * Stops the selector thread and closes the sessions.
+     */
+    public synchronized void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private synchronized void start() throws IOException {
+        if (started) {
+            if (!running) {
+                throw new IOException("Transport shut down");
+            }
+            return;
+        }
+        selector = Selector.open();
+        started = true;
+        running = true;
+        blockingExecutor.execute(this);
+    }
+
+    /**
+     * Runs a task on the selector thread.
+     */
+    void execute(Runnable task) {
+        pendingTasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the delegated tasks of the TLS engine of a session on the task
+     * executor, then resumes the session on the selector thread.
+     */
+    void runDelegatedTasks(final NioSession session, final SSLEngine engine) {
+        taskExecutor.execute(new Runnable() {
+            public void run() {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                execute(session.getResumeTask());
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the blocking executor, for callbacks which may block.
+     */
+    void dispatch(Runnable task) {
+        blockingExecutor.execute(task);
+    }
+
+    ByteBuffer acquirePacketBuffer(int minSize) {
+        return packetBuffers.acquire(minSize);
+    }
+
+    ByteBuffer acquireApplicationBuffer(int minSize) {
+        return applicationBuffers.acquire(minSize);
+    }
+
+    void releasePacketBuffer(ByteBuffer buffer) {
+        packetBuffers.release(buffer);
+    }
+
+    void releaseApplicationBuffer(ByteBuffer buffer) {
+        applicationBuffers.release(buffer);
+    }
+
+    /**
+     * The selector loop.
+     */
+    public void run() {
+        Log.d(LOG_TAG, "Selector thread started");
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // The sessions handle their own failures; keep the
+                        // selector running for the others.
+                        Log.e(LOG_TAG, "Selector task failed", e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((NioSession) key.attachment()).onReady(key);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Selector failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioSession) key.attachment()).close(new IOException("Transport shut down"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not close selector", e);
+            }
+            Log.d(LOG_TAG, "Selector thread stopped");
+        }
+    }
+}
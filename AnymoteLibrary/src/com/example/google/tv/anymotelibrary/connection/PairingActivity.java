@@ -31,6 +31,8 @@ import android.widget.RelativeLayout;
 
 import com.example.google.tv.anymotelibrary.client.AnymoteClientService;
 
+import java.util.List;
+
 /**
  * This Activity handles Pairing with the remote TV device. It also handles
  * displaying the device selection dialog.
@@ -101,6 +103,11 @@ public class PairingActivity extends Activity
         mDeviceSelectDialog.setDeviceSelectListener(this);
         mDeviceSelectDialog.setTvDiscovery(mConnectionManager.getTvDiscovery());
         mDeviceSelectDialog.show();
+        if (mConnectionManager.getDeviceCache() != null) {
+            List<TvDevice> recentDevices = mConnectionManager.getDeviceCache().getRecentDevices();
+            mDeviceSelectDialog.setRecentDevices(
+                    recentDevices.toArray(new TvDevice[recentDevices.size()]));
+        }
     }
 
     public void onDeviceSelected(TvDevice device) {
@@ -18,7 +18,12 @@ package com.example.google.tv.anymotelibrary.connection;
 
 import android.os.Build;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetAddress;
 import java.net.Inet4Address;
+import java.net.UnknownHostException;
 
 /**
  * This class represents the Tv Device to connect to.
@@ -74,6 +79,16 @@ public class TvDevice implements Comparable<TvDevice> {
         return address;
     }
 
+    /**
+     * Returns the network endpoint of the device. Unlike the name, which
+     * identical devices may share, it tells them apart.
+     * 
+     * @return address:port of the device.
+     */
+    public String getEndpoint() {
+        return address.getHostAddress() + ":" + port;
+    }
+
     @Override
     public String toString() {
         return String.format("Secure: %s [%s:%d]", getName(), getAddress(), getPort());
@@ -99,6 +114,46 @@ public class TvDevice implements Comparable<TvDevice> {
         return compareTo(another) == 0;
     }
 
+    @Override
+    public int hashCode() {
+        return getName().hashCode();
+    }
+
+    /**
+     * Serializes the device so that it can be persisted.
+     *
+     * @return JSON representation of the device.
+     * @throws JSONException
+     */
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(PREF_NAME, name);
+        json.put(PREF_ADDRESS, address.getHostAddress());
+        json.put(PREF_PORT, port);
+        return json;
+    }
+
+    /**
+     * Restores a device serialized by {@link #toJson()}.
+     *
+     * @param json JSON representation of the device.
+     * @return the device, or {@code null} if the representation is invalid.
+     */
+    static TvDevice fromJson(JSONObject json) {
+        try {
+            InetAddress address = InetAddress.getByName(json.getString(PREF_ADDRESS));
+            if (!(address instanceof Inet4Address)) {
+                return null;
+            }
+            return new TvDevice(
+                    json.getString(PREF_NAME), (Inet4Address) address, json.getInt(PREF_PORT));
+        } catch (JSONException e) {
+            return null;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
     /**
      * Gets the string representing the device address.
      * 
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.example.google.tv.anymotelibrary.R;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of the TV devices seen on the network or connected to,
+ * with their connection statistics. It lets the library reconnect to the last
+ * used TV on launch without waiting for a broadcast discovery.
+ */
+public final class TvDeviceCache {
+
+    private static final String LOG_TAG = "TvDeviceCache";
+
+    private static final String PREFS_NAME = "anymote_devices";
+    private static final String PREF_DEVICES = "devices";
+
+    private static final String KEY_DEVICE = "device";
+    private static final String KEY_LAST_SEEN = "lastSeen";
+    private static final String KEY_LAST_SUCCESS = "lastSuccess";
+    private static final String KEY_ATTEMPTS = "attempts";
+    private static final String KEY_SUCCESSES = "successes";
+    private static final String KEY_CONNECT_TIME = "connectTime";
+
+    /**
+     * Maximum number of devices kept in the cache.
+     */
+    private static final int MAX_ENTRIES = 32;
+
+    private final SharedPreferences preferences;
+    private final int recentCount;
+
+    /**
+     * Cached entries, keyed by address and port.
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * A cached device and its connection statistics.
+     */
+    public static final class Entry {
+        private final TvDevice device;
+        private long lastSeen;
+        private long lastSuccess;
+        private int attempts;
+        private int successes;
+        private long totalConnectTime;
+
+        Entry(TvDevice device) {
+            this.device = device;
+        }
+
+        /**
+         * @return the cached device.
+         */
+        public TvDevice getDevice() {
+            return device;
+        }
+
+        /**
+         * @return wall clock time the device was last seen on the network.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * @return wall clock time of the last successful connection, or 0.
+         */
+        public long getLastSuccess() {
+            return lastSuccess;
+        }
+
+        /**
+         * @return number of connection attempts to the device.
+         */
+        public int getConnectionAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return number of successful connections to the device.
+         */
+        public int getConnectionSuccesses() {
+            return successes;
+        }
+
+        /**
+         * @return average time taken by successful connections, in
+         *         milliseconds, or -1 if the device was never connected to.
+         */
+        public long getAverageConnectTime() {
+            return successes > 0 ? totalConnectTime / successes : -1;
+        }
+
+        private JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(KEY_DEVICE, device.toJson());
+            json.put(KEY_LAST_SEEN, lastSeen);
+            json.put(KEY_LAST_SUCCESS, lastSuccess);
+            json.put(KEY_ATTEMPTS, attempts);
+            json.put(KEY_SUCCESSES, successes);
+            json.put(KEY_CONNECT_TIME, totalConnectTime);
+            return json;
+        }
+
+        private static Entry fromJson(JSONObject json) {
+            TvDevice device = TvDevice.fromJson(json.optJSONObject(KEY_DEVICE));
+            if (device == null) {
+                return null;
+            }
+            Entry entry = new Entry(device);
+            entry.lastSeen = json.optLong(KEY_LAST_SEEN);
+            entry.lastSuccess = json.optLong(KEY_LAST_SUCCESS);
+            entry.attempts = json.optInt(KEY_ATTEMPTS);
+            entry.successes = json.optInt(KEY_SUCCESSES);
+            entry.totalConnectTime = json.optLong(KEY_CONNECT_TIME);
+            return entry;
+        }
+    }
+
+    /**
+     * Orders entries from the most recently connected to the least recently
+     * connected, then by last time seen.
+     */
+    private static final Comparator<Entry> RECENT_FIRST = new Comparator<Entry>() {
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.lastSuccess != rhs.lastSuccess) {
+                return lhs.lastSuccess > rhs.lastSuccess ? -1 : 1;
+            }
+            if (lhs.lastSeen != rhs.lastSeen) {
+                return lhs.lastSeen > rhs.lastSeen ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Constructor. Loads the cache from the preferences.
+     *
+     * @param context context of the application.
+     */
+    public TvDeviceCache(Context context) {
+        preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        recentCount = context.getResources().getInteger(R.integer.recently_connected_count);
+        entries = new LinkedHashMap<String, Entry>();
+        load();
+    }
+
+    /**
+     * Records that a device answered a discovery probe.
+     *
+     * @param device the discovered device.
+     */
+    public synchronized void recordSeen(TvDevice device) {
+        getOrCreateEntry(device).lastSeen = System.currentTimeMillis();
+        store();
+    }
+
+    /**
+     * Records that a connection to a device is attempted.
+     *
+     * @param device the target device.
+     */
+    public synchronized void recordConnectionAttempt(TvDevice device) {
+        ++getOrCreateEntry(device).attempts;
+        store();
+    }
+
+    /**
+     * Records a successful connection to a device.
+     *
+     * @param device the connected device.
+     * @param connectTime time taken to connect, in milliseconds.
+     */
+    public synchronized void recordConnectionSuccess(TvDevice device, long connectTime) {
+        Entry entry = getOrCreateEntry(device);
+        long now = System.currentTimeMillis();
+        entry.lastSeen = now;
+        entry.lastSuccess = now;
+        ++entry.successes;
+        entry.totalConnectTime += connectTime;
+        store();
+    }
+
+    /**
+     * Returns the statistics of a cached device.
+     *
+     * @param device the device.
+     * @return the cache entry, or {@code null} if the device is not cached.
+     */
+    public synchronized Entry getEntry(TvDevice device) {
+        return entries.get(getKey(device));
+    }
+
+    /**
+     * Returns the devices successfully connected to, most recent first.
+     *
+     * @return list of recently connected devices.
+     */
+    public synchronized List<TvDevice> getRecentDevices() {
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, RECENT_FIRST);
+        List<TvDevice> devices = new ArrayList<TvDevice>();
+        for (Entry entry : sorted) {
+            if (entry.lastSuccess == 0 || devices.size() >= recentCount) {
+                break;
+            }
+            devices.add(entry.device);
+        }
+        return devices;
+    }
+
+    private Entry getOrCreateEntry(TvDevice device) {
+        String key = getKey(device);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(device);
+            // Every record means the device was just reached.
+            entry.lastSeen = System.currentTimeMillis();
+            entries.put(key, entry);
+            trim(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Evicts the least recently used entries above the maximum size.
+     *
+     * @param added the entry just added, which is kept even though it never
+     *            connected yet.
+     */
+    private void trim(Entry added) {
+        if (entries.size() <= MAX_ENTRIES) {
+            return;
+        }
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        sorted.remove(added);
+        Collections.sort(sorted, RECENT_FIRST);
+        for (Entry entry : sorted.subList(MAX_ENTRIES - 1, sorted.size())) {
+            entries.remove(getKey(entry.device));
+        }
+    }
+
+    private static String getKey(TvDevice device) {
+        return device.getAddress().getHostAddress() + ":" + device.getPort();
+    }
+
+    private void load() {
+        String serialized = preferences.getString(PREF_DEVICES, null);
+        if (serialized == null) {
+            return;
+        }
+        try {
+            JSONArray array = new JSONArray(serialized);
+            for (int i = 0; i < array.length(); ++i) {
+                Entry entry = Entry.fromJson(array.getJSONObject(i));
+                if (entry != null) {
+                    entries.put(getKey(entry.device), entry);
+                }
+            }
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Discarding corrupted device cache", e);
+            entries.clear();
+        }
+    }
+
+    private void store() {
+        JSONArray array = new JSONArray();
+        try {
+            for (Entry entry : entries.values()) {
+                array.put(entry.toJson());
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Unable to serialize device cache", e);
+            return;
+        }
+        // apply() writes to disk asynchronously.
+        preferences.edit().putString(PREF_DEVICES, array.toString()).apply();
+    }
+}
@@ -22,6 +22,7 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.example.google.tv.anymotelibrary.R;
@@ -32,11 +33,25 @@ import com.example.google.tv.anymotelibrary.connection.BroadcastDiscoveryClient.
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Service which discovers Google TV devices on the local network.
+ * <p>
+ * Devices are streamed to {@link DiscoveryListener}s as soon as their
+ * broadcast response is received. Devices are identified by their address and
+ * port, so each device is reported once, and devices that stop answering while
+ * discovery is running are reported as lost. All listener callbacks are
+ * called on the thread this service was created on.
  */
 public class TvDiscoveryService extends Handler {
 
@@ -50,6 +65,11 @@ public class TvDiscoveryService extends Handler {
      */
     private static final String SERVICE_TCP = "_anymote._tcp";
 
+    /**
+     * Interval between two checks for devices that stopped answering.
+     */
+    private static final int AGE_CHECK_INTERVAL_MS = 2000;
+
     /**
      * The service that handles connection to the TV device and sends events to
      * it.
@@ -63,19 +83,78 @@ public class TvDiscoveryService extends Handler {
     private BroadcastDiscoveryClient broadcastClient;
 
     /**
-     * The thread that handles network communications.
+     * The wifi connectivity manager.
      */
-    private Thread broadcastThread;
+    WifiManager wifiManager;
 
     /**
-     * The wifi connectivity manager.
+     * All discovered TVs, keyed by address and port.
      */
-    WifiManager wifiManager;
+    private final Map<String, DiscoveredDevice> devices;
+
+    /**
+     * Listeners receiving discovered TVs.
+     */
+    private final List<DiscoveryListener> listeners;
+
+    /**
+     * Listeners which asked for discovery to go on after the broadcast
+     * timeout.
+     */
+    private final List<DiscoveryListener> continuousListeners;
+
+    /**
+     * Listeners whose broadcast timeout has not elapsed yet.
+     */
+    private final List<DiscoveryListener> waitingListeners;
 
     /**
-     * All discovered TVs are stored in this list.
+     * Time after which a device which did not answer is considered lost.
      */
-    private List<TvDevice> devices;
+    private final int staleTimeout;
+
+    /**
+     * Receives Google TV devices as soon as they are discovered.
+     */
+    public interface DiscoveryListener {
+        /**
+         * Called when a new TV device is found on the network.
+         *
+         * @param device the discovered device.
+         */
+        void onTvFound(TvDevice device);
+
+        /**
+         * Called when a previously found TV device stopped answering.
+         *
+         * @param device the lost device.
+         */
+        void onTvLost(TvDevice device);
+
+        /**
+         * Called when the initial discovery window has elapsed. Continuous
+         * discovery goes on after this call.
+         */
+        void onDiscoveryTimeout();
+
+        /**
+         * Called when discovery cannot run because no network is available.
+         */
+        void onNetworkUnavailable();
+    }
+
+    /**
+     * A discovered device and the last time it was seen.
+     */
+    private static final class DiscoveredDevice {
+        final TvDevice device;
+        long lastSeen;
+
+        DiscoveredDevice(TvDevice device, long lastSeen) {
+            this.device = device;
+            this.lastSeen = lastSeen;
+        }
+    }
 
     /**
      * Constructor
@@ -85,8 +164,13 @@ public class TvDiscoveryService extends Handler {
      */
     public TvDiscoveryService(AnymoteClientService coreService) {
         this.coreService = coreService;
-        devices = new ArrayList();
+        devices = new LinkedHashMap<String, DiscoveredDevice>();
+        listeners = new ArrayList<DiscoveryListener>();
+        continuousListeners = new ArrayList<DiscoveryListener>();
+        waitingListeners = new ArrayList<DiscoveryListener>();
         wifiManager = (WifiManager) coreService.getSystemService(Activity.WIFI_SERVICE);
+        staleTimeout = coreService.getResources().getInteger(
+                R.integer.discovery_stale_timeout);
     }
 
     /**
@@ -95,6 +179,8 @@ public class TvDiscoveryService extends Handler {
     private enum RequestType {
 
         BROADCAST_TIMEOUT,
+        DEVICE_FOUND,
+        AGE_CHECK,
     }
 
     /**
@@ -128,31 +214,124 @@ public class TvDiscoveryService extends Handler {
     }
 
     /**
-     * The looper for thread that discovers Google TV devices offering Anymote
-     * service on the local network.
+     * Starts streaming discovered TVs to the listener. Devices already known
+     * are reported right away. Must be called on the thread this service was
+     * created on.
+     *
+     * @param listener receives the discovered TVs.
+     * @param continuous {@code true} to keep scanning after the broadcast
+     *            timeout, until {@link #stopDiscovery} is called.
      */
-    DiscoveryLooper looper = new DiscoveryLooper();
+    public void startDiscovery(DiscoveryListener listener, boolean continuous) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+            // Each listener gets its own discovery window, even if the
+            // scan started long ago.
+            waitingListeners.add(listener);
+            sendMessage(RequestType.BROADCAST_TIMEOUT, listener, getBroadcastTimeout());
+        }
+        if (continuous && !continuousListeners.contains(listener)) {
+            continuousListeners.add(listener);
+        }
+        for (DiscoveredDevice discovered : devices.values()) {
+            listener.onTvFound(discovered.device);
+        }
+        if (!startBroadcast()) {
+            listener.onNetworkUnavailable();
+        }
+    }
+
+    /**
+     * Stops streaming discovered TVs to the listener. Scanning stops once no
+     * listener is left.
+     *
+     * @param listener the listener passed to {@link #startDiscovery}.
+     */
+    public void stopDiscovery(DiscoveryListener listener) {
+        listeners.remove(listener);
+        continuousListeners.remove(listener);
+        waitingListeners.remove(listener);
+        removeMessages(RequestType.BROADCAST_TIMEOUT.ordinal(), listener);
+        if (listeners.isEmpty()) {
+            stopBroadcast();
+        }
+    }
+
+    /**
+     * Returns the TVs discovered so far.
+     *
+     * @return list of TV devices.
+     */
+    public List<TvDevice> getDiscoveredTvs() {
+        List<TvDevice> result = new ArrayList<TvDevice>();
+        for (DiscoveredDevice discovered : devices.values()) {
+            result.add(discovered.device);
+        }
+        return result;
+    }
 
     /**
      * Returns a list of Google TV devices offering Anymote service on the local
-     * network.
+     * network. This call blocks until the broadcast timeout elapses, and must
+     * not be called on the thread this service was created on; prefer
+     * {@link #startDiscovery} which reports devices as soon as they answer.
+     * The wait is bounded, should the thread of this service be busy.
      * 
-     * @return list of TV devices
+     * @return list of TV devices, or {@code null} if no network is available.
      */
     public List<TvDevice> discoverTvs() {
-        looper.start();
+        if (getBroadcastAddresses().isEmpty()) {
+            return null;
+        }
+        final boolean[] done = new boolean[1];
+        final DiscoveryListener waiter = new DiscoveryListener() {
+            public void onTvFound(TvDevice device) {
+            }
+
+            public void onTvLost(TvDevice device) {
+            }
+
+            public void onDiscoveryTimeout() {
+                synchronized (broadCastSync) {
+                    done[0] = true;
+                    broadCastSync.notifyAll();
+                }
+            }
+
+            public void onNetworkUnavailable() {
+                onDiscoveryTimeout();
+            }
+        };
         try {
             synchronized (broadCastSync) {
-                broadCastSync.wait();
+                post(new Runnable() {
+                    public void run() {
+                        startDiscovery(waiter, false);
+                    }
+                });
+                long deadline = SystemClock.uptimeMillis() + 2 * getBroadcastTimeout();
+                while (!done[0]) {
+                    long remaining = deadline - SystemClock.uptimeMillis();
+                    if (remaining <= 0) {
+                        Log.w(LOG_TAG, "Timeout while scanning for tvs");
+                        break;
+                    }
+                    broadCastSync.wait(remaining);
+                }
             }
-
         } catch (InterruptedException e) {
             Log.e(LOG_TAG, "Interrupted while scanning for tvs");
-            // Return empty array list as this.devices might be unsafe
-            // because of background looper, which may still be writing to it.
             return new ArrayList<TvDevice>();
+        } finally {
+            post(new Runnable() {
+                public void run() {
+                    stopDiscovery(waiter);
+                }
+            });
+        }
+        synchronized (devices) {
+            return getDiscoveredTvs();
         }
-        return devices;
     }
 
     /**
@@ -163,86 +342,147 @@ public class TvDiscoveryService extends Handler {
     }
 
     /**
-     * Called when a Google TV device is found on local network.
+     * Called when a Google TV device is found on local network. Must be called
+     * on the thread this service was created on.
      * 
      * @param dev
      */
     public void onDeviceFound(TvDevice dev) {
-        devices.add(dev);
+        String key = getDeviceKey(dev);
+        long now = SystemClock.uptimeMillis();
+        DiscoveredDevice discovered = devices.get(key);
+        if (discovered != null) {
+            discovered.lastSeen = now;
+            return;
+        }
+        synchronized (devices) {
+            devices.put(key, new DiscoveredDevice(dev, now));
+        }
+        Log.i(LOG_TAG, "Found wireless device: " + dev.getName());
+        if (coreService.getDeviceCache() != null) {
+            coreService.getDeviceCache().recordSeen(dev);
+        }
+        for (DiscoveryListener listener : new ArrayList<DiscoveryListener>(listeners)) {
+            listener.onTvFound(dev);
+        }
+    }
+
+    /**
+     * Reports and forgets the devices that stopped answering.
+     */
+    private void removeStaleDevices() {
+        long now = SystemClock.uptimeMillis();
+        for (Iterator<DiscoveredDevice> it = devices.values().iterator(); it.hasNext();) {
+            DiscoveredDevice discovered = it.next();
+            if (now - discovered.lastSeen > staleTimeout) {
+                synchronized (devices) {
+                    it.remove();
+                }
+                Log.i(LOG_TAG, "Lost wireless device: " + discovered.device.getName());
+                for (DiscoveryListener listener : new ArrayList<DiscoveryListener>(listeners)) {
+                    listener.onTvLost(discovered.device);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the key used to identify a device on the network.
+     *
+     * @param device the device.
+     * @return address:port of the device.
+     */
+    private static String getDeviceKey(TvDevice device) {
+        return device.getEndpoint();
     }
 
     /**
      * Stops looking for Google TV devices on the network.
      */
     private synchronized void stopBroadcast() {
+        removeMessages(RequestType.AGE_CHECK.ordinal());
         if (broadcastClient != null) {
             Log.i(LOG_TAG, "Disabling broadcast");
+            // The client closes its channel on its own thread; it binds to a
+            // random port, so a new client can start right away.
             broadcastClient.stop();
             broadcastClient = null;
-            try {
-                broadcastThread.join(1000);
-            } catch (InterruptedException e) {
-                Log.i(LOG_TAG, "Timeout while waiting for thread execution to complete");
-            }
-            broadcastThread = null;
-            onDeviceScanComplete();
         }
     }
 
     /**
      * Starts scanning the local network for Google TV devices.
+     *
+     * @return {@code false} if no network is available.
      */
-    private synchronized void startBroadcast() {
-        Inet4Address broadcastAddress = getBroadcastAddress();
-        if (broadcastAddress == null) {
+    private synchronized boolean startBroadcast() {
+        List<Inet4Address> broadcastAddresses = getBroadcastAddresses();
+        if (broadcastAddresses.isEmpty()) {
             stopBroadcast();
-            return;
+            return false;
         }
         if (broadcastClient == null) {
             Log.i(LOG_TAG, "Enabling broadcast");
-            broadcastClient = new BroadcastDiscoveryClient(broadcastAddress, getServiceName());
+            broadcastClient = new BroadcastDiscoveryClient(broadcastAddresses, getServiceName());
+            if (coreService.getResources().getBoolean(R.bool.discovery_unicast_sweep)) {
+                broadcastClient.enableUnicastSweep(getLocalAddresses(),
+                        coreService.getResources().getInteger(R.integer.discovery_sweep_batch));
+            }
             broadcastClient.setDeviceDiscoveredListener(new DeviceDiscoveredListener() {
                 public void onDeviceDiscovered(BroadcastAdvertisement advert) {
-                    TvDevice remoteDevice = getDeviceFromAdvert(advert);
-                    Log.i(LOG_TAG, "Found wireless device: " + remoteDevice.getName());
-                    onDeviceFound(remoteDevice);
+                    // Called on the broadcast thread.
+                    sendMessage(RequestType.DEVICE_FOUND, getDeviceFromAdvert(advert), 0);
                 }
             });
 
-            broadcastThread = new Thread(broadcastClient);
-            broadcastThread.start();
-            int broadcastTimeout = coreService.getResources().getInteger(
-                    R.integer.broadcast_timeout);
-            sendMessage(RequestType.BROADCAST_TIMEOUT, null, broadcastTimeout);
+            final BroadcastDiscoveryClient client = broadcastClient;
+            coreService.getExecutors().getBlockingExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        client.run();
+                    } catch (RuntimeException e) {
+                        Log.w(LOG_TAG, "Broadcast client failed", e);
+                    }
+                }
+            });
+            sendMessage(RequestType.AGE_CHECK, null, AGE_CHECK_INTERVAL_MS);
         }
+        return true;
     }
 
-    /**
-     * Internal Looper thread that does the discovery
-     */
-    private class DiscoveryLooper extends Thread {
-        public Handler mHandler;
+    public void handleMessage(Message msg) {
+        RequestType request = RequestType.values()[msg.what];
 
-        @Override
-        public void run() {
-            startBroadcast();
-            if (getBroadcastAddress() == null) {
-                devices = null;
-                return;
-            }
+        switch (request) {
+            case BROADCAST_TIMEOUT:
+                DiscoveryListener listener = (DiscoveryListener) msg.obj;
+                if (!waitingListeners.remove(listener)) {
+                    break;
+                }
+                if (continuousListeners.isEmpty() && waitingListeners.isEmpty()) {
+                    stopBroadcast();
+                }
+                listener.onDiscoveryTimeout();
+                break;
+
+            case DEVICE_FOUND:
+                if (broadcastClient != null) {
+                    onDeviceFound((TvDevice) msg.obj);
+                }
+                break;
 
+            case AGE_CHECK:
+                removeStaleDevices();
+                sendMessage(RequestType.AGE_CHECK, null, AGE_CHECK_INTERVAL_MS);
+                break;
         }
     }
 
-    public void handleMessage(Message msg) {
-        RequestType request = RequestType.values()[msg.what];
-
-        if (request == RequestType.BROADCAST_TIMEOUT) {
-            stopBroadcast();
-            synchronized (broadCastSync) {
-                broadCastSync.notifyAll();
-            }
-        }
+    /**
+     * @return duration of the initial discovery window, in milliseconds.
+     */
+    private int getBroadcastTimeout() {
+        return coreService.getResources().getInteger(R.integer.broadcast_timeout);
     }
 
     /**
@@ -281,6 +521,68 @@ public class TvDiscoveryService extends Handler {
         return (info != null) ? info.getSSID() : null;
     }
 
+    /**
+     * Returns the broadcast addresses of all the networks the device is
+     * connected to, wired or wireless. Falls back to the broadcast address of
+     * the wifi network if the interfaces cannot be enumerated.
+     * 
+     * @return IP addresses for broadcasts, empty if no network is available.
+     */
+    protected List<Inet4Address> getBroadcastAddresses() {
+        List<Inet4Address> addresses = new ArrayList<Inet4Address>();
+        for (InterfaceAddress interfaceAddress : getInterfaceAddresses()) {
+            InetAddress broadcast = interfaceAddress.getBroadcast();
+            if (broadcast instanceof Inet4Address && !addresses.contains(broadcast)) {
+                addresses.add((Inet4Address) broadcast);
+            }
+        }
+        if (addresses.isEmpty()) {
+            Inet4Address broadcast = getBroadcastAddress();
+            if (broadcast != null) {
+                addresses.add(broadcast);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns the IPv4 addresses of the device on all the networks it is
+     * connected to.
+     * 
+     * @return local IP addresses.
+     */
+    protected List<Inet4Address> getLocalAddresses() {
+        List<Inet4Address> addresses = new ArrayList<Inet4Address>();
+        for (InterfaceAddress interfaceAddress : getInterfaceAddresses()) {
+            if (interfaceAddress.getAddress() instanceof Inet4Address) {
+                addresses.add((Inet4Address) interfaceAddress.getAddress());
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns the addresses of the network interfaces which are up, except
+     * the loopback interface.
+     */
+    private static List<InterfaceAddress> getInterfaceAddresses() {
+        List<InterfaceAddress> addresses = new ArrayList<InterfaceAddress>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            if (interfaces == null) {
+                return addresses;
+            }
+            for (NetworkInterface networkInterface : Collections.list(interfaces)) {
+                if (networkInterface.isUp() && !networkInterface.isLoopback()) {
+                    addresses.addAll(networkInterface.getInterfaceAddresses());
+                }
+            }
+        } catch (SocketException e) {
+            Log.w(LOG_TAG, "Could not enumerate network interfaces", e);
+        }
+        return addresses;
+    }
+
     /**
      * Returns the IP address where network broadcasts are sent.
      * 
@@ -116,6 +116,24 @@ public interface ScaleGestureDetector {
         }
     }
 
+    /**
+     * The listener for receiving notifications when several fingers swipe
+     * together, without pinching.
+     */
+    public interface OnSwipeListener {
+        /**
+         * Responds to a swipe. Reported at most once per gesture, as soon as
+         * the fingers have traveled far and fast enough.
+         * 
+         * @param detector The detector reporting the event.
+         * @param distanceX Horizontal travel of the focal point since the
+         *            swipe started, in pixels.
+         * @param distanceY Vertical travel of the focal point since the swipe
+         *            started, in pixels.
+         */
+        public void onSwipe(ScaleGestureDetector detector, float distanceX, float distanceY);
+    }
+
     /**
      * Returns {@code true} if a two-finger scale gesture is in progress.
      * 
@@ -188,5 +206,45 @@ public interface ScaleGestureDetector {
      */
     public long getEventTime();
 
+    /**
+     * Return the number of pointers forming the gesture in progress.
+     * 
+     * @return Number of pointers.
+     */
+    public int getPointerCount();
+
+    /**
+     * Return the rotation of the pointers around the focal point from the
+     * previous scale event to the current event, averaged over the pointers.
+     * 
+     * @return Rotation in degrees, positive clockwise.
+     */
+    public float getRotation();
+
+    /**
+     * Return the velocity of the focal point, measured over the last few
+     * events.
+     * 
+     * @return Horizontal velocity in pixels per second.
+     */
+    public float getFocusVelocityX();
+
+    /**
+     * Return the velocity of the focal point, measured over the last few
+     * events.
+     * 
+     * @return Vertical velocity in pixels per second.
+     */
+    public float getFocusVelocityY();
+
+    /**
+     * Sets the listener told when {@code pointerCount} fingers or more swipe
+     * together.
+     * 
+     * @param listener The listener, or {@code null}.
+     * @param pointerCount Minimal number of fingers of a swipe, at least 2.
+     */
+    public void setOnSwipeListener(OnSwipeListener listener, int pointerCount);
+
     public boolean onTouchEvent(MotionEvent event);
 }
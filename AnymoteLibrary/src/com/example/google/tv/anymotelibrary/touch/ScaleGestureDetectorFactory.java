@@ -48,7 +48,7 @@ public class ScaleGestureDetectorFactory {
             ScaleGestureDetector.OnScaleGestureListener listener) {
         try {
             Class<?> clazz = Class.forName(
-                    "com.google.android.apps.tvremote.backport.ScaleGestureDetectorImpl");
+                    "com.example.google.tv.anymotelibrary.touch.ScaleGestureDetectorImpl");
             Constructor<?> constructor = clazz.getConstructor(View.class,
                     ScaleGestureDetector.OnScaleGestureListener.class);
             return (ScaleGestureDetector) constructor.newInstance(view, listener);
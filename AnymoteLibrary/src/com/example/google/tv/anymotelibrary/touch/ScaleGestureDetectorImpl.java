@@ -38,6 +38,14 @@ import android.view.ViewConfiguration;
  * {@link #onTouchEvent(MotionEvent)}. The methods defined in your callback will
  * be executed when the events occur.
  * </ul>
+ * <p>
+ * Any number of pointers can take part in a gesture: the focal point is their
+ * centroid and the span twice their average distance to it, which is the
+ * distance between the pointers when there are two. Pointers going down or up
+ * during a gesture rebase it, so the focal point does not jump. The pointers
+ * are copied into primitive arrays rather than into {@link MotionEvent}s, and
+ * the focal points of the last events are kept in a ring to measure the
+ * velocity, so handling events allocates nothing.
  */
 public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
     /**
@@ -51,177 +59,220 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
      */
     private static final float PRESSURE_THRESHOLD = 0.67f;
 
+    /**
+     * Maximum number of pointers tracked; extra pointers are ignored.
+     */
+    private static final int MAX_POINTERS = 10;
+
+    /**
+     * Number of focal points kept to measure the velocity, and the duration
+     * over which it is measured.
+     */
+    private static final int HISTORY_SIZE = 16;
+    private static final long VELOCITY_WINDOW_MS = 100;
+
+    /**
+     * Minimal travel and velocity of a swipe, in density independent pixels
+     * and density independent pixels per second.
+     */
+    private static final float SWIPE_MIN_DISTANCE_DIP = 60;
+    private static final float SWIPE_MIN_VELOCITY_DIP = 300;
+
+    /**
+     * Maximal change of the span during a swipe, as a ratio.
+     */
+    private static final float SWIPE_MAX_SCALE = 1.25f;
+
+    private static final float RADIANS_TO_DEGREES = (float) (180 / Math.PI);
+
     private final View mView;
 
     private final OnScaleGestureListener mListener;
     private boolean mGestureInProgress;
 
-    private MotionEvent mPrevEvent;
-    private MotionEvent mCurrEvent;
+    /**
+     * Pointers of the current event.
+     */
+    private final int[] mCurrIds = new int[MAX_POINTERS];
+    private final float[] mCurrX = new float[MAX_POINTERS];
+    private final float[] mCurrY = new float[MAX_POINTERS];
+    private int mCurrCount;
+    private long mCurrTime;
+
+    /**
+     * Pointers of the previous accepted event.
+     */
+    private final int[] mPrevIds = new int[MAX_POINTERS];
+    private final float[] mPrevX = new float[MAX_POINTERS];
+    private final float[] mPrevY = new float[MAX_POINTERS];
+    private int mPrevCount;
+    private long mPrevTime;
 
     private float mFocusX;
     private float mFocusY;
-    private float mPrevFingerDiffX;
-    private float mPrevFingerDiffY;
-    private float mCurrFingerDiffX;
-    private float mCurrFingerDiffY;
+    private float mPrevFocusX;
+    private float mPrevFocusY;
     private float mCurrLen;
     private float mPrevLen;
     private float mScaleFactor;
+    private float mRotation;
     private float mCurrPressure;
     private float mPrevPressure;
     private long mTimeDelta;
 
+    /**
+     * Recent focal points, as a ring buffer.
+     */
+    private final long[] mHistoryTime = new long[HISTORY_SIZE];
+    private final float[] mHistoryX = new float[HISTORY_SIZE];
+    private final float[] mHistoryY = new float[HISTORY_SIZE];
+    private int mHistoryHead;
+    private int mHistoryCount;
+    private float mVelocityX;
+    private float mVelocityY;
+
+    private OnSwipeListener mSwipeListener;
+    private int mSwipePointers;
+    private final float mSwipeMinDistance;
+    private final float mSwipeMinVelocity;
+    private boolean mSwipeTracking;
+    private boolean mSwipeDone;
+    private float mSwipeStartX;
+    private float mSwipeStartY;
+    private float mSwipeStartLen;
+
     private final float mEdgeSlop;
     private float mRightSlopEdge;
     private float mBottomSlopEdge;
     private boolean mSloppyGesture;
 
+    /**
+     * Location of the view on the screen, reused for every event.
+     */
+    private final Rect mViewRect = new Rect();
+
     public ScaleGestureDetectorImpl(View view, OnScaleGestureListener listener) {
         ViewConfiguration config = ViewConfiguration.get(view.getContext());
         mView = view;
         mListener = listener;
         mEdgeSlop = config.getScaledEdgeSlop();
+        float density = view.getContext().getResources().getDisplayMetrics().density;
+        mSwipeMinDistance = SWIPE_MIN_DISTANCE_DIP * density;
+        mSwipeMinVelocity = SWIPE_MIN_VELOCITY_DIP * density;
+    }
+
+    public void setOnSwipeListener(OnSwipeListener listener, int pointerCount) {
+        if (pointerCount < 2) {
+            throw new IllegalArgumentException("Swipe pointer count < 2: " + pointerCount);
+        }
+        mSwipeListener = listener;
+        mSwipePointers = pointerCount;
     }
 
     public boolean onTouchEvent(MotionEvent event) {
         final int action = event.getAction();
         boolean handled = true;
-        Rect rect = new Rect();
 
-        if (!mView.getGlobalVisibleRect(rect)) {
+        if (!mView.getGlobalVisibleRect(mViewRect)) {
             return false;
         }
 
+        final int actionMasked = action & MotionEvent.ACTION_MASK;
+        final int upIndex = actionMasked == MotionEvent.ACTION_POINTER_UP
+                ? (action & MotionEvent.ACTION_POINTER_ID_MASK)
+                        >> MotionEvent.ACTION_POINTER_ID_SHIFT
+                : -1;
+
         if (!mGestureInProgress) {
-            switch (action & MotionEvent.ACTION_MASK) {
+            switch (actionMasked) {
                 case MotionEvent.ACTION_POINTER_DOWN: {
-                // We have a new multi-finger gesture
-
-                // as orientation can change, query the metrics in touch down
-                DisplayMetrics metrics =
-                        mView.getContext().getResources().getDisplayMetrics();
-                mRightSlopEdge = metrics.widthPixels - mEdgeSlop;
-                mBottomSlopEdge = metrics.heightPixels - mEdgeSlop;
-
-                // Be paranoid in case we missed an event
-                reset();
-
-                mPrevEvent = MotionEvent.obtain(event);
-                mTimeDelta = 0;
-
-                setContext(event);
-
-                // Check if we have a sloppy gesture. If so, delay
-                // the beginning of the gesture until we're sure that's
-                // what the user wanted. Sloppy gestures can happen if the
-                // edge of the user's hand is touching the screen, for example.
-                final float edgeSlop = mEdgeSlop;
-                final float rightSlop = mRightSlopEdge;
-                final float bottomSlop = mBottomSlopEdge;
-                final float x0 = event.getRawX();
-                final float y0 = event.getRawY();
-                final float x1 = getRawX(event, 1, rect);
-                final float y1 = getRawY(event, 1, rect);
-
-                boolean p0sloppy = x0 < edgeSlop || y0 < edgeSlop || x0 > rightSlop
-                        || y0 > bottomSlop;
-                boolean p1sloppy = x1 < edgeSlop || y1 < edgeSlop || x1 > rightSlop
-                        || y1 > bottomSlop;
-
-                if (p0sloppy && p1sloppy) {
-                    mFocusX = -1;
-                    mFocusY = -1;
-                    mSloppyGesture = true;
-                } else if (p0sloppy) {
-                    mFocusX = event.getX(1);
-                    mFocusY = event.getY(1);
-                    mSloppyGesture = true;
-                } else if (p1sloppy) {
-                    mFocusX = event.getX(0);
-                    mFocusY = event.getY(0);
-                    mSloppyGesture = true;
-                } else {
-                    mGestureInProgress = mListener.onScaleBegin(this);
-                }
-            }
+                    // We have a new multi-finger gesture
+
+                    // as orientation can change, query the metrics in touch
+                    // down
+                    DisplayMetrics metrics =
+                            mView.getContext().getResources().getDisplayMetrics();
+                    mRightSlopEdge = metrics.widthPixels - mEdgeSlop;
+                    mBottomSlopEdge = metrics.heightPixels - mEdgeSlop;
+
+                    // Be paranoid in case we missed an event
+                    reset();
+
+                    setContext(event, -1);
+                    rebase();
+                    mTimeDelta = 0;
+
+                    // Check if we have a sloppy gesture. If so, delay
+                    // the beginning of the gesture until we're sure that's
+                    // what the user wanted. Sloppy gestures can happen if the
+                    // edge of the user's hand is touching the screen, for
+                    // example.
+                    if (isSloppy()) {
+                        mSloppyGesture = true;
+                    } else {
+                        beginGesture();
+                    }
                     break;
+                }
 
                 case MotionEvent.ACTION_MOVE:
                     if (mSloppyGesture) {
                         // Initiate sloppy gestures if we've moved outside of
                         // the slop area.
-                        final float edgeSlop = mEdgeSlop;
-                        final float rightSlop = mRightSlopEdge;
-                        final float bottomSlop = mBottomSlopEdge;
-                        final float x0 = event.getRawX();
-                        final float y0 = event.getRawY();
-                        final float x1 = getRawX(event, 1, rect);
-                        final float y1 = getRawY(event, 1, rect);
-
-                        boolean p0sloppy = x0 < edgeSlop || y0 < edgeSlop || x0 > rightSlop
-                                || y0 > bottomSlop;
-                        boolean p1sloppy = x1 < edgeSlop || y1 < edgeSlop || x1 > rightSlop
-                                || y1 > bottomSlop;
-
-                        if (p0sloppy && p1sloppy) {
-                            mFocusX = -1;
-                            mFocusY = -1;
-                        } else if (p0sloppy) {
-                            mFocusX = event.getX(1);
-                            mFocusY = event.getY(1);
-                        } else if (p1sloppy) {
-                            mFocusX = event.getX(0);
-                            mFocusY = event.getY(0);
-                        } else {
+                        setContext(event, -1);
+                        if (!isSloppy()) {
                             mSloppyGesture = false;
-                            mGestureInProgress = mListener.onScaleBegin(this);
+                            rebase();
+                            beginGesture();
                         }
                     }
                     break;
 
                 case MotionEvent.ACTION_POINTER_UP:
                     if (mSloppyGesture) {
-                        // Set focus point to the remaining finger
-                        int id =
-                                (
-                                        ((action & MotionEvent.ACTION_POINTER_ID_MASK)
-                                        >> MotionEvent.ACTION_POINTER_ID_SHIFT) == 0) ? 1 : 0;
-                        mFocusX = event.getX(id);
-                        mFocusY = event.getY(id);
+                        setContext(event, upIndex);
+                        if (mCurrCount < 2) {
+                            // Set focus point to the remaining finger
+                            mSloppyGesture = false;
+                        } else if (!isSloppy()) {
+                            mSloppyGesture = false;
+                            rebase();
+                            beginGesture();
+                        }
                     }
                     break;
             }
         } else {
             // Transform gesture in progress - attempt to handle it
-            switch (action & MotionEvent.ACTION_MASK) {
-                case MotionEvent.ACTION_POINTER_UP:
-                    // Gesture ended
-                    setContext(event);
-
-                    // Set focus point to the remaining finger
-                    int id = (((action & MotionEvent.ACTION_POINTER_ID_MASK)
-                            >> MotionEvent.ACTION_POINTER_ID_SHIFT) == 0) ? 1 : 0;
-                    mFocusX = event.getX(id);
-                    mFocusY = event.getY(id);
+            switch (actionMasked) {
+                case MotionEvent.ACTION_POINTER_DOWN:
+                    // Another finger joins the gesture
+                    setContext(event, -1);
+                    rebase();
+                    break;
 
-                    if (!mSloppyGesture) {
-                        mListener.onScaleEnd(this);
+                case MotionEvent.ACTION_POINTER_UP:
+                    setContext(event, upIndex);
+                    if (mCurrCount >= 2) {
+                        // The other fingers go on with the gesture
+                        rebase();
+                        break;
                     }
 
+                    // Gesture ended, the focus point is the remaining finger
+                    mListener.onScaleEnd(this);
                     reset();
                     break;
 
                 case MotionEvent.ACTION_CANCEL:
-                    if (!mSloppyGesture) {
-                        mListener.onScaleEnd(this);
-                    }
-
+                    mListener.onScaleEnd(this);
                     reset();
                     break;
 
                 case MotionEvent.ACTION_MOVE:
-                    setContext(event);
+                    setContext(event, -1);
+                    addHistory();
+                    checkSwipe();
 
                     // Only accept the event if our relative pressure is within
                     // a certain limit - this can help filter shaky data as a
@@ -230,8 +281,7 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
                         final boolean updatePrevious = mListener.onScale(this);
 
                         if (updatePrevious) {
-                            mPrevEvent.recycle();
-                            mPrevEvent = MotionEvent.obtain(event);
+                            accept();
                         }
                     }
                     break;
@@ -241,75 +291,213 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
     }
 
     /**
-     * MotionEvent has no getRawX(int) method; simulate it pending future API
-     * approval.
+     * Starts the gesture with the current pointers.
+     */
+    private void beginGesture() {
+        mGestureInProgress = mListener.onScaleBegin(this);
+    }
+
+    /**
+     * Returns {@code true} if fewer than two pointers are away from the edges
+     * of the screen, and sets the focus point to the pointers which are, or
+     * to -1 if none is.
      */
-    private static float getRawX(
-            MotionEvent event, int pointerIndex, Rect viewRect) {
-        return event.getX(pointerIndex) + viewRect.left;
+    private boolean isSloppy() {
+        final float edgeSlop = mEdgeSlop;
+        final float rightSlop = mRightSlopEdge;
+        final float bottomSlop = mBottomSlopEdge;
+        final float left = mViewRect.left;
+        final float top = mViewRect.top;
+        int count = 0;
+        float sumX = 0;
+        float sumY = 0;
+        for (int i = 0; i < mCurrCount; ++i) {
+            final float rawX = mCurrX[i] + left;
+            final float rawY = mCurrY[i] + top;
+            if (rawX < edgeSlop || rawY < edgeSlop || rawX > rightSlop || rawY > bottomSlop) {
+                continue;
+            }
+            ++count;
+            sumX += mCurrX[i];
+            sumY += mCurrY[i];
+        }
+        if (count >= 2) {
+            return false;
+        }
+        if (count == 0) {
+            mFocusX = -1;
+            mFocusY = -1;
+        } else {
+            mFocusX = sumX;
+            mFocusY = sumY;
+        }
+        return true;
     }
 
     /**
-     * MotionEvent has no getRawY(int) method; simulate it pending future API
-     * approval.
+     * Copies the pointers of an event and computes the focal point and span.
+     * 
+     * @param curr the event.
+     * @param skipIndex index of a pointer going up, to leave out, or -1.
      */
-    private static float getRawY(
-            MotionEvent event, int pointerIndex, Rect viewRect) {
-        return event.getY(pointerIndex) + viewRect.top;
+    private void setContext(MotionEvent curr, int skipIndex) {
+        final int pointerCount = curr.getPointerCount();
+        int count = 0;
+        float sumX = 0;
+        float sumY = 0;
+        float pressure = 0;
+        for (int i = 0; i < pointerCount && count < MAX_POINTERS; ++i) {
+            if (i == skipIndex) {
+                continue;
+            }
+            final float x = curr.getX(i);
+            final float y = curr.getY(i);
+            mCurrIds[count] = curr.getPointerId(i);
+            mCurrX[count] = x;
+            mCurrY[count] = y;
+            sumX += x;
+            sumY += y;
+            pressure += curr.getPressure(i);
+            ++count;
+        }
+        mCurrCount = count;
+        mCurrTime = curr.getEventTime();
+        mCurrPressure = pressure;
+        if (count > 0) {
+            mFocusX = sumX / count;
+            mFocusY = sumY / count;
+        }
+        mCurrLen = computeSpan(mCurrX, mCurrY, count, mFocusX, mFocusY);
+        mScaleFactor = -1;
+        mRotation = Float.NaN;
+        mTimeDelta = mCurrTime - mPrevTime;
     }
 
-    private void setContext(MotionEvent curr) {
-        if (mCurrEvent != null) {
-            mCurrEvent.recycle();
+    /**
+     * Returns twice the average distance of the pointers to the focal point.
+     */
+    private static float computeSpan(float[] xs, float[] ys, int count, float focusX,
+            float focusY) {
+        if (count < 2) {
+            return 0;
         }
-        mCurrEvent = MotionEvent.obtain(curr);
+        float sum = 0;
+        for (int i = 0; i < count; ++i) {
+            final float dx = xs[i] - focusX;
+            final float dy = ys[i] - focusY;
+            sum += FloatMath.sqrt(dx * dx + dy * dy);
+        }
+        return 2 * sum / count;
+    }
 
-        mCurrLen = -1;
-        mPrevLen = -1;
+    /**
+     * Makes the current event the previous accepted event.
+     */
+    private void accept() {
+        final int count = mCurrCount;
+        System.arraycopy(mCurrIds, 0, mPrevIds, 0, count);
+        System.arraycopy(mCurrX, 0, mPrevX, 0, count);
+        System.arraycopy(mCurrY, 0, mPrevY, 0, count);
+        mPrevCount = count;
+        mPrevTime = mCurrTime;
+        mPrevFocusX = mFocusX;
+        mPrevFocusY = mFocusY;
+        mPrevLen = mCurrLen;
+        mPrevPressure = mCurrPressure;
+    }
+
+    /**
+     * Restarts the measures from the current pointers, when pointers were
+     * added or removed.
+     */
+    private void rebase() {
+        accept();
         mScaleFactor = -1;
+        mRotation = Float.NaN;
+        mHistoryCount = 0;
+        mVelocityX = 0;
+        mVelocityY = 0;
+        addHistory();
+        mSwipeTracking = false;
+    }
 
-        final MotionEvent prev = mPrevEvent;
-
-        final float px0 = prev.getX(0);
-        final float py0 = prev.getY(0);
-        final float px1 = prev.getX(1);
-        final float py1 = prev.getY(1);
-        final float cx0 = curr.getX(0);
-        final float cy0 = curr.getY(0);
-        final float cx1 = curr.getX(1);
-        final float cy1 = curr.getY(1);
-
-        final float pvx = px1 - px0;
-        final float pvy = py1 - py0;
-        final float cvx = cx1 - cx0;
-        final float cvy = cy1 - cy0;
-        mPrevFingerDiffX = pvx;
-        mPrevFingerDiffY = pvy;
-        mCurrFingerDiffX = cvx;
-        mCurrFingerDiffY = cvy;
-
-        mFocusX = cx0 + cvx * 0.5f;
-        mFocusY = cy0 + cvy * 0.5f;
-        mTimeDelta = curr.getEventTime() - prev.getEventTime();
-        mCurrPressure = curr.getPressure(0) + curr.getPressure(1);
-        mPrevPressure = prev.getPressure(0) + prev.getPressure(1);
+    /**
+     * Adds the current focal point to the history and updates the velocity.
+     */
+    private void addHistory() {
+        mHistoryHead = (mHistoryHead + 1) % HISTORY_SIZE;
+        mHistoryTime[mHistoryHead] = mCurrTime;
+        mHistoryX[mHistoryHead] = mFocusX;
+        mHistoryY[mHistoryHead] = mFocusY;
+        if (mHistoryCount < HISTORY_SIZE) {
+            ++mHistoryCount;
+        }
+
+        // Finds the oldest sample inside the window.
+        int oldest = mHistoryHead;
+        for (int i = 1; i < mHistoryCount; ++i) {
+            final int index = (mHistoryHead - i + HISTORY_SIZE) % HISTORY_SIZE;
+            if (mCurrTime - mHistoryTime[index] > VELOCITY_WINDOW_MS) {
+                break;
+            }
+            oldest = index;
+        }
+        final long elapsed = mCurrTime - mHistoryTime[oldest];
+        if (elapsed <= 0) {
+            return;
+        }
+        mVelocityX = (mFocusX - mHistoryX[oldest]) * 1000 / elapsed;
+        mVelocityY = (mFocusY - mHistoryY[oldest]) * 1000 / elapsed;
     }
 
-    private void reset() {
-        if (mPrevEvent != null) {
-            mPrevEvent.recycle();
-            mPrevEvent = null;
+    /**
+     * Reports a swipe once enough fingers have traveled far and fast enough
+     * together, without pinching.
+     */
+    private void checkSwipe() {
+        if (mSwipeListener == null || mSwipeDone || mCurrCount < mSwipePointers) {
+            return;
+        }
+        if (!mSwipeTracking) {
+            mSwipeTracking = true;
+            mSwipeStartX = mFocusX;
+            mSwipeStartY = mFocusY;
+            mSwipeStartLen = mCurrLen;
+            return;
+        }
+        final float dx = mFocusX - mSwipeStartX;
+        final float dy = mFocusY - mSwipeStartY;
+        if (dx * dx + dy * dy < mSwipeMinDistance * mSwipeMinDistance) {
+            return;
         }
-        if (mCurrEvent != null) {
-            mCurrEvent.recycle();
-            mCurrEvent = null;
+        final float velocity2 = mVelocityX * mVelocityX + mVelocityY * mVelocityY;
+        if (velocity2 < mSwipeMinVelocity * mSwipeMinVelocity) {
+            return;
         }
+        final float scale = mCurrLen / mSwipeStartLen;
+        if (scale > SWIPE_MAX_SCALE || scale < 1 / SWIPE_MAX_SCALE) {
+            // A pinch, not a swipe.
+            mSwipeDone = true;
+            return;
+        }
+        mSwipeDone = true;
+        mSwipeListener.onSwipe(this, dx, dy);
+    }
+
+    private void reset() {
+        mCurrCount = 0;
+        mPrevCount = 0;
+        mHistoryCount = 0;
+        mVelocityX = 0;
+        mVelocityY = 0;
+        mSwipeTracking = false;
+        mSwipeDone = false;
         mSloppyGesture = false;
         mGestureInProgress = false;
     }
 
     /**
-     * Returns {@code true} if a two-finger scale gesture is in progress.
+     * Returns {@code true} if a scale gesture is in progress.
      * 
      * @return {@code true} if a scale gesture is in progress, {@code false}
      *         otherwise.
@@ -320,11 +508,10 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
 
     /**
      * Get the X coordinate of the current gesture's focal point. If a gesture
-     * is in progress, the focal point is directly between the two pointers
-     * forming the gesture. If a gesture is ending, the focal point is the
-     * location of the remaining pointer on the screen. If
-     * {@link #isInProgress()} would return false, the result of this function
-     * is undefined.
+     * is in progress, the focal point is the centroid of the pointers forming
+     * the gesture. If a gesture is ending, the focal point is the location of
+     * the remaining pointer on the screen. If {@link #isInProgress()} would
+     * return false, the result of this function is undefined.
      * 
      * @return X coordinate of the focal point in pixels.
      */
@@ -334,11 +521,10 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
 
     /**
      * Get the Y coordinate of the current gesture's focal point. If a gesture
-     * is in progress, the focal point is directly between the two pointers
-     * forming the gesture. If a gesture is ending, the focal point is the
-     * location of the remaining pointer on the screen. If
-     * {@link #isInProgress()} would return false, the result of this function
-     * is undefined.
+     * is in progress, the focal point is the centroid of the pointers forming
+     * the gesture. If a gesture is ending, the focal point is the location of
+     * the remaining pointer on the screen. If {@link #isInProgress()} would
+     * return false, the result of this function is undefined.
      * 
      * @return Y coordinate of the focal point in pixels.
      */
@@ -347,32 +533,22 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
     }
 
     /**
-     * Return the current distance between the two pointers forming the gesture
-     * in progress.
+     * Return the current span of the pointers forming the gesture in
+     * progress: the distance between them if there are two.
      * 
-     * @return Distance between pointers in pixels.
+     * @return Span of the pointers in pixels.
      */
     public float getCurrentSpan() {
-        if (mCurrLen == -1) {
-            final float cvx = mCurrFingerDiffX;
-            final float cvy = mCurrFingerDiffY;
-            mCurrLen = FloatMath.sqrt(cvx * cvx + cvy * cvy);
-        }
         return mCurrLen;
     }
 
     /**
-     * Return the previous distance between the two pointers forming the gesture
-     * in progress.
+     * Return the previous span of the pointers forming the gesture in
+     * progress: the distance between them if there are two.
      * 
-     * @return Previous distance between pointers in pixels.
+     * @return Previous span of the pointers in pixels.
      */
     public float getPreviousSpan() {
-        if (mPrevLen == -1) {
-            final float pvx = mPrevFingerDiffX;
-            final float pvy = mPrevFingerDiffY;
-            mPrevLen = FloatMath.sqrt(pvx * pvx + pvy * pvy);
-        }
         return mPrevLen;
     }
 
@@ -390,6 +566,61 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
         return mScaleFactor;
     }
 
+    /**
+     * Return the rotation of the pointers around the focal point from the
+     * previous scale event to the current event, averaged over the pointers
+     * present in both.
+     * 
+     * @return Rotation in degrees, positive clockwise.
+     */
+    public float getRotation() {
+        if (Float.isNaN(mRotation)) {
+            float sum = 0;
+            int count = 0;
+            for (int i = 0; i < mCurrCount; ++i) {
+                final int prev = findPreviousPointer(mCurrIds[i]);
+                if (prev < 0) {
+                    continue;
+                }
+                double angle = Math.atan2(mCurrY[i] - mFocusY, mCurrX[i] - mFocusX)
+                        - Math.atan2(mPrevY[prev] - mPrevFocusY, mPrevX[prev] - mPrevFocusX);
+                if (angle > Math.PI) {
+                    angle -= 2 * Math.PI;
+                } else if (angle < -Math.PI) {
+                    angle += 2 * Math.PI;
+                }
+                sum += angle;
+                ++count;
+            }
+            mRotation = count == 0 ? 0 : sum / count * RADIANS_TO_DEGREES;
+        }
+        return mRotation;
+    }
+
+    /**
+     * Returns the index of a pointer in the previous accepted event, or -1.
+     */
+    private int findPreviousPointer(int id) {
+        for (int i = 0; i < mPrevCount; ++i) {
+            if (mPrevIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getPointerCount() {
+        return mCurrCount;
+    }
+
+    public float getFocusVelocityX() {
+        return mVelocityX;
+    }
+
+    public float getFocusVelocityY() {
+        return mVelocityY;
+    }
+
     /**
      * Return the time difference in milliseconds between the previous accepted
      * scaling event and the current scaling event.
@@ -406,6 +637,6 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
      * @return Current event time in milliseconds.
      */
     public long getEventTime() {
-        return mCurrEvent.getEventTime();
+        return mCurrTime;
     }
 }
@@ -26,6 +26,13 @@ import com.example.google.tv.anymotelibrary.client.AnymoteSender;
  */
 public enum Action {
 
+    BACK {
+    @Override
+        public void execute(AnymoteSender anymoteProxy) {
+            anymoteProxy.sendKeyPress(Code.KEYCODE_BACK);
+        }
+    },
+
     BACKSPACE {
     @Override
         public void execute(AnymoteSender anymoteProxy) {
@@ -173,6 +180,13 @@ public enum Action {
         }
     },
 
+    HOME {
+    @Override
+        public void execute(AnymoteSender anymoteProxy) {
+            anymoteProxy.sendKeyPress(Code.KEYCODE_HOME);
+        }
+    },
+
     NAVBAR {
     @Override
         public void execute(AnymoteSender anymoteProxy) {
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.util;
+
+import android.content.res.Resources;
+import android.view.KeyEvent;
+
+import com.google.anymote.Key.Code;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translation tables between Android key codes and Anymote key codes.
+ * <p>
+ * Both directions are dense arrays: Android key codes index the forward
+ * table, and {@link Code#ordinal()} indexes the reverse table. The default
+ * profile pairs the constants of {@link KeyEvent} and {@link Code} having the
+ * same name, plus a few aliases. Profiles can override it with a compact
+ * binary description, see {@link #load(InputStream)}.
+ */
+public final class KeyProfile {
+
+    /**
+     * Magic number at the start of a binary profile: "AKP" and the format
+     * version.
+     */
+    private static final int MAGIC = ('A' << 24) | ('K' << 16) | ('P' << 8) | 1;
+
+    /**
+     * Code number marking an Android key as not translated.
+     */
+    private static final int UNMAPPED = 0xffff;
+
+    private static final Code[] CODES = Code.values();
+
+    private static KeyProfile defaultProfile;
+
+    /**
+     * Anymote code of each Android key code, or {@code null}.
+     */
+    private final Code[] toCode;
+
+    /**
+     * Android key code of each Anymote code, indexed by ordinal.
+     */
+    private final int[] toKeyEvent;
+
+    private KeyProfile(Code[] toCode, int[] toKeyEvent) {
+        this.toCode = toCode;
+        this.toKeyEvent = toKeyEvent;
+    }
+
+    /**
+     * @return the default profile.
+     */
+    public static synchronized KeyProfile getDefault() {
+        if (defaultProfile == null) {
+            defaultProfile = createDefault();
+        }
+        return defaultProfile;
+    }
+
+    /**
+     * Loads a profile from a binary description, overriding the default
+     * profile.
+     * <p>
+     * The description starts with the bytes {@code 'A' 'K' 'P' 1}, followed by
+     * the number of entries as an unsigned 16-bit integer. Each entry is an
+     * Android key code and the number of an Anymote {@link Code}, both
+     * unsigned 16-bit integers; the code number {@code 0xffff} removes the
+     * translation of the Android key. Integers are big-endian.
+     *
+     * @param in the binary description, closed when done.
+     * @return the profile.
+     * @throws IOException if the description cannot be read or is invalid.
+     */
+    public static KeyProfile load(InputStream in) throws IOException {
+        KeyProfile base = getDefault();
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a key profile");
+            }
+            int count = data.readUnsignedShort();
+            int[] keyCodes = new int[count];
+            Code[] codes = new Code[count];
+            int size = base.toCode.length;
+            for (int i = 0; i < count; ++i) {
+                keyCodes[i] = data.readUnsignedShort();
+                int number = data.readUnsignedShort();
+                if (number != UNMAPPED) {
+                    codes[i] = Code.valueOf(number);
+                    if (codes[i] == null) {
+                        throw new IOException("Unknown Anymote code " + number);
+                    }
+                }
+                size = Math.max(size, keyCodes[i] + 1);
+            }
+
+            Code[] toCode = new Code[size];
+            System.arraycopy(base.toCode, 0, toCode, 0, base.toCode.length);
+            for (int i = 0; i < count; ++i) {
+                toCode[keyCodes[i]] = codes[i];
+            }
+            return new KeyProfile(toCode, buildReverse(toCode, createReverseAliases()));
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Loads a profile from a raw resource.
+     *
+     * @param resources the resources.
+     * @param id identifier of the raw resource.
+     * @return the profile.
+     * @throws IOException if the resource is not a valid profile.
+     * @see #load(InputStream)
+     */
+    public static KeyProfile load(Resources resources, int id) throws IOException {
+        return load(resources.openRawResource(id));
+    }
+
+    /**
+     * @param keyCode Android key code.
+     * @return the Anymote code, or {@code null} if the key is not translated.
+     */
+    public Code toCode(int keyCode) {
+        return keyCode >= 0 && keyCode < toCode.length ? toCode[keyCode] : null;
+    }
+
+    /**
+     * @param code Anymote code.
+     * @return the Android key code, or {@link KeyEvent#KEYCODE_UNKNOWN}.
+     */
+    public int toKeyEvent(Code code) {
+        return toKeyEvent[code.ordinal()];
+    }
+
+    private static KeyProfile createDefault() {
+        Map<String, Code> codesByName = new HashMap<String, Code>();
+        for (Code code : CODES) {
+            codesByName.put(code.name(), code);
+        }
+
+        Map<Integer, Code> pairs = new HashMap<Integer, Code>();
+        int maxKeyCode = 0;
+        for (Field field : KeyEvent.class.getFields()) {
+            if (!field.getName().startsWith("KEYCODE_") || field.getType() != int.class
+                    || !Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            Code code = codesByName.get(field.getName());
+            if (code == null) {
+                continue;
+            }
+            try {
+                int keyCode = field.getInt(null);
+                pairs.put(keyCode, code);
+                maxKeyCode = Math.max(maxKeyCode, keyCode);
+            } catch (IllegalAccessException e) {
+                // Public field: not reached.
+            }
+        }
+
+        Code[] toCode = new Code[maxKeyCode + 1];
+        for (Map.Entry<Integer, Code> pair : pairs.entrySet()) {
+            toCode[pair.getKey()] = pair.getValue();
+        }
+        toCode[KeyEvent.KEYCODE_UNKNOWN] = null;
+
+        // Keys with different names on both sides, when the platform has them.
+        toCode = alias(toCode, "KEYCODE_BREAK", Code.KEYCODE_PAUSE);
+        toCode = alias(toCode, "KEYCODE_SYSRQ", Code.KEYCODE_PRINT_SCREEN);
+        toCode = alias(toCode, "KEYCODE_MEDIA_EJECT", Code.KEYCODE_EJECT);
+        toCode = alias(toCode, "KEYCODE_MEDIA_PAUSE", Code.KEYCODE_MEDIA_PLAY_PAUSE);
+        toCode = alias(toCode, "KEYCODE_NUMPAD_ENTER", Code.KEYCODE_ENTER);
+        for (int i = 0; i <= 9; ++i) {
+            toCode = alias(toCode, "KEYCODE_NUMPAD_" + i, Code.valueOf("KEYCODE_" + i));
+        }
+
+        return new KeyProfile(toCode, buildReverse(toCode, createReverseAliases()));
+    }
+
+    /**
+     * Returns the Android keys of the Anymote codes no Android key translates
+     * to, indexed by ordinal.
+     */
+    private static int[] createReverseAliases() {
+        int[] aliases = new int[CODES.length];
+        aliases[Code.KEYCODE_MEDIA_SKIP_FORWARD.ordinal()] = KeyEvent.KEYCODE_MEDIA_NEXT;
+        aliases[Code.KEYCODE_MEDIA_SKIP_BACK.ordinal()] = KeyEvent.KEYCODE_MEDIA_PREVIOUS;
+        return aliases;
+    }
+
+    /**
+     * Translates an Android key, looked up by name, to an Anymote code.
+     */
+    private static Code[] alias(Code[] toCode, String keyName, Code code) {
+        int keyCode;
+        try {
+            keyCode = KeyEvent.class.getField(keyName).getInt(null);
+        } catch (NoSuchFieldException e) {
+            // Not available on this platform version.
+            return toCode;
+        } catch (IllegalAccessException e) {
+            return toCode;
+        }
+        if (keyCode >= toCode.length) {
+            Code[] grown = new Code[keyCode + 1];
+            System.arraycopy(toCode, 0, grown, 0, toCode.length);
+            toCode = grown;
+        }
+        if (toCode[keyCode] == null) {
+            toCode[keyCode] = code;
+        }
+        return toCode;
+    }
+
+    /**
+     * Builds the reverse table. Each Anymote code maps to the lowest Android
+     * key code translated to it, or to its fallback.
+     */
+    private static int[] buildReverse(Code[] toCode, int[] fallback) {
+        int[] toKeyEvent = new int[CODES.length];
+        for (int keyCode = toCode.length - 1; keyCode > 0; --keyCode) {
+            Code code = toCode[keyCode];
+            if (code != null) {
+                toKeyEvent[code.ordinal()] = keyCode;
+            }
+        }
+        for (int i = 0; i < toKeyEvent.length; ++i) {
+            if (toKeyEvent[i] == KeyEvent.KEYCODE_UNKNOWN) {
+                toKeyEvent[i] = fallback[i];
+            }
+        }
+        return toKeyEvent;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.google.anymote.Key.Action;
+import com.google.anymote.Key.Code;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the policies of {@link OutboundEventQueue} on a desktop JVM. It lives
+ * in the package of the queue, which is not public.
+ * <p>
+ * Usage: {@code OutboundEventQueueCheck}, with the classes of the Anymote
+ * library and its libraries on the class path. Exits with an error on the
+ * first failed check.
+ */
+public final class OutboundEventQueueCheck {
+
+    private static final long MAX_AGE_MS = 1000;
+
+    private OutboundEventQueueCheck() {
+    }
+
+    public static void main(String[] args) {
+        checkMovesCollapse();
+        checkScrollsKeepLatest();
+        checkStaleEvents();
+        checkPairsStayBounded();
+        checkHeldKeysAreReleased();
+        checkReleasesAlwaysAdmitted();
+        System.out.println("OutboundEventQueue: all checks passed");
+    }
+
+    private static void checkMovesCollapse() {
+        OutboundEventQueue queue = new OutboundEventQueue(8, MAX_AGE_MS);
+        queue.offer(AnymoteSender.MOUSEMOVE, 1, 2, null, 0);
+        queue.offer(AnymoteSender.MOUSEMOVE, 3, 4, null, 1);
+        queue.offer(AnymoteSender.MOUSEMOVE, -1, 0, null, 2);
+        List<String> sent = drain(queue, 2);
+        check(sent.size() == 1 && sent.get(0).equals("move 3,6"), "moves collapse: " + sent);
+        check(queue.getCollapsedCount() == 2, "moves collapse count");
+    }
+
+    private static void checkScrollsKeepLatest() {
+        OutboundEventQueue queue = new OutboundEventQueue(8, MAX_AGE_MS);
+        queue.offer(AnymoteSender.SCROLL, 0, 5, null, 0);
+        queue.offer(AnymoteSender.SCROLL, 0, -2, null, 1);
+        List<String> sent = drain(queue, 1);
+        check(sent.size() == 1 && sent.get(0).equals("scroll 0,-2"), "scrolls: " + sent);
+    }
+
+    private static void checkStaleEvents() {
+        OutboundEventQueue queue = new OutboundEventQueue(8, MAX_AGE_MS);
+        queue.offer(AnymoteSender.KEY, 0, 0, key(Code.KEYCODE_A, Action.DOWN), 0);
+        queue.offer(AnymoteSender.KEY, 0, 0, key(Code.KEYCODE_B, Action.UP), 0);
+        queue.offer(AnymoteSender.KEY, 0, 0, key(Code.KEYCODE_A, Action.UP), 0);
+        queue.offer(AnymoteSender.MOUSEMOVE, 1, 1, null, 0);
+        queue.offer(AnymoteSender.KEYPRESS, 0, 0, Code.KEYCODE_C, MAX_AGE_MS);
+        List<String> sent = drain(queue, MAX_AGE_MS + 1);
+        // The stale press goes with its release; the lone release is kept.
+        check(sent.equals(list("KEYCODE_B UP", "keypress KEYCODE_C")), "stale: " + sent);
+        check(queue.getStaleCount() == 2, "stale count " + queue.getStaleCount());
+    }
+
+    private static void checkPairsStayBounded() {
+        OutboundEventQueue queue = new OutboundEventQueue(4, MAX_AGE_MS);
+        Code[] codes = {
+                Code.KEYCODE_A, Code.KEYCODE_B, Code.KEYCODE_C };
+        for (int i = 0; i < 300; ++i) {
+            Code code = codes[i % codes.length];
+            queue.offer(AnymoteSender.KEY, 0, 0, key(code, Action.DOWN), 0);
+            queue.offer(AnymoteSender.KEY, 0, 0, key(code, Action.UP), 0);
+            check(queue.getDepth() <= 4, "depth " + queue.getDepth());
+        }
+        checkNoKeyLeftDown(drain(queue, 0), "bounded pairs");
+    }
+
+    private static void checkHeldKeysAreReleased() {
+        OutboundEventQueue queue = new OutboundEventQueue(4, MAX_AGE_MS);
+        Code[] codes = {
+                Code.KEYCODE_A, Code.KEYCODE_B, Code.KEYCODE_C, Code.KEYCODE_D };
+        for (Code code : codes) {
+            queue.offer(AnymoteSender.KEY, 0, 0, key(code, Action.DOWN), 0);
+        }
+        for (Code code : codes) {
+            queue.offer(AnymoteSender.KEY, 0, 0, key(code, Action.UP), 0);
+            check(queue.getDepth() <= 4, "depth " + queue.getDepth());
+        }
+        checkNoKeyLeftDown(drain(queue, 0), "held keys");
+    }
+
+    private static void checkReleasesAlwaysAdmitted() {
+        // The presses were delivered before the session dropped.
+        OutboundEventQueue queue = new OutboundEventQueue(2, MAX_AGE_MS);
+        Code[] codes = {
+                Code.KEYCODE_A, Code.KEYCODE_B, Code.KEYCODE_C };
+        for (Code code : codes) {
+            check(queue.offer(AnymoteSender.KEY, 0, 0, key(code, Action.UP), 0),
+                    "release of " + code + " admitted");
+        }
+        check(queue.offer(AnymoteSender.KEY, 0, 0, key(Code.KEYCODE_C, Action.UP), 0),
+                "repeated release merged");
+        check(queue.getDepth() == 3, "one release per key, depth " + queue.getDepth());
+        // A press is dropped rather than admitted past the capacity.
+        check(!queue.offer(AnymoteSender.KEY, 0, 0, key(Code.KEYCODE_D, Action.DOWN), 0),
+                "press dropped");
+        List<String> sent = drain(queue, 0);
+        check(sent.equals(list("KEYCODE_A UP", "KEYCODE_B UP", "KEYCODE_C UP")),
+                "releases: " + sent);
+    }
+
+    private static void checkNoKeyLeftDown(List<String> sent, String name) {
+        Map<String, Boolean> down = new HashMap<String, Boolean>();
+        for (String event : sent) {
+            String[] parts = event.split(" ");
+            down.put(parts[0], "DOWN".equals(parts[1]));
+        }
+        check(!down.containsValue(Boolean.TRUE), name + ": key left down in " + sent);
+    }
+
+    private static List<String> drain(OutboundEventQueue queue, long now) {
+        final List<String> sent = new ArrayList<String>();
+        queue.drainTo(new OutboundEventQueue.EventSink() {
+            public void onEvent(int what, int arg1, int arg2, Object obj) {
+                switch (what) {
+                    case AnymoteSender.KEY:
+                        AnymoteSender.AnymoteKeyEvent event = (AnymoteSender.AnymoteKeyEvent) obj;
+                        sent.add(event.code + " " + event.action);
+                        break;
+                    case AnymoteSender.KEYPRESS:
+                        sent.add("keypress " + obj);
+                        break;
+                    case AnymoteSender.MOUSEMOVE:
+                        sent.add("move " + arg1 + "," + arg2);
+                        break;
+                    case AnymoteSender.SCROLL:
+                        sent.add("scroll " + arg1 + "," + arg2);
+                        break;
+                    default:
+                        sent.add("event " + what);
+                        break;
+                }
+            }
+        }, now);
+        return sent;
+    }
+
+    private static AnymoteSender.AnymoteKeyEvent key(Code code, Action action) {
+        return new AnymoteSender.AnymoteKeyEvent(code, action);
+    }
+
+    private static List<String> list(String... items) {
+        List<String> list = new ArrayList<String>();
+        for (String item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
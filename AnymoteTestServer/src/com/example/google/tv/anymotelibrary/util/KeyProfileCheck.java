@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.util;
+
+import android.view.KeyEvent;
+
+import com.google.anymote.Key.Code;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Checks the translation tables of {@link KeyProfile} and the parsing of
+ * binary profiles on a desktop JVM.
+ * <p>
+ * Usage: {@code KeyProfileCheck}, with the classes of the Anymote library,
+ * its libraries and the Android platform library on the class path; only the
+ * key code constants of the platform are used. Exits with an error on the
+ * first failed check.
+ */
+public final class KeyProfileCheck {
+
+    private static final int MAGIC = ('A' << 24) | ('K' << 16) | ('P' << 8) | 1;
+
+    private static final int UNMAPPED = 0xffff;
+
+    private KeyProfileCheck() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        checkDefaultProfile();
+        checkOverrides();
+        checkLargeKeyCode();
+        checkInvalidProfiles();
+        System.out.println("KeyProfile: all checks passed");
+    }
+
+    private static void checkDefaultProfile() {
+        KeyProfile profile = KeyProfile.getDefault();
+        check(profile.toCode(KeyEvent.KEYCODE_A) == Code.KEYCODE_A, "default A");
+        check(profile.toKeyEvent(Code.KEYCODE_A) == KeyEvent.KEYCODE_A, "default reverse A");
+        check(profile.toCode(-1) == null, "negative key code");
+        check(profile.toCode(Integer.MAX_VALUE) == null, "key code out of the table");
+    }
+
+    private static void checkOverrides() throws IOException {
+        KeyProfile profile = load(profile(
+                KeyEvent.KEYCODE_A, Code.KEYCODE_B.getNumber(),
+                KeyEvent.KEYCODE_C, UNMAPPED));
+        check(profile.toCode(KeyEvent.KEYCODE_A) == Code.KEYCODE_B, "A remapped");
+        check(profile.toCode(KeyEvent.KEYCODE_C) == null, "C unmapped");
+        check(profile.toCode(KeyEvent.KEYCODE_D) == Code.KEYCODE_D, "D unchanged");
+        check(profile.toKeyEvent(Code.KEYCODE_C) == KeyEvent.KEYCODE_UNKNOWN,
+                "reverse of unmapped C");
+        // The default profile is left alone.
+        check(KeyProfile.getDefault().toCode(KeyEvent.KEYCODE_A) == Code.KEYCODE_A,
+                "default untouched");
+    }
+
+    private static void checkLargeKeyCode() throws IOException {
+        int keyCode = 1000;
+        KeyProfile profile = load(profile(keyCode, Code.KEYCODE_E.getNumber()));
+        check(profile.toCode(keyCode) == Code.KEYCODE_E, "table grown to key code " + keyCode);
+        check(profile.toCode(KeyEvent.KEYCODE_A) == Code.KEYCODE_A, "defaults kept");
+    }
+
+    private static void checkInvalidProfiles() {
+        byte[] valid = profile(KeyEvent.KEYCODE_A, Code.KEYCODE_B.getNumber());
+        byte[] badMagic = valid.clone();
+        badMagic[0] = 'X';
+        checkRejected(badMagic, "bad magic");
+        checkRejected(profile(KeyEvent.KEYCODE_A, 0xfffe), "unknown Anymote code");
+        byte[] truncated = new byte[valid.length - 1];
+        System.arraycopy(valid, 0, truncated, 0, truncated.length);
+        checkRejected(truncated, "truncated profile");
+    }
+
+    private static KeyProfile load(byte[] description) throws IOException {
+        return KeyProfile.load(new ByteArrayInputStream(description));
+    }
+
+    private static void checkRejected(byte[] description, String name) {
+        try {
+            load(description);
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError(name + " accepted");
+    }
+
+    /**
+     * Builds a binary profile from pairs of Android key codes and Anymote code
+     * numbers.
+     */
+    private static byte[] profile(int... pairs) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(pairs.length / 2);
+            for (int value : pairs) {
+                out.writeShort(value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotetestserver;
+
+import com.google.anymote.Key.Action;
+import com.google.anymote.Key.Code;
+import com.google.anymote.Messages.RemoteMessage;
+import com.google.anymote.common.ConnectInfo;
+import com.google.anymote.common.ErrorListener;
+import com.google.anymote.common.RemoteWireAdapter;
+import com.google.anymote.server.RequestReceiver;
+import com.google.anymote.server.ServerMessageAdapter;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * Serves Anymote sessions over TLS, the way a Google TV does. Messages go
+ * through the Anymote library server adapter, so they are decoded and
+ * acknowledged exactly as on a TV, with faults injected in between.
+ */
+public class AnymoteServer implements Runnable {
+
+    private final SSLServerSocket serverSocket;
+    private final FaultInjector faults;
+    private final boolean verbose;
+    private volatile boolean stopped;
+
+    /**
+     * Number of messages received, dropped and handled, over all sessions.
+     */
+    private final AtomicInteger receivedCount = new AtomicInteger();
+    private final AtomicInteger droppedCount = new AtomicInteger();
+    private final AtomicInteger handledCount = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param port TCP port to listen to.
+     * @param identity identity of the server, which decides which clients are
+     *            accepted.
+     * @param faults faults to inject in the sessions.
+     * @param verbose whether every event is printed.
+     * @throws GeneralSecurityException if the TLS socket cannot be created.
+     * @throws IOException if the port cannot be bound.
+     */
+    public AnymoteServer(int port, ServerIdentity identity, FaultInjector faults, boolean verbose)
+            throws GeneralSecurityException, IOException {
+        this.serverSocket = (SSLServerSocket) identity.createAnymoteContext()
+                .getServerSocketFactory().createServerSocket(port);
+        this.serverSocket.setNeedClientAuth(true);
+        this.faults = faults;
+        this.verbose = verbose;
+    }
+
+    public void run() {
+        while (!stopped) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                new Thread(new Session(socket), "AnymoteSession").start();
+            } catch (IOException e) {
+                if (!stopped) {
+                    System.err.println("Anymote server failed: " + e);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting sessions.
+     */
+    public void stop() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    /**
+     * @return a summary of the messages received by all sessions.
+     */
+    public String getStats() {
+        return "received=" + receivedCount.get() + " dropped=" + droppedCount.get() + " handled="
+                + handledCount.get();
+    }
+
+    /**
+     * A single client session. The wire adapter is driven from this thread so
+     * that faults can be injected before each message is handed to the server
+     * adapter.
+     */
+    private final class Session
+            implements Runnable, RemoteWireAdapter.IMessageListener, RequestReceiver {
+        private final Socket socket;
+        private ServerMessageAdapter serverAdapter;
+        private int messageCount;
+        private boolean closed;
+
+        Session(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            String peer = String.valueOf(socket.getRemoteSocketAddress());
+            System.out.println("Session opened: " + peer);
+            try {
+                RemoteWireAdapter wireAdapter = new RemoteWireAdapter(socket.getInputStream(),
+                        socket.getOutputStream(), new ErrorListener() {
+                            public void onIoError(String message, Throwable exception) {
+                                if (!closed) {
+                                    System.err.println(message + ": " + exception);
+                                }
+                            }
+                        });
+                serverAdapter = new ServerMessageAdapter(this, wireAdapter);
+                wireAdapter.setMessageListener(this);
+                while (!closed && wireAdapter.getNextRemoteMessage()) {
+                    // Messages are handled by onMessage().
+                }
+                wireAdapter.stop();
+            } catch (IOException e) {
+                System.err.println("Session error: " + e);
+            } finally {
+                close();
+            }
+            System.out.println("Session closed: " + peer + " (" + getStats() + ")");
+        }
+
+        public void onMessage(RemoteMessage message) {
+            if (message == null) {
+                // End of stream.
+                close();
+                return;
+            }
+            receivedCount.incrementAndGet();
+            ++messageCount;
+            if (faults.shouldDisconnect(messageCount)) {
+                System.out.println("Injected disconnect after " + messageCount + " messages");
+                close();
+                return;
+            }
+            if (faults.shouldDrop()) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            faults.delay();
+            handledCount.incrementAndGet();
+            serverAdapter.onMessage(message);
+        }
+
+        private void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+
+        public void onConnect(ConnectInfo connectInfo) {
+            System.out.println("Connect: " + connectInfo);
+        }
+
+        public void onKeyEvent(Code keycode, Action action) {
+            if (verbose) {
+                System.out.println("Key: " + keycode + " " + action);
+            }
+        }
+
+        public void onMouseEvent(int xDelta, int yDelta) {
+            if (verbose) {
+                System.out.println("Mouse: " + xDelta + "," + yDelta);
+            }
+        }
+
+        public void onMouseWheel(int xScroll, int yScroll) {
+            if (verbose) {
+                System.out.println("Wheel: " + xScroll + "," + yScroll);
+            }
+        }
+
+        public void onData(String type, String data) {
+            if (verbose) {
+                System.out.println("Data: " + type + " " + data);
+            }
+        }
+
+        public boolean onFling(String uri) {
+            if (verbose) {
+                System.out.println("Fling: " + uri);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotetestserver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+/**
+ * Answers the broadcast discovery requests sent by the Anymote library, the
+ * way a Google TV device does.
+ * <p>
+ * A request is {@code "discover <service> <reply port>\n"}; the answer
+ * {@code "<service> <device name> <anymote port>\n"} is sent back to the
+ * sender on the reply port.
+ * <p>
+ * To test discovery locally, run this responder on the development machine
+ * and the client in the emulator with the unicast sweep enabled: the sweep of
+ * the emulator subnet reaches 10.0.2.2, which the emulator maps to the
+ * loopback interface of the host.
+ */
+public class DiscoveryResponder implements Runnable {
+
+    /**
+     * UDP port discovery requests are sent to.
+     */
+    public static final int DISCOVERY_PORT = 9101;
+
+    private static final String COMMAND_DISCOVER = "discover";
+
+    private final DatagramSocket socket;
+    private final String serviceName;
+    private final String deviceName;
+    private final int anymotePort;
+    private volatile boolean stopped;
+
+    /**
+     * Constructor.
+     *
+     * @param port UDP port to listen to.
+     * @param serviceName name of the advertised service.
+     * @param deviceName name of the advertised device; must not contain
+     *            spaces.
+     * @param anymotePort TCP port of the advertised Anymote server.
+     * @throws SocketException if the port cannot be bound.
+     */
+    public DiscoveryResponder(int port, String serviceName, String deviceName, int anymotePort)
+            throws SocketException {
+        this.socket = new DatagramSocket(new InetSocketAddress(port));
+        this.serviceName = serviceName;
+        this.deviceName = deviceName;
+        this.anymotePort = anymotePort;
+    }
+
+    public void run() {
+        byte[] buffer = new byte[256];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!stopped) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                if (shouldAnswer(packet)) {
+                    answer(packet);
+                }
+            } catch (IOException e) {
+                if (!stopped) {
+                    System.err.println("Discovery responder failed: " + e);
+                }
+                break;
+            }
+        }
+        socket.close();
+    }
+
+    /**
+     * Called for every valid request before it is answered. Subclasses can
+     * override it to drop requests.
+     *
+     * @param request the received request.
+     * @return {@code false} to ignore the request.
+     */
+    protected boolean shouldAnswer(DatagramPacket request) {
+        return true;
+    }
+
+    private void answer(DatagramPacket request) throws IOException {
+        String[] tokens =
+                new String(request.getData(), 0, request.getLength()).trim().split("\\s+");
+        if (tokens.length != 3 || !COMMAND_DISCOVER.equals(tokens[0])
+                || !serviceName.equals(tokens[1])) {
+            return;
+        }
+        int replyPort;
+        try {
+            replyPort = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        byte[] reply = (serviceName + " " + deviceName + " " + anymotePort + "\n").getBytes();
+        socket.send(new DatagramPacket(reply, reply.length, request.getAddress(), replyPort));
+        System.out.println("Answered discovery request from " + request.getAddress());
+    }
+
+    /**
+     * Stops the responder.
+     */
+    public void stop() {
+        stopped = true;
+        socket.close();
+    }
+
+    /**
+     * Runs a standalone responder.
+     *
+     * @param args optional device name and Anymote port.
+     * @throws SocketException if the discovery port cannot be bound.
+     */
+    public static void main(String[] args) throws SocketException {
+        String deviceName = args.length > 0 ? args[0] : "FakeTV";
+        int anymotePort = args.length > 1 ? Integer.parseInt(args[1]) : 9551;
+        System.out.println("Advertising " + deviceName + " on port " + DISCOVERY_PORT);
+        new DiscoveryResponder(DISCOVERY_PORT, "_anymote._tcp", deviceName, anymotePort).run();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotetestserver;
+
+import java.net.DatagramPacket;
+
+/**
+ * Stand-in for a Google TV device, runnable on any JVM. It answers discovery
+ * requests on port 9101, pairs clients on the Anymote port + 1 and serves
+ * Anymote sessions on the Anymote port, optionally injecting delays, message
+ * loss and disconnects.
+ * <p>
+ * Usage: {@code FakeTvServer [options]}, with the libraries of the Anymote
+ * library project on the class path. Options:
+ * <ul>
+ * <li>{@code --port <port>} Anymote port, 9551 by default,</li>
+ * <li>{@code --name <name>} advertised name, FakeTV by default,</li>
+ * <li>{@code --delay <ms>} delay added before handling each message,</li>
+ * <li>{@code --jitter <ms>} maximum random delay added to the delay,</li>
+ * <li>{@code --loss <rate>} probability of dropping a message or a discovery
+ * request,</li>
+ * <li>{@code --disconnect-after <count>} close sessions after this number of
+ * messages,</li>
+ * <li>{@code --seed <seed>} seed of the fault generator, for repeatable runs,
+ * </li>
+ * <li>{@code --no-pairing} accept clients which did not pair,</li>
+ * <li>{@code --verbose} print every received event.</li>
+ * </ul>
+ */
+public final class FakeTvServer {
+
+    private static final String SERVICE_NAME = "_anymote._tcp";
+
+    private FakeTvServer() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 9551;
+        String name = "FakeTV";
+        int delay = 0;
+        int jitter = 0;
+        float loss = 0;
+        int disconnectAfter = 0;
+        long seed = 0;
+        boolean requirePairing = true;
+        boolean verbose = false;
+
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if ("--no-pairing".equals(arg)) {
+                requirePairing = false;
+            } else if ("--verbose".equals(arg)) {
+                verbose = true;
+            } else if (i + 1 < args.length) {
+                String value = args[++i];
+                if ("--port".equals(arg)) {
+                    port = Integer.parseInt(value);
+                } else if ("--name".equals(arg)) {
+                    name = value;
+                } else if ("--delay".equals(arg)) {
+                    delay = Integer.parseInt(value);
+                } else if ("--jitter".equals(arg)) {
+                    jitter = Integer.parseInt(value);
+                } else if ("--loss".equals(arg)) {
+                    loss = Float.parseFloat(value);
+                } else if ("--disconnect-after".equals(arg)) {
+                    disconnectAfter = Integer.parseInt(value);
+                } else if ("--seed".equals(arg)) {
+                    seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } else {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+        }
+
+        final FaultInjector faults = new FaultInjector(seed, delay, jitter, loss, disconnectAfter);
+        ServerIdentity identity = new ServerIdentity(name, requirePairing);
+        final AnymoteServer anymoteServer = new AnymoteServer(port, identity, faults, verbose);
+        final PairingServer pairingServer = new PairingServer(port + 1, identity, name);
+        final DiscoveryResponder discoveryResponder = new DiscoveryResponder(
+                DiscoveryResponder.DISCOVERY_PORT, SERVICE_NAME, name, port) {
+            @Override
+            protected boolean shouldAnswer(DatagramPacket request) {
+                return !faults.shouldDrop();
+            }
+        };
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                discoveryResponder.stop();
+                pairingServer.stop();
+                anymoteServer.stop();
+                System.out.println("Stopped (" + anymoteServer.getStats() + ")");
+            }
+        });
+
+        new Thread(discoveryResponder, "DiscoveryResponder").start();
+        new Thread(pairingServer, "PairingServer").start();
+        System.out.println(name + " listening on port " + port + ", pairing on " + (port + 1)
+                + ", faults: " + faults);
+        anymoteServer.run();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotetestserver;
+
+import java.util.Random;
+
+/**
+ * Decides which faults the fake TV injects. Faults are drawn from a seeded
+ * random generator, so that a run can be repeated exactly.
+ */
+public final class FaultInjector {
+
+    private final Random random;
+    private final int delayMs;
+    private final int jitterMs;
+    private final float lossRate;
+    private final int disconnectAfter;
+
+    /**
+     * Constructor.
+     *
+     * @param seed seed of the random generator.
+     * @param delayMs fixed delay added before handling each message.
+     * @param jitterMs maximum random delay added on top of the fixed delay.
+     * @param lossRate probability, between 0 and 1, that a message is dropped
+     *            without being handled or acknowledged.
+     * @param disconnectAfter number of messages after which the session is
+     *            closed, or 0 to never close it.
+     */
+    public FaultInjector(long seed, int delayMs, int jitterMs, float lossRate,
+            int disconnectAfter) {
+        this.random = new Random(seed);
+        this.delayMs = delayMs;
+        this.jitterMs = jitterMs;
+        this.lossRate = lossRate;
+        this.disconnectAfter = disconnectAfter;
+    }
+
+    /**
+     * @return a fault injector which never injects anything.
+     */
+    public static FaultInjector none() {
+        return new FaultInjector(0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Sleeps for the configured delay.
+     */
+    public void delay() {
+        int delay = delayMs;
+        if (jitterMs > 0) {
+            synchronized (random) {
+                delay += random.nextInt(jitterMs + 1);
+            }
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the next message should be dropped.
+     */
+    public boolean shouldDrop() {
+        if (lossRate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextFloat() < lossRate;
+        }
+    }
+
+    /**
+     * @param messageCount number of messages received by the session so far.
+     * @return {@code true} if the session should be closed now.
+     */
+    public boolean shouldDisconnect(int messageCount) {
+        return disconnectAfter > 0 && messageCount >= disconnectAfter;
+    }
+
+    @Override
+    public String toString() {
+        return "delay=" + delayMs + "ms jitter=" + jitterMs + "ms loss=" + lossRate
+                + " disconnectAfter=" + disconnectAfter;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotetestserver;
+
+import com.google.anymote.Key.Action;
+import com.google.anymote.Key.Code;
+import com.google.anymote.Messages.DataList;
+import com.google.anymote.Messages.FlingResult;
+import com.google.anymote.common.AnymoteFactory;
+import com.google.anymote.common.ConnectInfo;
+import com.google.anymote.common.ErrorListener;
+import com.google.anymote.device.DeviceAdapter;
+import com.google.anymote.device.MessageReceiver;
+import com.google.polo.ssl.DummyTrustManager;
+
+import java.util.Arrays;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Headless Anymote client measuring the throughput and the ping round trip
+ * time of a server, typically a {@link FakeTvServer} started with
+ * {@code --no-pairing}.
+ * <p>
+ * Usage: {@code LoadClient <host> <port> [events] [events per ping]}. Mouse
+ * moves and key presses are sent as fast as possible; a ping is sent every
+ * given number of events, a single ping being outstanding at a time so that
+ * its round trip is measured even when messages are lost.
+ */
+public final class LoadClient {
+
+    /**
+     * Time after which a ping is considered lost.
+     */
+    private static final long PING_TIMEOUT_MS = 1000;
+
+    private LoadClient() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9551;
+        int eventCount = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int eventsPerPing = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+        ServerIdentity identity = new ServerIdentity("LoadClient", false);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(identity.getKeyManagers(),
+                new TrustManager[] { new DummyTrustManager() }, null);
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+        socket.setTcpNoDelay(true);
+        socket.startHandshake();
+
+        final boolean[] done = new boolean[1];
+        final SynchronousQueue<Long> acks = new SynchronousQueue<Long>();
+        DeviceAdapter adapter = AnymoteFactory.getDeviceAdapter(new MessageReceiver() {
+            public void onAck() {
+                acks.offer(System.nanoTime());
+            }
+
+            public void onData(String type, String data) {
+            }
+
+            public void onDataList(DataList dataList) {
+            }
+
+            public void onFlingResult(FlingResult flingResult, Integer sequenceNumber) {
+            }
+        }, socket.getInputStream(), socket.getOutputStream(), new ErrorListener() {
+            public void onIoError(String message, Throwable exception) {
+                if (!done[0]) {
+                    System.err.println(message + ": " + exception);
+                }
+            }
+        });
+        adapter.sendConnect(new ConnectInfo("LoadClient", 1));
+
+        long[] rtts = new long[eventCount / eventsPerPing + 1];
+        int rttCount = 0;
+        int lostPings = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < eventCount; ++i) {
+            if (i % 10 == 0) {
+                adapter.sendKeyEvent(Code.KEYCODE_DPAD_RIGHT, Action.DOWN);
+                adapter.sendKeyEvent(Code.KEYCODE_DPAD_RIGHT, Action.UP);
+            } else {
+                adapter.sendMouseMove(i % 7 - 3, i % 5 - 2);
+            }
+            if ((i + 1) % eventsPerPing == 0) {
+                long sent = System.nanoTime();
+                adapter.sendPing();
+                Long acked = acks.poll(PING_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (acked != null) {
+                    rtts[rttCount++] = acked - sent;
+                } else {
+                    ++lostPings;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        done[0] = true;
+        adapter.stop();
+        socket.close();
+
+        System.out.println(String.format("%d events in %d ms: %.0f events/s", eventCount,
+                elapsed / 1000000, eventCount * 1e9 / elapsed));
+        long[] sorted = Arrays.copyOf(rtts, rttCount);
+        Arrays.sort(sorted);
+        if (rttCount > 0) {
+            System.out.println(String.format("ping rtt (ms): p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                    sorted[rttCount - 1] / 1e6));
+        }
+        System.out.println("pings: " + rttCount + " acked, " + lostPings + " lost");
+    }
+
+    private static double percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotetestserver;
+
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.PairingContext;
+import com.google.polo.pairing.PairingListener;
+import com.google.polo.pairing.PairingSession;
+import com.google.polo.pairing.ServerPairingSession;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.ssl.DummySSLServerSocketFactory;
+import com.google.polo.wire.PoloWireInterface;
+import com.google.polo.wire.WireFormat;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Serves the Polo pairing protocol, the way a Google TV does on the port
+ * following its Anymote port. The pairing secret is printed on the standard
+ * output instead of being shown on a TV screen.
+ */
+public class PairingServer implements Runnable {
+
+    private final SSLServerSocket serverSocket;
+    private final ServerIdentity identity;
+    private final String name;
+    private volatile boolean stopped;
+
+    /**
+     * Constructor.
+     *
+     * @param port TCP port to listen to.
+     * @param identity identity of the server, which records paired clients.
+     * @param name name of the server sent to clients.
+     * @throws GeneralSecurityException if the TLS socket cannot be created.
+     * @throws IOException if the port cannot be bound.
+     */
+    public PairingServer(int port, ServerIdentity identity, String name)
+            throws GeneralSecurityException, IOException {
+        this.serverSocket = (SSLServerSocket) DummySSLServerSocketFactory
+                .fromKeyManagers(identity.getKeyManagers()).createServerSocket(port);
+        // The client certificate is what gets paired.
+        this.serverSocket.setNeedClientAuth(true);
+        this.identity = identity;
+        this.name = name;
+    }
+
+    public void run() {
+        while (!stopped) {
+            SSLSocket socket;
+            try {
+                socket = (SSLSocket) serverSocket.accept();
+            } catch (IOException e) {
+                if (!stopped) {
+                    System.err.println("Pairing server failed: " + e);
+                }
+                break;
+            }
+            // Like a TV, pair a single client at a time.
+            pair(socket);
+        }
+    }
+
+    private void pair(SSLSocket socket) {
+        try {
+            PairingContext context = PairingContext.fromSslSocket(socket, true);
+            PoloWireInterface protocol = WireFormat.PROTOCOL_BUFFERS.getWireInterface(context);
+            ServerPairingSession session = new ServerPairingSession(protocol, context, name);
+            EncodingOption hexEnc =
+                    new EncodingOption(EncodingOption.EncodingType.ENCODING_HEXADECIMAL, 4);
+            session.addInputEncoding(hexEnc);
+            session.addOutputEncoding(hexEnc);
+
+            if (session.doPair(new ConsolePairingListener())) {
+                identity.addPairedClient(context.getClientCertificate());
+                System.out.println("Paired with " + session.getClientName());
+            } else {
+                System.out.println("Pairing failed");
+            }
+        } catch (PoloException e) {
+            System.err.println("Pairing error: " + e);
+        } catch (IOException e) {
+            System.err.println("Pairing connection error: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+
+    /**
+     * Stops accepting pairing requests.
+     */
+    public void stop() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    /**
+     * Shows the pairing secret on the console.
+     */
+    private static final class ConsolePairingListener implements PairingListener {
+        public void onSessionCreated(PairingSession session) {
+        }
+
+        public void onPerformInputDeviceRole(PairingSession session) {
+            // The TV is the output device.
+        }
+
+        public void onPerformOutputDeviceRole(PairingSession session, byte[] gamma) {
+            System.out.println("Pairing secret: " + session.getEncoder().encodeToString(gamma));
+        }
+
+        public void onSessionEnded(PairingSession session) {
+        }
+
+        public void onLogMessage(LogLevel level, String message) {
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotetestserver;
+
+import com.google.polo.ssl.SslUtil;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Certificate of the fake TV, and the client certificates it has paired
+ * with. Like a real TV, the Anymote port only accepts paired clients, which
+ * makes clients go through pairing on their first connection.
+ */
+public final class ServerIdentity {
+
+    private static final char[] KEY_PASSWORD = "".toCharArray();
+
+    private final KeyManager[] keyManagers;
+    private final Set<Certificate> pairedClients;
+    private final boolean requirePairing;
+
+    /**
+     * Generates a new identity.
+     *
+     * @param name name of the server, used in its certificate.
+     * @param requirePairing {@code false} to accept any client certificate on
+     *            the Anymote port.
+     * @throws GeneralSecurityException if the certificate cannot be created.
+     * @throws IOException if the key store cannot be created.
+     */
+    public ServerIdentity(String name, boolean requirePairing)
+            throws GeneralSecurityException, IOException {
+        KeyPair keyPair = SslUtil.generateRsaKeyPair();
+        X509Certificate cert = SslUtil.generateX509V3Certificate(keyPair, "CN=anymote/" + name);
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("server", keyPair.getPrivate(), KEY_PASSWORD,
+                new Certificate[] { cert });
+        KeyManagerFactory factory =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore, KEY_PASSWORD);
+        this.keyManagers = factory.getKeyManagers();
+        this.pairedClients = Collections.synchronizedSet(new HashSet<Certificate>());
+        this.requirePairing = requirePairing;
+    }
+
+    /**
+     * @return key managers presenting the server certificate.
+     */
+    public KeyManager[] getKeyManagers() {
+        return keyManagers;
+    }
+
+    /**
+     * Records a client certificate after a successful pairing.
+     *
+     * @param clientCertificate certificate of the paired client.
+     */
+    public void addPairedClient(Certificate clientCertificate) {
+        pairedClients.add(clientCertificate);
+    }
+
+    /**
+     * Creates the TLS context of the Anymote port, which only trusts paired
+     * clients.
+     *
+     * @return the TLS context.
+     * @throws GeneralSecurityException if the context cannot be created.
+     */
+    public SSLContext createAnymoteContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers, new TrustManager[] { new PairedClientTrustManager() }, null);
+        return context;
+    }
+
+    /**
+     * Trusts the certificates of the paired clients.
+     */
+    private final class PairedClientTrustManager implements X509TrustManager {
+        public void checkClientTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            if (requirePairing && (chain.length == 0 || !pairedClients.contains(chain[0]))) {
+                throw new CertificateException("Client is not paired");
+            }
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            throw new CertificateException("Not a client");
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}